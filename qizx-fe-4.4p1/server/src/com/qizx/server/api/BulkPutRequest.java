@@ -0,0 +1,225 @@
+/*
+ *    Qizx Free_Engine-4.4p1
+ *
+ *    This code is part of the Qizx application components
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.server.api;
+
+import com.qizx.api.DataModelException;
+import com.qizx.api.Library;
+import com.qizx.server.util.BulkImporter;
+import com.qizx.server.util.QizxRequestBase;
+import com.qizx.server.util.RequestException;
+import com.qizx.util.basic.PathUtil;
+import com.xmlmind.multipartreq.Part;
+
+import org.xml.sax.SAXParseException;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.servlet.ServletException;
+
+/**
+ * Bulk import of documents from a streamed archive or from a multi-document
+ * request.
+ * <p>
+ * The body of the request is a zip, tar or gzipped tar archive (parameter
+ * 'format' or content type), whose entries are stored under the collection
+ * 'path'. A multipart request carries documents like the 'put' request, in
+ * parts 'data', 'data2'... with paths 'path', 'path2'...
+ * <p>
+ * Documents are parsed in parallel and committed by batches (parameters
+ * 'commit-count' and 'commit-size' in Mb). The response is plain text: one
+ * line per error and one line per committed batch, flushed as the import
+ * proceeds, and a final count of errors.
+ */
+public class BulkPutRequest extends QizxRequestBase
+{
+    private static final String ZIP = "zip";
+    private static final String TAR = "tar";
+    private static final String TGZ = "tgz";
+    private static final String MULTIPART = "multipart";
+
+    public String getName()
+    {
+        return "bulkput";
+    }
+
+    public void handlePut()
+        throws ServletException, IOException
+    {
+        handlePost();
+    }
+
+    public void handlePost()
+        throws ServletException, IOException
+    {
+        String libName = getLibraryParam();
+        String format = getParameter("format");
+        if (format == null)
+            format = formatFromContentType();
+        if (format == null)
+            throw new RequestException(BAD_REQUEST, "unknown bulk format: "
+                                       + request.getContentType());
+        requireQizxDriver();
+        int commitCount = getIntParameter("commit-count",
+                                          driver.getImportCommitCount());
+        long commitSize = getIntParameter("commit-size", -1);
+        commitSize = (commitSize < 0) ? driver.getImportCommitSize()
+                                      : commitSize * 1048576L;
+        String suffix = getParameter("suffix", ".xml");
+
+        Library lib = null;
+        BulkImporter importer = null;
+        long startTime = System.currentTimeMillis();
+        try {
+            lib = acquireSession(libName);
+
+            response.setContentType(MIME_PLAIN_TEXT);
+            importer = new BulkImporter(lib, driver.getImportService(),
+                                        driver.getImportThreads());
+            importer.setCommitCount(commitCount);
+            importer.setCommitSize(commitSize);
+            importer.setSuffix(suffix);
+            importer.setEntityResolver(driver.getEntityResolver());
+            importer.setReport(new StatusReport());
+
+            log("========== starting bulk import (" + format + ")");
+
+            if (MULTIPART.equals(format))
+                importParts(importer);
+            else {
+                String path = getPathParam();
+                path = PathUtil.normalizePath(path == null ? "/" : path, true);
+                if ("/".equals(path))
+                    path = "";
+                InputStream in = request.getInputStream();
+                if (ZIP.equalsIgnoreCase(format))
+                    importer.importZip(in, path);
+                else if (TAR.equalsIgnoreCase(format))
+                    importer.importTar(in, path, false);
+                else if (TGZ.equalsIgnoreCase(format))
+                    importer.importTar(in, path, true);
+                else
+                    throw new RequestException(BAD_REQUEST,
+                                               "unknown bulk format: " + format);
+            }
+            importer.finish();
+
+            log("bulk imported " + importer.getDocumentCount() + " document[s], "
+                + importer.getErrorCount() + " error(s) in "
+                + (System.currentTimeMillis() - startTime) + " ms");
+
+            println("IMPORTED " + importer.getDocumentCount());
+            println("IMPORT ERRORS " + importer.getErrorCount());
+        }
+        catch (IOException e) {
+            abort(lib, importer);
+            log("bulkput: IO error " + e);
+            throw new RequestException(SERVER, e);
+        }
+        catch (DataModelException e) {
+            abort(lib, importer);
+            log("bulkput: dm error " + e);
+            throw new RequestException(e);
+        }
+    }
+
+    // documents in parts data, data2... with paths path, path2...
+    private void importParts(BulkImporter importer)
+        throws ServletException, IOException, DataModelException
+    {
+        String path = getPathParam();
+        String dataParam = "data";
+        for (int rank = 2; path != null; ++rank) {
+            importPart(importer, path, dataParam);
+            path = getParameter("path" + rank);
+            dataParam = "data" + rank;
+        }
+    }
+
+    // large parts are not held in memory, see BulkImporter.importDocument
+    private void importPart(BulkImporter importer, String path, String name)
+        throws ServletException, IOException, DataModelException
+    {
+        Part part = getPart(name);
+        if (part == null) {
+            String data = getParameter(name);
+            if (data == null)
+                throw new RequestException(BAD_REQUEST,
+                                           "no XML data for parameter " + name);
+            importer.submit(path, data.getBytes("UTF-8"));
+            return;
+        }
+        InputStream in = part.getInputStream();
+        try {
+            importer.importDocument(path, in, part.getSize());
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    private String formatFromContentType()
+    {
+        if (isMultipart())
+            return MULTIPART;
+        String type = request.getContentType();
+        if (type == null)
+            return null;
+        type = type.toLowerCase();
+        if (type.indexOf("zip") >= 0 && type.indexOf("gzip") < 0)
+            return ZIP;
+        if (type.indexOf("gzip") >= 0 || type.indexOf("tgz") >= 0)
+            return TGZ;
+        if (type.indexOf("tar") >= 0)
+            return TAR;
+        return null;
+    }
+
+    // batches already committed are kept
+    private void abort(Library lib, BulkImporter importer)
+    {
+        if (importer != null)
+            importer.cancel();
+        if (lib != null) {
+            try {
+                lib.rollback();
+            }
+            catch (DataModelException e) {
+                log("bulkput: rollback error " + e);
+            }
+        }
+    }
+
+    private class StatusReport implements BulkImporter.Report
+    {
+        public void error(String path, Exception error)
+            throws IOException
+        {
+            Exception ex = BulkImporter.rootCause(error);
+            StringBuilder status = getTextBuffer();
+            status.append(ex.getClass().getSimpleName()).append('\t');
+            status.append(path).append('\t');
+            if (ex instanceof SAXParseException) {
+                SAXParseException sax = (SAXParseException) ex;
+                status.append("[line " + sax.getLineNumber() + "] ");
+            }
+            status.append(ex.getMessage());
+            println(status.toString());
+        }
+
+        public void batch(int batchNumber, int documents, long bytes,
+                          int errors, long millis)
+            throws IOException
+        {
+            println("BATCH " + batchNumber + "\t" + documents + " documents\t"
+                    + bytes + " bytes\t" + errors + " errors\t" + millis + " ms");
+            output.flush();
+        }
+    }
+}
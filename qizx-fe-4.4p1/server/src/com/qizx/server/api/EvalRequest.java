@@ -17,8 +17,11 @@ import com.qizx.api.QizxException;
 import com.qizx.api.admin.Profiling;
 import com.qizx.api.util.XMLSerializer;
 import com.qizx.apps.restapi.RestAPI;
+import com.qizx.server.util.CountingOutputStream;
+import com.qizx.server.util.JSONItemWriter;
 import com.qizx.server.util.QizxRequestBase;
 import com.qizx.server.util.RequestException;
+import com.qizx.server.util.RequestTrace;
 import com.qizx.xdm.IQName;
 
 import java.io.IOException;
@@ -28,18 +31,37 @@ import javax.servlet.ServletException;
 
 /**
  * Execute a XQuery script.
+ * <p>
+ * In streaming mode (parameter 'streaming'), the output is flushed every
+ * 'flush-items' items or 'flush-bytes' bytes, and in 'items' format the total
+ * count is put in a trailer element at the end, along with a cursor token.
+ * Passing this token as parameter 'cursor' resumes the cached sequence exactly
+ * where the page ended; the parameter 'query' is then optional, and only used
+ * if the cursor has expired.
+ * <p>
+ * Formats 'json' and 'ndjson' convert items directly to JSON (see
+ * {@link JSONItemWriter}): 'json' produces an object with an array of items
+ * and the counts, 'ndjson' puts one item per line and is always streamed.
  */
 public class EvalRequest extends QizxRequestBase
 {
     private static final String ITEMS_FORMAT = "items";
     private static final String HTML_FMT = "html";
     private static final String XHTML_FMT = "xhtml";
+    private static final QName NM_TRAILER = IQName.get("trailer");
+    private static final int DEFAULT_FLUSH_ITEMS = 100;
+    private static final int DEFAULT_FLUSH_BYTES = 16384;
 
     public String getName()
     {
         return "eval";
     }
 
+    protected boolean isAdmissionControlled()
+    {
+        return true;
+    }
+
     public void handleGet()
         throws ServletException, IOException
     {
@@ -51,10 +73,12 @@ public class EvalRequest extends QizxRequestBase
     {
         String libName = getLibraryParam();
         //String path = getPathParam();
+        String cursor = getParameter("cursor");
         String query = getParameter("query"); 
         if(query == null) { // in a part?
             query = getPartAsString("query");
-            if(query == null)
+            // not needed to resume a sequence from a cursor
+            if(query == null && cursor == null)
                 requiredParam("query");
         }
         String format = getParameter("format");
@@ -65,6 +89,9 @@ public class EvalRequest extends QizxRequestBase
         String counting = getParameter("counting");
         int count = getIntParameter("count", -1);
         int first = getIntParameter("first", 0);
+        boolean streaming = getBooleanParameter("streaming", false);
+        int flushItems = getIntParameter("flush-items", DEFAULT_FLUSH_ITEMS);
+        int flushBytes = getIntParameter("flush-bytes", DEFAULT_FLUSH_BYTES);
         
         boolean wrapped = ITEMS_FORMAT.equals(format);
 //        if(count < 0 && !wrapped)
@@ -74,15 +101,43 @@ public class EvalRequest extends QizxRequestBase
         
         try {
             requireQizxDriver();
+            // resume a sequence from a cursor: no need to move it
+            ItemSequence items = driver.acquireCursor(this, cursor, libName,
+                                                      getUserName());
+            boolean resumed = (items != null);
+            if (items == null && query == null)
+                throw new RequestException(BAD_REQUEST, "unknown or expired cursor"
+                                           + " and no parameter 'query'");
             // looks in caches for the best matching sequence
             // if not found, acquire a session and evaluate it
-            ItemSequence items =
-                driver.acquireSequence(this, libName, query,
-                                       RestAPI.PROFILE.equalsIgnoreCase(mode),
-                                       first, maxTime, getUserName());
-            
-            
-            serial = new XMLSerializer(output, encoding);
+            if (items == null)
+                items = driver.acquireSequence(this, libName, query,
+                                               RestAPI.PROFILE.equalsIgnoreCase(mode),
+                                               first, maxTime, getUserName());
+            RequestTrace trace = getTrace();
+            long t0 = System.nanoTime();
+            if (!resumed)
+                items.moveTo(first);
+            if (trace != null) {
+                trace.addTimeSince(RequestTrace.EVALUATE, t0);
+                t0 = System.nanoTime();
+            }
+
+            if (prepareJSONFormat(format)) {
+                putJSON(items, NDJSON.equalsIgnoreCase(format), count, counting,
+                        streaming, flushItems, flushBytes);
+                if (trace != null)
+                    trace.addTimeSince(RequestTrace.SERIALIZE, t0);
+                return;
+            }
+
+            CountingOutputStream counter = null;
+            if (streaming) {
+                counter = new CountingOutputStream(output);
+                serial = getSerializer(counter, encoding);
+            }
+            else
+                serial = getSerializer(output, encoding);
             QName RESULTS = IQName.get("items");
 
             if(HTML_FMT.equalsIgnoreCase(format)) {
@@ -98,13 +153,16 @@ public class EvalRequest extends QizxRequestBase
             }
 
             int itemCnt = 0;
-
-            items.moveTo(first);
+            long flushedBytes = 0;
 
             if (wrapped) {
                 serial.putDocumentStart();
                 serial.putElementStart(RESULTS);
-                if (counting == null || "exact".equalsIgnoreCase(counting)) {
+                // in streaming mode, counts are in the trailer
+                if (streaming) {
+                    // nothing yet
+                }
+                else if (counting == null || "exact".equalsIgnoreCase(counting)) {
                     serial.putAttribute(IQName.get("total-count"),
                                         Long.toString(items.countItems()), null);
                 }
@@ -132,6 +190,16 @@ public class EvalRequest extends QizxRequestBase
                 }
                 if (wrapped)
                     serial.putElementEnd(RESTAPIServlet.NM_ITEM);
+
+                if (streaming &&
+                    ((flushItems > 0 && (itemCnt + 1) % flushItems == 0)
+                     || (flushBytes > 0
+                         && counter.getCount() - flushedBytes >= flushBytes)))
+                {
+                    serial.flush();
+                    output.flush();
+                    flushedBytes = counter.getCount();
+                }
             }
             if (wrapped) {
                 // put Profiling annotations at the end of the sequence
@@ -156,12 +224,37 @@ public class EvalRequest extends QizxRequestBase
                     serial.putElementEnd(RESTAPIServlet.NM_PROFILING);
                 }
 
+                if (streaming) {
+                    // trailer: counting is done after items have been sent
+                    String total = null, estimated = null;
+                    if (counting == null || "exact".equalsIgnoreCase(counting))
+                        total = Long.toString(items.countItems());
+                    else if ("estimated".equalsIgnoreCase(counting))
+                        estimated = Long.toString(items.estimatedDocumentCount());
+                    // the sequence stays at its position in the cache:
+                    String token = driver.releaseSequence(items, true);
+                    items = null;
+
+                    serial.putElementStart(NM_TRAILER);
+                    if (total != null)
+                        serial.putAttribute(IQName.get("total-count"), total, null);
+                    if (estimated != null)
+                        serial.putAttribute(IQName.get("estimated-count"),
+                                            estimated, null);
+                    if (token != null)
+                        serial.putAttribute(IQName.get("cursor"), token, null);
+                    serial.putElementEnd(NM_TRAILER);
+                }
+
                 serial.putElementEnd(RESULTS);
                 serial.putDocumentEnd();
             }
 
             serial.flush();
-            driver.releaseSequence(items);
+            if (trace != null)
+                trace.addTimeSince(RequestTrace.SERIALIZE, t0);
+            if (items != null)
+                driver.releaseSequence(items);
         }
         catch (CompilationException e) {
             throw new RequestException(e);
@@ -175,4 +268,90 @@ public class EvalRequest extends QizxRequestBase
             throw new RequestException(e);
         }
     }
+
+    private void putJSON(ItemSequence items, boolean lines, int count,
+                         String counting, boolean streaming,
+                         int flushItems, int flushBytes)
+        throws IOException, QizxException
+    {
+        CountingOutputStream counter = new CountingOutputStream(output);
+        JSONItemWriter out = getJSONWriter(counter);
+        // NDJSON is meant for incremental processing by clients
+        streaming |= lines;
+
+        if (!lines) {
+            out.putMapStart();
+            out.putKey("items");
+            out.putArrayStart();
+        }
+        int itemCnt = 0;
+        long flushedBytes = 0;
+        for(; (count < 0 || itemCnt < count) && items.moveToNextItem(); ++itemCnt)
+        {
+            out.putItem(items);
+            if (lines)
+                out.newLine();
+
+            // bytes are counted once out of the writer buffer
+            if (streaming &&
+                ((flushItems > 0 && (itemCnt + 1) % flushItems == 0)
+                 || (flushBytes > 0
+                     && counter.getCount() - flushedBytes >= flushBytes)))
+            {
+                out.flush();
+                output.flush();
+                flushedBytes = counter.getCount();
+            }
+        }
+
+        if (!lines) {
+            out.putArrayEnd();
+
+            List<Profiling> profs = items.getProfilingAnnotations();
+            if (profs != null) {
+                out.putKey("profiling");
+                out.putArrayStart();
+                for(Profiling p : profs) {
+                    out.putMapStart();
+                    out.putKey("type");
+                    out.putString(p.getType());
+                    out.putKey("count");
+                    out.putNumber(p.getCount());
+                    out.putKey("start");
+                    out.putNumber(p.startPoint());
+                    out.putKey("end");
+                    out.putNumber(p.endPoint());
+                    if (p.getMessage() != null) {
+                        out.putKey("message");
+                        out.putString(p.getMessage());
+                    }
+                    out.putMapEnd();
+                }
+                out.putArrayEnd();
+            }
+
+            if (counting == null || "exact".equalsIgnoreCase(counting)) {
+                out.putKey("total-count");
+                out.putNumber(items.countItems());
+            }
+            else if ("estimated".equalsIgnoreCase(counting)) {
+                out.putKey("estimated-count");
+                out.putNumber(items.estimatedDocumentCount());
+            }
+            if (streaming) {
+                // the sequence stays at its position in the cache:
+                String token = driver.releaseSequence(items, true);
+                items = null;
+                if (token != null) {
+                    out.putKey("cursor");
+                    out.putString(token);
+                }
+            }
+            out.putMapEnd();
+        }
+
+        out.flush();
+        if (items != null)
+            driver.releaseSequence(items);
+    }
 }
@@ -49,7 +49,7 @@ public class GetPropRequest extends QizxRequestBase
 
             LibraryMember member = requireMember(lib, path);
 
-            XMLSerializer out = new XMLSerializer(output, "UTF-8");
+            XMLSerializer out = getSerializer(output, "UTF-8");
             QName NM_GETPROP = lib.getQName("getprop");
 
             out.putDocumentStart();
@@ -10,6 +10,7 @@ package com.qizx.server.api;
 
 import com.qizx.api.*;
 import com.qizx.api.util.XMLSerializer;
+import com.qizx.server.util.JSONItemWriter;
 import com.qizx.server.util.QizxRequestBase;
 import com.qizx.server.util.RequestException;
 import com.qizx.util.basic.FileUtil;
@@ -19,6 +20,13 @@ import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collections;
 
+/**
+ * Get the contents of a Document, or the list of members of a Collection.
+ * <p>
+ * With format 'json' or 'ndjson', XML documents are converted to JSON (see
+ * {@link JSONItemWriter}), and a Collection is listed as an array of paths,
+ * or one path per line.
+ */
 public class GetRequest extends QizxRequestBase
 {
 
@@ -41,6 +49,7 @@ public class GetRequest extends QizxRequestBase
         String opts = getParameter("options");
         String[] options = (opts == null)? null : opts.split("[\n\r\t;,]+");
         int maxCount = getIntParameter("max", -1);
+        String format = getParameter("format");
         
         try {
             Library lib = acquireSession(libName);         
@@ -48,7 +57,9 @@ public class GetRequest extends QizxRequestBase
 
             if(member.isCollection())
             {
-                response.setContentType(MIME_PLAIN_TEXT);
+                boolean json = prepareJSONFormat(format);
+                if (!json)
+                    response.setContentType(MIME_PLAIN_TEXT);
                 Collection col = (Collection) member;
                 LibraryMemberIterator iter = col.getChildren();
                 ArrayList<String> res = new ArrayList<String>();
@@ -62,14 +73,24 @@ public class GetRequest extends QizxRequestBase
                         break;
                 }
                 Collections.sort(res);
-                for (String mpath : res) {
-                    println(mpath);
-                }
+                if (json)
+                    putJSONPaths(res, NDJSON.equalsIgnoreCase(format));
+                else
+                    for (String mpath : res) {
+                        println(mpath);
+                    }
+            }
+            else if(member instanceof Document && prepareJSONFormat(format)) {
+                JSONItemWriter out = getJSONWriter(output);
+                out.putNode(((Document) member).getDocumentNode());
+                if (NDJSON.equalsIgnoreCase(format))
+                    out.newLine();
+                out.flush();
             }
             else if(member instanceof Document) {
                 response.setContentType(MIME_XML);
                 Document doc = (Document) member;
-                XMLSerializer serial = new XMLSerializer(output, "UTF-8");
+                XMLSerializer serial = getSerializer(output, "UTF-8");
                 if(options != null)
                     for (int i = 0; i < options.length; i++) {
                         String op = options[i];
@@ -98,4 +119,20 @@ public class GetRequest extends QizxRequestBase
         }
 
     }
+
+    private void putJSONPaths(ArrayList<String> paths, boolean lines)
+        throws IOException
+    {
+        JSONItemWriter out = getJSONWriter(output);
+        if (!lines)
+            out.putArrayStart();
+        for (String mpath : paths) {
+            out.putString(mpath);
+            if (lines)
+                out.newLine();
+        }
+        if (!lines)
+            out.putArrayEnd();
+        out.flush();
+    }
 }
@@ -48,7 +48,7 @@ public class InfoRequest extends QizxRequestBase
             name = IQName.get("name");
             
             response.setContentType(MIME_XML);
-            XMLSerializer out = new XMLSerializer(output, "UTF-8");
+            XMLSerializer out = getSerializer(output, "UTF-8");
             out.putDocumentStart();
             out.putElementStart(wrapper);
             
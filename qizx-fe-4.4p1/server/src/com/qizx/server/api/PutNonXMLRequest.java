@@ -61,7 +61,7 @@ public class PutNonXMLRequest extends QizxRequestBase
             }
 
             response.setContentType(MIME_PLAIN_TEXT);
-            StringBuilder status = new StringBuilder();
+            StringBuilder status = getTextBuffer();
 
             String curDataParam = "data";
 
@@ -76,11 +76,12 @@ public class PutNonXMLRequest extends QizxRequestBase
                     if (content == null)
                         throw new RequestException(BAD_REQUEST,
                                        "no data for parameter " + curDataParam);
-                    long size = content.getSize();
                     InputStream stream = content.getInputStream();
                     NonXMLDocument doc =
                         lib.importNonXMLDocument(path, false, stream);
                     stream.close();
+                    // known only once read, if the part is streamed
+                    long size = content.getSize();
                     String mimeType = content.getContentType();
                     if (mimeType != null)
                         doc.setProperty(MIME_PROPERTY, mimeType);
@@ -60,7 +60,7 @@ public class PutRequest extends QizxRequestBase
             }
 
             response.setContentType(MIME_PLAIN_TEXT);
-            StringBuilder status = new StringBuilder();
+            StringBuilder status = getTextBuffer();
             
             String curDataParam = "data";
             InputSource data = openXMLSource(curDataParam);
@@ -15,6 +15,7 @@ import com.qizx.api.LibraryMemberIterator;
 import com.qizx.api.QName;
 import com.qizx.api.QizxException;
 import com.qizx.api.util.XMLSerializer;
+import com.qizx.server.util.JSONItemWriter;
 import com.qizx.server.util.QizxRequestBase;
 import com.qizx.server.util.RequestException;
 
@@ -23,6 +24,9 @@ import java.util.HashSet;
 
 /**
  * Find Documents or Collections through their metadata properties.
+ * <p>
+ * With format 'json', the result is an array of property maps; with
+ * 'ndjson', one property map per line.
  */
 public class QueryPropRequest extends QizxRequestBase
 {
@@ -48,6 +52,7 @@ public class QueryPropRequest extends QizxRequestBase
         String queryParam = getParameter("query");
         String properties = getParameter("properties", "path,nature");
         HashSet<String> propNames = parseNameList(properties);
+        String format = getParameter("format");
        
         try {
             Library lib = acquireSession(libName);
@@ -57,9 +62,14 @@ public class QueryPropRequest extends QizxRequestBase
             if(root == null)
                 throw new RequestException(NOT_FOUND, "root collection '" + path
                            + "' does not exist");
+            if (prepareJSONFormat(format)) {
+                putJSON(root.queryProperties(q), propNames,
+                        NDJSON.equalsIgnoreCase(format));
+                return;
+            }
             response.setContentType(MIME_XML);
             QName NAME = lib.getQName("queryprop");
-            XMLSerializer out = new XMLSerializer(output, "UTF-8");
+            XMLSerializer out = getSerializer(output, "UTF-8");
 
             out.putDocumentStart();
             out.putElementStart(NAME);
@@ -77,4 +87,21 @@ public class QueryPropRequest extends QizxRequestBase
             throw new RequestException(e);
         }
     }
+
+    private void putJSON(LibraryMemberIterator members, HashSet<String> propNames,
+                         boolean lines)
+        throws QizxException, IOException
+    {
+        JSONItemWriter out = getJSONWriter(output);
+        if (!lines)
+            out.putArrayStart();
+        for(; members.moveToNextMember(); ) {
+            RESTAPIServlet.putProperties(members.getCurrentMember(), out, propNames);
+            if (lines)
+                out.newLine();
+        }
+        if (!lines)
+            out.putArrayEnd();
+        out.flush();
+    }
 }
@@ -14,9 +14,11 @@ import com.qizx.api.Node;
 import com.qizx.api.QName;
 import com.qizx.api.util.XMLSerializer;
 import com.qizx.server.api.admin.*;
+import com.qizx.server.util.JSONItemWriter;
 import com.qizx.server.util.QizxDriver;
 import com.qizx.server.util.QizxRequestBase;
 import com.qizx.server.util.Request;
+import com.qizx.server.util.RequestFactory;
 import com.qizx.server.util.ServletBase;
 import com.qizx.xdm.IQName;
 
@@ -48,6 +50,17 @@ public class RESTAPIServlet extends ServletBase
         QizxDriver.initialize(this);
         ServletConfig config = getServletConfig();
         
+        // idle handlers kept for reuse (0 = new handler for each request):
+        String poolSize = config.getInitParameter("handler-pool-size");
+        if (poolSize != null) {
+            try {
+                handlerPoolSize = Integer.parseInt(poolSize.trim());
+            }
+            catch (NumberFormatException e) {
+                wlog(" WARNING: invalid handler-pool-size " + poolSize);
+            }
+        }
+        
         // ----- general requests:
 
         addHandler(new ListLibRequest());
@@ -58,6 +71,7 @@ public class RESTAPIServlet extends ServletBase
         addHandler(new MkColRequest());
         addHandler(new PutRequest());
         addHandler(new PutNonXMLRequest());
+        addHandler(new BulkPutRequest());
 
         addHandler(new GetRequest());
         defaultHandler("GET", new GetRequest());
@@ -92,12 +106,18 @@ public class RESTAPIServlet extends ServletBase
         addHandler(new SetAclRequest());
         
         addHandler(new GetStatsRequest());
+        addHandler(new GetMetricsRequest());
         addHandler(new GetConfigurationRequest());
         addHandler(new ChangeConfigurationRequest());
         addHandler(new ListTasksRequest());
         addHandler(new ListQueriesRequest());
         addHandler(new CancelQueryRequest());
+        addHandler(new CancelTaskRequest());
         
+        // put requests can import parts while they are uploaded:
+        String streaming = config.getInitParameter("multipart-streaming");
+        multipartStreaming = (streaming == null || "true".equalsIgnoreCase(streaming));
+
         String customReq = config.getInitParameter("custom-requests");
         if (customReq != null) {
             String[] reqs = customReq.split("[,; \t]+");
@@ -105,7 +125,11 @@ public class RESTAPIServlet extends ServletBase
                 if(name.length() > 0) {
                     try {
                         Class cl = Class.forName(name);
-                        addHandler( (Request) cl.newInstance());
+                        Object handler = cl.newInstance();
+                        if (handler instanceof RequestFactory)
+                            addHandler((RequestFactory) handler);
+                        else
+                            addHandler((Request) handler);
                         wlog(" add custom request handler " + cl.getName());
                     }
                     catch (Exception e) {
@@ -180,4 +204,29 @@ public class RESTAPIServlet extends ServletBase
         }
         out.putElementEnd(NM_PROPERTIES);
     }
+
+    // JSON form: {"path": "/a/b", "properties": {"name": value, ...}}
+    protected static void putProperties(LibraryMember member, JSONItemWriter out,
+                                        HashSet<String> propNames)
+        throws DataModelException, IOException
+    {
+        out.putMapStart();
+        out.putKey("path");
+        out.putString(member.getPath());
+        out.putKey("properties");
+        out.putMapStart();
+        String[] names = member.getPropertyNames();
+        for (int i = 0; i < names.length; i++)
+        {
+            if(propNames != null && !propNames.contains(names[i]))
+                continue;
+            Object value = member.getProperty(names[i]);
+            if(value == null)
+                continue;
+            out.putKey(names[i]);
+            out.putObject(value);
+        }
+        out.putMapEnd();
+        out.putMapEnd();
+    }
 }
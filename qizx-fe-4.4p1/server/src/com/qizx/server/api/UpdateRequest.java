@@ -35,6 +35,11 @@ public class UpdateRequest extends QizxRequestBase
         return "update";
     }
 
+    protected boolean isAdmissionControlled()
+    {
+        return true;
+    }
+
     public void handlePost()
         throws ServletException, IOException
     {
@@ -61,7 +66,7 @@ public class UpdateRequest extends QizxRequestBase
             Expression expr = lib.compileExpression(query);
             ItemSequence items = expr.evaluate();
             
-            serial = new XMLSerializer(output, encoding);
+            serial = getSerializer(output, encoding);
             QName RESULTS = IQName.get("items");
 
             response.setContentType(MIME_XML);
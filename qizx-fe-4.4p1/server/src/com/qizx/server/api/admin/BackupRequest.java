@@ -10,6 +10,7 @@ package com.qizx.server.api.admin;
 
 import com.qizx.api.DataModelException;
 import com.qizx.api.Library;
+import com.qizx.server.util.BackupExecutor;
 import com.qizx.server.util.QizxDriver;
 import com.qizx.server.util.QizxDriver.LongAction;
 import com.qizx.server.util.QizxRequestBase;
@@ -47,32 +48,19 @@ public class BackupRequest extends QizxRequestBase
             boolean doAll = "*".equals(libName);
 
             LongAction action;
+            // started before scheduled backups waiting for a thread
             if(doAll) {
                 checkAdminRole(driver);
-                action = driver.new LongAction(null, kind + " all") {
-                    protected void act()
-                        throws RequestException, DataModelException
-                    {
-                        backupAllLibraries(location, -1, incremental);
-                    }
-                };
+                action = driver.new BackupAction(kind + " all", location,
+                                                 incremental, BackupExecutor.URGENT);
             }
             else {
                 Library lib = acquireSession(libName);
                 checkAdminRole(driver);
-                action = driver.new LongAction(lib, kind + " " + lib.getName()) {
-                    public void act() 
-                        throws DataModelException
-                    {
-                        if (incremental)
-                            library.incrementalBackup(location);
-                        else
-                            library.backup(location);
-                    }
-                };
+                action = driver.new BackupAction(lib, location, incremental,
+                                                 BackupExecutor.URGENT);
                 // Attention must not be cleaned up, since used by long action
                 libSession = null;
-                // Not clear what happens 
             }
             response.setContentType(MIME_PLAIN_TEXT);
             println(action.getId());
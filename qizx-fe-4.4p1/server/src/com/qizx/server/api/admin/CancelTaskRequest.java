@@ -0,0 +1,55 @@
+/*
+ *    Qizx Free_Engine-4.4p1
+ *
+ *    This code is part of the Qizx application components
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.server.api.admin;
+
+import com.qizx.server.util.QizxDriver;
+import com.qizx.server.util.QizxRequestBase;
+import com.qizx.server.util.RequestException;
+import com.qizx.server.util.TaskScheduler;
+
+import java.io.IOException;
+
+/**
+ * Cancels a long action (backup, optimize, reindex...).
+ * <p>Parameters:
+ * <li>id: identifier of the action, as returned when it was started
+ * <p>Returns: a line containing 'OK' if the action was waiting and will not
+ *   run, 'cancelling' if it is running (it stops when it can, and then has
+ *   the state 'cancelled'), 'finished' if it is already finished, or
+ *   'unknown' if it cannot be found.
+ */
+public class CancelTaskRequest extends QizxRequestBase
+{
+    public String getName()
+    {
+        return "canceltask";
+    }
+
+    public void handlePost()
+        throws RequestException, IOException
+    {
+        String id = getParameter("id");
+        if (id == null)
+            requiredParam("id");
+
+        QizxDriver driver = requireQizxDriver();
+        checkAdminRole(driver);
+
+        response.setContentType(MIME_PLAIN_TEXT);
+        int state = driver.cancelAction(id);
+        if (state < 0)
+            println("unknown");
+        else if (state == TaskScheduler.RUNNING)
+            println("cancelling");
+        else if (state == TaskScheduler.CANCELLED)
+            println("OK");
+        else
+            println("finished");
+    }
+}
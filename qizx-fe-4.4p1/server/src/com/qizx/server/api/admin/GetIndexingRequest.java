@@ -37,7 +37,7 @@ public class GetIndexingRequest extends QizxRequestBase
             Library lib = acquireSession(libName);
             response.setContentType(MIME_XML);
             
-            XMLSerializer serial = new XMLSerializer(output, "UTF-8");
+            XMLSerializer serial = getSerializer(output, "UTF-8");
             Indexing specs = lib.getIndexing();
             specs.export(serial);
             serial.flush();
@@ -0,0 +1,62 @@
+/*
+ *    Qizx Free_Engine-4.4p1
+ *
+ *    This code is part of the Qizx application components
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.server.api.admin;
+
+import com.qizx.api.LibraryManager;
+import com.qizx.server.util.OpenMetricsWriter;
+import com.qizx.server.util.QizxRequestBase;
+import com.qizx.server.util.RequestException;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+
+/**
+ * Returns the statistics of the server and of XML Libraries in the
+ * OpenMetrics text format, for monitoring systems (e.g. Prometheus).
+ * <p>
+ * Unlike getstats, statistics are written as they are collected, without
+ * building a table: only the samples of metrics broken down per library,
+ * request or user are held until the end of each collection pass.
+ * <p>Parameters:
+ * <li>engine: if "false", only the statistics of the server are returned.
+ */
+public class GetMetricsRequest extends QizxRequestBase
+{
+    public String getName()
+    {
+        return "metrics";
+    }
+
+    public void handleGet()
+        throws RequestException, IOException
+    {
+        checkAdminRole(driver);
+        boolean withEngine = getBooleanParameter("engine", true);
+        try {
+            LibraryManager engine = withEngine? requireEngine() : null;
+
+            response.setContentType(OpenMetricsWriter.CONTENT_TYPE);
+            OpenMetricsWriter metrics = new OpenMetricsWriter(
+                new BufferedWriter(new OutputStreamWriter(output, "UTF-8"),
+                                   getIOBuffer().length));
+            driver.collectStatistics(metrics);
+            metrics.endPass();
+            if (engine != null)
+                engine.collectStatistics(metrics);
+            metrics.finish();
+        }
+        catch (IOException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            throw new RequestException(e);
+        }
+    }
+}
@@ -10,6 +10,7 @@ package com.qizx.server.api.admin;
 
 import com.qizx.api.LibraryManager;
 import com.qizx.api.admin.BackgroundTask;
+import com.qizx.server.util.QizxDriver.LongAction;
 import com.qizx.server.util.QizxRequestBase;
 import com.qizx.server.util.RequestException;
 import com.qizx.util.TableGenerator;
@@ -17,7 +18,9 @@ import com.qizx.xquery.ext.AdminFunctions;
 
 import java.io.IOException;
 import java.text.SimpleDateFormat;
+import java.util.Date;
 import java.util.List;
+import java.util.Locale;
 
 /**
  * Returns a list of background tasks.
@@ -33,6 +36,14 @@ import java.util.List;
  * - start time
  * - finish time (expected time if not finished)
  * - fraction done (0 to 1) 1 if finished
+ * <p>
+ * With parameter scope=server, returns instead the long actions of the server
+ * (see {@link com.qizx.server.util.TaskScheduler}): with timeline=0 queued and
+ * running actions, otherwise also finished actions submitted within the
+ * timeline that are still in the history. Fields are: identifier, kind,
+ * Library, description, state (queued, running, finished, failed,
+ * cancelled), submission time, start time, end time, waiting time and
+ * duration in seconds, progress.
  */
 public class ListTasksRequest extends QizxRequestBase
 {
@@ -40,6 +51,11 @@ public class ListTasksRequest extends QizxRequestBase
         "TaskName", "Library", "StartTime", "EndTime", "Duration", "Progress"
     };
 
+    static final String[] SERVER_FIELDS = {
+        "Id", "Kind", "Library", "Description", "State", "SubmitTime",
+        "StartTime", "EndTime", "Wait", "Duration", "Progress"
+    };
+
     public String getName()
     {
         return "listtasks";
@@ -50,9 +66,13 @@ public class ListTasksRequest extends QizxRequestBase
     {
         checkAdminRole(driver);
         try {
-            LibraryManager engine = requireEngine();
             int timeline = getIntParameter("timeline", 0);
             String format = getParameter("format", "text");
+            if ("server".equals(getParameter("scope", "engine"))) {
+                listServerTasks(timeline, format);
+                return;
+            }
+            LibraryManager engine = requireEngine();
 
             List<BackgroundTask> tasks = engine.listBackgroundTasks(timeline);
             
@@ -65,4 +85,46 @@ public class ListTasksRequest extends QizxRequestBase
             throw new RequestException(e);
         }
     }
+
+    private void listServerTasks(int timeline, String format)
+        throws Exception
+    {
+        List<LongAction> actions =
+            requireQizxDriver().getTaskScheduler().list(timeline > 0);
+        long now = System.currentTimeMillis();
+        long since = now - timeline * 3600000L;
+        SimpleDateFormat dates = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+
+        TableGenerator tg = prepareTableFormat(format, SERVER_FIELDS);
+        tg.startTable();
+        for (LongAction action : actions) {
+            if (timeline > 0 && action.getSubmitTime() < since)
+                continue;
+            long start = action.getStartTime(), end = action.getEndTime();
+            tg.startRow();
+            tg.fieldValue(action.getId());
+            tg.fieldValue(action.getKind());
+            String lib = action.getLibraryName();
+            tg.fieldValue(lib == null? "-" : lib);
+            tg.fieldValue(action.getDescription());
+            tg.fieldValue(action.getStateName());
+            tg.fieldValue(dates.format(new Date(action.getSubmitTime())));
+            tg.fieldValue(start == 0? "-" : dates.format(new Date(start)));
+            tg.fieldValue(end == 0? "-" : dates.format(new Date(end)));
+            // cancelled while queued: waited until the end
+            long waitEnd = (start > 0)? start : (end > 0)? end : now;
+            tg.fieldValue(seconds(waitEnd - action.getSubmitTime()));
+            tg.fieldValue(start == 0? "-"
+                                    : seconds(((end > 0)? end : now) - start));
+            tg.fieldValue(String.format(Locale.US, "%.1f%%",
+                                        action.getFractionDone() * 100));
+            tg.endRow();
+        }
+        print(tg.endTable().toString());
+    }
+
+    private static String seconds(long millis)
+    {
+        return String.format(Locale.US, "%.1f", millis / 1000.0);
+    }
 }
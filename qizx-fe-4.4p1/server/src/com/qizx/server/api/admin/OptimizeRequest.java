@@ -40,7 +40,8 @@ public class OptimizeRequest extends QizxRequestBase
             Library lib = acquireSession(libName);
             checkAdminRole(driver);
             
-            LongAction action = driver.new LongAction(lib, "optimize " + lib.getName()) {
+            LongAction action = driver.new LongAction(QizxDriver.TASK_OPTIMIZE, lib,
+                                                      "optimize " + lib.getName()) {
                 public void act() throws DataModelException
                 {
                     library.optimize();
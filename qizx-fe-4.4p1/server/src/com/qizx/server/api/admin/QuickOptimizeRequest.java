@@ -47,7 +47,8 @@ public class QuickOptimizeRequest extends QizxRequestBase
                 println("OK");
             }
             else {
-                LongAction action = driver.new LongAction(lib, "qoptimize " + lib.getName()) {
+                LongAction action = driver.new LongAction(QizxDriver.TASK_OPTIMIZE, lib,
+                                                          "qoptimize " + lib.getName()) {
                     public void act() throws DataModelException
                     {
                         library.quickOptimize(timeHint, blocking);
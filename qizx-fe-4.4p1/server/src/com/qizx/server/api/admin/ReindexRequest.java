@@ -40,7 +40,8 @@ public class ReindexRequest extends QizxRequestBase
             Library lib = acquireSession(libName);
             checkAdminRole(driver);
             
-            LongAction action = driver.new LongAction(lib, "reindex " + lib.getName())
+            LongAction action = driver.new LongAction(QizxDriver.TASK_REINDEX, lib,
+                                                      "reindex " + lib.getName())
             {
                 public void act() throws DataModelException
                 {
@@ -0,0 +1,283 @@
+/*
+ *    Qizx Free_Engine-4.4p1
+ *
+ *    This code is part of the Qizx application components
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.server.util;
+
+import com.qizx.api.DataModelException;
+import com.qizx.api.Library;
+import com.qizx.api.LibraryManager;
+import com.qizx.api.util.backup.BackupSession;
+import com.qizx.api.util.logging.Statistics;
+import com.qizx.server.util.QizxDriver.LongAction;
+
+import java.util.Collection;
+import java.util.HashMap;
+
+/**
+ * Optimizes Libraries in short slices while the server is idle, instead of
+ * (or in addition to) a scheduled optimization of all Libraries.
+ * <p>
+ * Run periodically. At each check:
+ * <ul>
+ * <li>the load is measured from the statistics of REST API requests: the
+ * server is idle if the request rate is below a threshold, and if the mean
+ * latency of requests does not exceed twice its usual value (learnt while
+ * no slice runs).
+ * <li>if the server is busy, no slice is started during a number of checks
+ * that doubles each time the server is found busy (up to
+ * {@link #MAX_BACKOFF}), and is halved when idle.
+ * <li>otherwise, if no slice is running, the Library most in need is
+ * optimized during a slice, by calls of Library.quickOptimize lasting at
+ * most {@link #STEP_TIME} seconds each. A slice ends early when a step does
+ * not reduce the number of segments, and is cancelled as soon as the server
+ * is found busy: it then stops at the end of its current step. A Library needs
+ * optimization if it has many index segments, or if many commits were
+ * performed since its last slice. A Library where a slice did not reduce
+ * the number of segments is left alone until its next commit.
+ * </ul>
+ * Slices are long actions of kind optimize, hence are not run at the same
+ * time as another optimization or a reindexing of the same Library.
+ */
+public class AdaptiveOptimizer
+    implements Runnable
+{
+    /** Maximum number of checks without starting a slice, once busy. */
+    public static final int MAX_BACKOFF = 16;
+    /** Maximum duration in seconds of a call to quickOptimize. */
+    public static final int STEP_TIME = 5;
+    private static final double LATENCY_FACTOR = 2;
+
+    private final QizxDriver driver;
+    private final Collection<Statistics.Activity> requestStats;
+    private final int sliceTime;
+    private final double idleRate;
+    private final int minSegments;
+    private final int minCommits;
+
+    private long lastCheck;
+    private long lastCount;
+    private long lastTime;
+    private double usualLatency;    // nanoseconds
+    private int backoff;
+    private int backoffLength = 1;
+    private LongAction slice;
+    // per Library:
+    private final HashMap<String, LibraryState> states =
+        new HashMap<String, LibraryState>();
+
+    private static class LibraryState
+    {
+        long optimizedCommit = -1;  // at end of last slice, or first seen
+        long settledCommit = -1;    // last slice left segments unchanged
+    }
+
+    /**
+     * @param requestStats statistics of requests, a live view
+     * @param sliceTime duration of a slice in seconds
+     * @param idleRate request rate per minute under which the server is idle
+     * @param minSegments number of index segments from which a Library
+     * needs optimization
+     * @param minCommits number of commits after which a Library needs
+     * optimization
+     */
+    public AdaptiveOptimizer(QizxDriver driver,
+                             Collection<Statistics.Activity> requestStats,
+                             int sliceTime, int idleRate,
+                             int minSegments, int minCommits)
+    {
+        this.driver = driver;
+        this.requestStats = requestStats;
+        this.sliceTime = sliceTime;
+        this.idleRate = idleRate / 60.0;
+        this.minSegments = Math.max(minSegments, 1);
+        this.minCommits = Math.max(minCommits, 1);
+    }
+
+    public void run()
+    {
+        try {
+            check();
+        }
+        catch (Exception e) {
+            driver.log("adaptive optimization: " + e);
+        }
+    }
+
+    private void check()
+        throws DataModelException, RequestException
+    {
+        long now = System.nanoTime();
+        long count = 0, time = 0;
+        for (Statistics.Activity stat : requestStats) {
+            if (stat instanceof ServerStatistics.Activity) {
+                count += ((ServerStatistics.Activity) stat).getCount();
+                time += ((ServerStatistics.Activity) stat).getTotalTime();
+            }
+        }
+        boolean first = (lastCheck == 0);
+        double seconds = (now - lastCheck) / 1e9;
+        long requests = count - lastCount;
+        long requestTime = time - lastTime;
+        lastCheck = now;
+        lastCount = count;
+        lastTime = time;
+        if (first)
+            return;
+
+        // ended, or cancelled while queued:
+        if (slice != null && slice.getState() > TaskScheduler.RUNNING)
+            slice = null;
+
+        double latency = (requests > 0)? requestTime / (double) requests : 0;
+        boolean busy = requests / seconds > idleRate;
+        boolean slow = usualLatency > 0 && latency > LATENCY_FACTOR * usualLatency;
+        if (slice == null && !busy && requests > 0)
+            usualLatency = (usualLatency == 0)?
+                latency : 0.9 * usualLatency + 0.1 * latency;
+
+        if (busy || slow) {
+            // a queued slice is dropped, a running one stops after its step
+            if (slice != null && !slice.isCancelled())
+                driver.cancelAction(slice.getId());
+            backoff = backoffLength;
+            backoffLength = Math.min(2 * backoffLength, MAX_BACKOFF);
+            return;
+        }
+        backoffLength = Math.max(backoffLength / 2, 1);
+        if (backoff > 0) {
+            --backoff;
+            return;
+        }
+        if (slice != null)
+            return;
+
+        String libName = selectLibrary();
+        if (libName != null)
+            startSlice(libName);
+    }
+
+    // the Library with most segments among those that need optimization
+    private String selectLibrary()
+        throws DataModelException, RequestException
+    {
+        LibraryManager engine = driver.requireEngine();
+        String best = null;
+        long bestScore = 0;
+        for (String libName : engine.listLibraries()) {
+            BackupSession session = engine.openForBackup(libName);
+            long commit, segments;
+            try {
+                commit = session.getCommitId();
+                segments = countSegments(session);
+            }
+            finally {
+                session.close();
+            }
+            long commits;
+            synchronized (states) {
+                LibraryState state = getState(libName);
+                if (state.optimizedCommit < 0)
+                    state.optimizedCommit = commit;
+                if (state.settledCommit == commit)
+                    continue;
+                commits = commit - state.optimizedCommit;
+            }
+            if (segments < minSegments && commits < minCommits)
+                continue;
+            long score = segments * minCommits + commits;
+            if (score > bestScore) {
+                best = libName;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    private void startSlice(final String libName)
+    {
+        slice = driver.new LongAction(QizxDriver.TASK_OPTIMIZE, null,
+                                      "adaptive optimize " + libName) {
+            public String getLibraryName()
+            {
+                return libName;
+            }
+
+            protected void act()
+                throws Exception
+            {
+                optimize(libName, this);
+            }
+        };
+        driver.startAction(slice);
+    }
+
+    private void optimize(String libName, LongAction action)
+        throws DataModelException, RequestException
+    {
+        LibraryManager engine = driver.requireEngine();
+        long before = countSegments(engine, libName)[1];
+        long[] after = null;
+        long deadline = System.nanoTime() + sliceTime * 1000000000L;
+        Library lib = engine.openLibrary(libName);
+        try {
+            long segments = before, left;
+            while ((left = deadline - System.nanoTime()) > 0) {
+                action.checkCancelled();
+                int step = (int) Math.min(STEP_TIME,
+                                          (left + 999999999L) / 1000000000L);
+                lib.quickOptimize(step, true);
+                after = countSegments(engine, libName);
+                if (after[1] >= segments)
+                    break;
+                segments = after[1];
+            }
+        }
+        finally {
+            lib.close();
+            if (after != null) {
+                synchronized (states) {
+                    LibraryState state = getState(libName);
+                    state.optimizedCommit = after[0];
+                    if (after[1] >= before && !action.isCancelled())
+                        state.settledCommit = after[0];
+                }
+            }
+        }
+    }
+
+    private LibraryState getState(String libName)
+    {
+        LibraryState state = states.get(libName);
+        if (state == null) {
+            state = new LibraryState();
+            states.put(libName, state);
+        }
+        return state;
+    }
+
+    // commit id and number of segments
+    private static long[] countSegments(LibraryManager engine, String libName)
+        throws DataModelException
+    {
+        BackupSession session = engine.openForBackup(libName);
+        try {
+            return new long[] { session.getCommitId(), countSegments(session) };
+        }
+        finally {
+            session.close();
+        }
+    }
+
+    private static long countSegments(BackupSession session)
+        throws DataModelException
+    {
+        // triplets: id, size, digest
+        return (session.getSegments(BackupSession.DOCS).length
+                + session.getSegments(BackupSession.METADOCS).length) / 3;
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ *    Qizx Free_Engine-4.4p1
+ *
+ *    This code is part of the Qizx application components
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.server.util;
+
+import com.qizx.api.util.logging.Statistics;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+
+/**
+ * Limits the number of queries evaluated at the same time.
+ * <p>
+ * A query is admitted if the number of running queries is below the global
+ * limit, and below the limits for its user and its Library. Otherwise it
+ * waits in a queue of bounded length, for a bounded time. Waiting queries are
+ * admitted in arrival order, except that a query blocked only by the limit of
+ * its user or Library does not hold up the others.
+ * <p>
+ * When the queue is full or the wait times out, the query is rejected with
+ * an {@link OverloadException}, which tells the client when to retry. The
+ * retry delay is estimated from the mean duration of admitted queries and the
+ * length of the queue.
+ * <p>
+ * An admitted query holds a {@link Ticket} until it is released. The request
+ * holding a ticket is responsible for releasing it, even on error.
+ */
+public class AdmissionController
+{
+    private final int maxRunning;
+    private final int maxPerUser;
+    private final int maxPerLibrary;
+    private final int maxQueued;
+    private final long maxWait;     // ms
+
+    private int running;
+    private final HashMap<String, int[]> userCounts =
+        new HashMap<String, int[]>();
+    private final HashMap<String, int[]> libraryCounts =
+        new HashMap<String, int[]>();
+    private final LinkedList<Ticket> queue = new LinkedList<Ticket>();
+    // mean time during which a ticket is held, in ms:
+    private double meanHoldTime;
+
+    private Statistics.Activity waitStats;
+    private Statistics.Counter rejectStats;
+    private ServerStatistics.Gauge queueStats;
+
+    /**
+     * @param maxRunning maximum number of queries running at the same time,
+     * no limit if <= 0
+     * @param maxPerUser maximum number of queries of the same user, no limit
+     * if <= 0
+     * @param maxPerLibrary maximum number of queries on the same Library, no
+     * limit if <= 0
+     * @param maxQueued maximum number of waiting queries; if <= 0, queries
+     * are rejected as soon as a limit is reached
+     * @param maxWait maximum waiting time in milliseconds
+     */
+    public AdmissionController(int maxRunning, int maxPerUser,
+                               int maxPerLibrary, int maxQueued, long maxWait)
+    {
+        this.maxRunning = maxRunning;
+        this.maxPerUser = maxPerUser;
+        this.maxPerLibrary = maxPerLibrary;
+        this.maxQueued = Math.max(maxQueued, 0);
+        this.maxWait = Math.max(maxWait, 0);
+    }
+
+    /**
+     * Defines statistics: waiting time of admitted queries, number of
+     * rejections, and current length of the queue.
+     */
+    public void setStats(Statistics.Activity waitStats,
+                         Statistics.Counter rejectStats,
+                         ServerStatistics.Gauge queueStats)
+    {
+        this.waitStats = waitStats;
+        this.rejectStats = rejectStats;
+        this.queueStats = queueStats;
+    }
+
+    /**
+     * Admits a query, waiting if necessary.
+     * @param userName name of the user, can be null
+     * @param libraryName name of the Library, can be null
+     * @return a ticket to be released when the query is finished
+     * @throws OverloadException if the query is rejected
+     */
+    public Ticket admit(String userName, String libraryName)
+        throws OverloadException
+    {
+        long t0 = System.nanoTime();
+        Ticket ticket = new Ticket(userName, libraryName);
+        synchronized (this) {
+            if (queue.isEmpty() && canAdmit(ticket)) {
+                start(ticket, t0);
+                return ticket;
+            }
+            if (queue.size() >= maxQueued)
+                throw reject("too many queries waiting");
+            queue.add(ticket);
+            updateQueueStats();
+            try {
+                long deadline = t0 + maxWait * 1000000L;
+                for (;;) {
+                    if (isNext(ticket)) {
+                        queue.remove(ticket);
+                        updateQueueStats();
+                        start(ticket, t0);
+                        // others may be admissible too
+                        notifyAll();
+                        return ticket;
+                    }
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0)
+                        break;
+                    wait(remaining / 1000000L + 1);
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            queue.remove(ticket);
+            updateQueueStats();
+            notifyAll();
+            throw reject("timed out waiting for admission");
+        }
+    }
+
+    /**
+     * Returns the number of queries currently running.
+     */
+    public synchronized int getRunningCount()
+    {
+        return running;
+    }
+
+    /**
+     * Returns the number of queries waiting for admission.
+     */
+    public synchronized int getQueuedCount()
+    {
+        return queue.size();
+    }
+
+    private boolean canAdmit(Ticket ticket)
+    {
+        return (maxRunning <= 0 || running < maxRunning)
+               && (maxPerUser <= 0
+                   || count(userCounts, ticket.userName) < maxPerUser)
+               && (maxPerLibrary <= 0
+                   || count(libraryCounts, ticket.libraryName) < maxPerLibrary);
+    }
+
+    // first admissible ticket in the queue
+    private boolean isNext(Ticket ticket)
+    {
+        for (Ticket t : queue) {
+            if (canAdmit(t))
+                return t == ticket;
+        }
+        return false;
+    }
+
+    private void start(Ticket ticket, long t0)
+    {
+        ++running;
+        add(userCounts, ticket.userName, 1);
+        add(libraryCounts, ticket.libraryName, 1);
+        ticket.startTime = System.nanoTime();
+        if (waitStats != null)
+            waitStats.addTime(ticket.startTime - t0);
+    }
+
+    private synchronized void release(Ticket ticket)
+    {
+        --running;
+        add(userCounts, ticket.userName, -1);
+        add(libraryCounts, ticket.libraryName, -1);
+        double held = (System.nanoTime() - ticket.startTime) / 1e6;
+        meanHoldTime = (meanHoldTime == 0)?
+            held : 0.9 * meanHoldTime + 0.1 * held;
+        if (!queue.isEmpty())
+            notifyAll();
+    }
+
+    private OverloadException reject(String reason)
+    {
+        if (rejectStats != null)
+            rejectStats.count();
+        // time for the queue ahead to drain, at least one second
+        int parallel = (maxRunning > 0)? maxRunning : Math.max(running, 1);
+        double delay = meanHoldTime * (queue.size() + 1) / parallel;
+        int seconds = (int) Math.ceil(delay / 1000);
+        return new OverloadException("server overloaded: " + reason,
+                                     Math.max(seconds, 1));
+    }
+
+    private void updateQueueStats()
+    {
+        if (queueStats != null)
+            queueStats.set(queue.size());
+    }
+
+    private static int count(HashMap<String, int[]> counts, String key)
+    {
+        int[] count = counts.get(key);
+        return (count == null)? 0 : count[0];
+    }
+
+    private static void add(HashMap<String, int[]> counts, String key, int inc)
+    {
+        int[] count = counts.get(key);
+        if (count == null) {
+            count = new int[1];
+            counts.put(key, count);
+        }
+        count[0] += inc;
+        if (count[0] <= 0)
+            counts.remove(key);
+    }
+
+    /**
+     * Held by an admitted query.
+     */
+    public class Ticket
+    {
+        final String userName;
+        final String libraryName;
+        long startTime;
+        private boolean released;
+
+        Ticket(String userName, String libraryName)
+        {
+            this.userName = userName;
+            this.libraryName = libraryName;
+        }
+
+        /**
+         * Ends the query. Can be called several times.
+         */
+        public void release()
+        {
+            synchronized (AdmissionController.this) {
+                if (released)
+                    return;
+                released = true;
+            }
+            AdmissionController.this.release(this);
+        }
+    }
+}
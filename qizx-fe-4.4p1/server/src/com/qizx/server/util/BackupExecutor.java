@@ -0,0 +1,173 @@
+/*
+ *    Qizx Free_Engine-4.4p1
+ *
+ *    This code is part of the Qizx application components
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.server.util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs backups of libraries on dedicated threads, separate from other long
+ * actions and from the scheduler.
+ * <p>
+ * Waiting backups are taken by priority: a backup requested by a user
+ * ({@link #URGENT}) is started before queued scheduled backups
+ * ({@link #SCHEDULED}). Backups already running are not interrupted.
+ * <p>
+ * The throughput of all backups can be limited: backups report the amount of
+ * data copied to {@link #throttle}, which makes them wait when they are ahead
+ * of the allowed rate.
+ * <p>
+ * Backups that copy blocks themselves (see {@link DifferentialBackup}) take
+ * their buffers from a pool shared by all backups, so that the memory used
+ * does not depend on the number or size of Libraries.
+ */
+public class BackupExecutor
+{
+    public static final int URGENT = 0;
+    public static final int SCHEDULED = 10;
+
+    private static final int BUFFERS_PER_THREAD = 16;
+
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong sequence = new AtomicLong();
+    // throttling: bytes per second, and time at which the allowance runs out
+    private final long maxRate;
+    private long allowanceEnd;
+    private final ArrayBlockingQueue<byte[]> buffers;
+
+    /**
+     * @param threads maximum number of backups running in parallel
+     * @param maxRate maximum throughput in bytes per second for all backups;
+     * if <= 0, unlimited.
+     */
+    public BackupExecutor(int threads, long maxRate)
+    {
+        this.maxRate = maxRate;
+        threads = Math.max(threads, 1);
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                                          new PriorityBlockingQueue<Runnable>(),
+                                          new ThreadFactory() {
+            private int count;
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, "Qizx backup " + ++count);
+                t.setDaemon(true);
+                t.setPriority(Thread.NORM_PRIORITY - 1);
+                return t;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+
+        // allocated on first use
+        buffers = new ArrayBlockingQueue<byte[]>(threads * BUFFERS_PER_THREAD);
+        for (int b = threads * BUFFERS_PER_THREAD; --b >= 0; )
+            buffers.add(new byte[0]);
+    }
+
+    /**
+     * Queues a backup task.
+     * @param priority {@link #URGENT}, {@link #SCHEDULED}, or any value:
+     * lower values run first.
+     */
+    public void submit(Runnable task, int priority)
+    {
+        executor.execute(new Task(task, priority, sequence.incrementAndGet()));
+    }
+
+    /**
+     * Accounts for data copied by a backup, and waits if needed so that the
+     * throughput of all backups stays below the maximum rate.
+     */
+    public void throttle(long bytes)
+        throws InterruptedException
+    {
+        if (maxRate <= 0 || bytes <= 0)
+            return;
+        long delay;
+        synchronized (this) {
+            long now = System.nanoTime();
+            // unused allowance is not accumulated beyond now
+            if (allowanceEnd - now < 0)
+                allowanceEnd = now;
+            allowanceEnd += bytes * 1000000000L / maxRate;
+            delay = allowanceEnd - now;
+        }
+        if (delay > 0)
+            TimeUnit.NANOSECONDS.sleep(delay);
+    }
+
+    /**
+     * Takes a buffer from the pool, waiting until one is available.
+     * @param size minimum size of the buffer
+     */
+    public byte[] takeBuffer(int size)
+        throws InterruptedException
+    {
+        byte[] buffer = buffers.take();
+        return (buffer.length >= size)? buffer : new byte[size];
+    }
+
+    /**
+     * Returns a buffer obtained by {@link #takeBuffer} to the pool.
+     */
+    public void releaseBuffer(byte[] buffer)
+    {
+        buffers.offer(buffer);
+    }
+
+    public long getMaxRate()
+    {
+        return maxRate;
+    }
+
+    /**
+     * Returns the number of backups waiting for a thread.
+     */
+    public int getQueuedCount()
+    {
+        return executor.getQueue().size();
+    }
+
+    public void shutdownNow()
+    {
+        executor.shutdownNow();
+    }
+
+    private static class Task
+        implements Runnable, Comparable<Task>
+    {
+        final Runnable task;
+        final int priority;
+        final long rank;
+
+        Task(Runnable task, int priority, long rank)
+        {
+            this.task = task;
+            this.priority = priority;
+            this.rank = rank;
+        }
+
+        public void run()
+        {
+            task.run();
+        }
+
+        // by priority, then first come first served
+        public int compareTo(Task other)
+        {
+            if (priority != other.priority)
+                return (priority < other.priority)? -1 : 1;
+            return (rank < other.rank)? -1 : (rank == other.rank)? 0 : 1;
+        }
+    }
+}
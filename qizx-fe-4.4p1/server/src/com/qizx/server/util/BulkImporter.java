@@ -0,0 +1,664 @@
+/*
+ *    Qizx Free_Engine-4.4p1
+ *
+ *    This code is part of the Qizx application components
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.server.util;
+
+import com.qizx.api.DataModelException;
+import com.qizx.api.Library;
+import com.qizx.api.Node;
+import com.qizx.api.XMLPushStream;
+import com.qizx.api.util.PushNodeBuilder;
+import com.qizx.api.util.SAXToPushStream;
+import com.qizx.util.basic.PathUtil;
+
+import org.xml.sax.EntityResolver;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+import org.xml.sax.XMLReader;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import javax.xml.parsers.SAXParserFactory;
+
+/**
+ * Imports a large number of documents into a Library with sustained
+ * throughput.
+ * <p>
+ * Documents are read sequentially from an archive (zip, tar, tar.gz) or
+ * submitted one by one. They are parsed in parallel on a shared worker pool
+ * into in-memory trees, while the calling thread is the only writer on the
+ * Library: it stores parsed documents in submission order, and commits every
+ * N documents or M bytes, so that a load is never a single huge transaction.
+ * <p>
+ * The number of documents parsed in advance is bounded, both in count and
+ * in bytes, so that memory stays bounded whatever the size of the load.
+ * Documents larger than the in-memory limit are imported directly from the
+ * stream by the writer.
+ * <p>
+ * Not thread-safe: an instance is used by one request.
+ */
+public class BulkImporter
+{
+    /**
+     * Receives progress and error reports.
+     */
+    public interface Report
+    {
+        /**
+         * Called when a document cannot be parsed or stored.
+         */
+        void error(String path, Exception error)
+            throws IOException;
+
+        /**
+         * Called after each commit.
+         */
+        void batch(int batchNumber, int documents, long bytes, int errors,
+                   long millis)
+            throws IOException;
+    }
+
+    private static final SAXParserFactory PARSER_FACTORY;
+    static {
+        PARSER_FACTORY = SAXParserFactory.newInstance();
+        PARSER_FACTORY.setNamespaceAware(true);
+    }
+
+    private static final ThreadLocal<XMLReader> PARSERS = new ThreadLocal<XMLReader>();
+
+    private Library library;
+    private ExecutorService parsePool;
+    private EntityResolver resolver;
+    private Report report;
+
+    private int commitCount = 1000;
+    private long commitSize = 64 * 1048576L;
+    private int maxPending;
+    private long maxPendingBytes = 64 * 1048576L;
+    private long maxInMemorySize = 16 * 1048576L;
+    private String suffix = ".xml";
+
+    // parsed or being parsed, in submission order:
+    private ArrayDeque<Pending> pending = new ArrayDeque<Pending>();
+    private long pendingBytes;
+
+    // current batch:
+    private int batchDocs;
+    private long batchBytes;
+    private int batchErrors;
+    private long batchStart = System.currentTimeMillis();
+    private int batchNumber;
+
+    private int documentCount;
+    private int errorCount;
+
+    /**
+     * @param library the Library where documents are stored, used only by the
+     * calling thread.
+     * @param parsePool pool of threads where documents are parsed
+     * @param parallelism number of documents parsed concurrently
+     */
+    public BulkImporter(Library library, ExecutorService parsePool,
+                        int parallelism)
+    {
+        this.library = library;
+        this.parsePool = parsePool;
+        this.maxPending = Math.max(2, 2 * parallelism);
+    }
+
+    public void setReport(Report report)
+    {
+        this.report = report;
+    }
+
+    public void setEntityResolver(EntityResolver resolver)
+    {
+        this.resolver = resolver;
+    }
+
+    /**
+     * Defines the number of documents after which a commit is performed.
+     */
+    public void setCommitCount(int commitCount)
+    {
+        this.commitCount = commitCount;
+    }
+
+    /**
+     * Defines the size in bytes of XML source after which a commit is
+     * performed.
+     */
+    public void setCommitSize(long commitSize)
+    {
+        this.commitSize = commitSize;
+    }
+
+    /**
+     * Defines the maximum size in bytes of documents parsed in advance.
+     */
+    public void setMaxPendingBytes(long maxPendingBytes)
+    {
+        this.maxPendingBytes = maxPendingBytes;
+    }
+
+    /**
+     * Only archive entries with this suffix are imported. All entries are
+     * imported if null or empty.
+     */
+    public void setSuffix(String suffix)
+    {
+        this.suffix = suffix;
+    }
+
+    public int getDocumentCount()
+    {
+        return documentCount;
+    }
+
+    public int getErrorCount()
+    {
+        return errorCount;
+    }
+
+    /**
+     * Imports the XML entries of a zip archive, in a collection.
+     */
+    public void importZip(InputStream input, String collectionPath)
+        throws IOException, DataModelException
+    {
+        ZipInputStream zip = new ZipInputStream(input);
+        for (ZipEntry entry; (entry = zip.getNextEntry()) != null; ) {
+            if (!entry.isDirectory() && accepts(entry.getName()))
+                importEntry(zip, collectionPath, entry.getName(), entry.getSize());
+            zip.closeEntry();
+        }
+    }
+
+    /**
+     * Imports the XML entries of a tar archive, possibly gzipped, in a
+     * collection.
+     */
+    public void importTar(InputStream input, String collectionPath,
+                          boolean gzipped)
+        throws IOException, DataModelException
+    {
+        if (gzipped)
+            input = new GZIPInputStream(input, 65536);
+        TarReader tar = new TarReader(input);
+        for (String name; (name = tar.nextEntry()) != null; ) {
+            if (accepts(name))
+                importEntry(tar.entryStream(), collectionPath, name,
+                            tar.entrySize());
+            tar.skipEntry();
+        }
+    }
+
+    /**
+     * Submits a document for parsing. It is stored later by this thread,
+     * in submission order.
+     */
+    public void submit(String path, byte[] data)
+        throws IOException, DataModelException
+    {
+        // bounded look-ahead:
+        while (pending.size() >= maxPending
+               || (!pending.isEmpty()
+                   && pendingBytes + data.length > maxPendingBytes))
+            store(pending.poll());
+        // store what is already parsed, for a steady commit pace:
+        while (!pending.isEmpty() && pending.peek().future.isDone())
+            store(pending.poll());
+
+        Pending p = new Pending(PathUtil.normalizePath(path, true), data.length);
+        p.future = parsePool.submit(new ParseTask(data));
+        pending.add(p);
+        pendingBytes += data.length;
+    }
+
+    /**
+     * Stores all pending documents and performs a final commit.
+     */
+    public void finish()
+        throws IOException, DataModelException
+    {
+        drain();
+        if (batchDocs > 0 || batchErrors > 0)
+            commit();
+    }
+
+    /**
+     * Abandons pending documents (on error).
+     */
+    public void cancel()
+    {
+        for (Pending p; (p = pending.poll()) != null; )
+            p.future.cancel(true);
+        pendingBytes = 0;
+    }
+
+    /**
+     * Imports a document read from a stream, which is not closed. Documents
+     * up to the in-memory limit are parsed in advance like submitted
+     * documents; larger ones are stored directly from the stream by this
+     * thread.
+     * @param size size of the document if known, else -1
+     */
+    public void importDocument(String path, InputStream in, long size)
+        throws IOException, DataModelException
+    {
+        if (size <= maxInMemorySize) {
+            // the size is unknown or only announced: never buffer more than
+            // the limit, and store the rest directly if it is exceeded
+            ByteArrayOutputStream out = new ByteArrayOutputStream(
+                         (size > 0) ? (int) size : 16384);
+            if (readUpTo(in, out, maxInMemorySize)) {
+                submit(path, out.toByteArray());
+                return;
+            }
+            // (SequenceInputStream closes its streams)
+            in = new SequenceInputStream(
+                         new ByteArrayInputStream(out.toByteArray()),
+                         new UnclosableStream(in));
+        }
+        // too big to be parsed in advance: store directly
+        drain();
+        UnclosableStream input = new UnclosableStream(in);
+        Pending p = new Pending(PathUtil.normalizePath(path, true), 0);
+        try {
+            library.importDocument(p.path, new InputSource(input));
+            p.size = input.count;
+            stored(p);
+        }
+        catch (DataModelException e) {
+            failed(p, e);
+        }
+    }
+
+    private void importEntry(InputStream in, String collectionPath,
+                             String name, long size)
+        throws IOException, DataModelException
+    {
+        importDocument(collectionPath + "/" + name, in, size);
+    }
+
+    private void drain()
+        throws IOException, DataModelException
+    {
+        for (Pending p; (p = pending.poll()) != null; )
+            store(p);
+    }
+
+    private void store(Pending p)
+        throws IOException, DataModelException
+    {
+        pendingBytes -= p.size;
+        Node document;
+        try {
+            document = p.future.get();
+        }
+        catch (InterruptedException e) {
+            cancel();
+            throw new IOException("bulk import interrupted");
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            failed(p, (cause instanceof Exception) ? (Exception) cause
+                                                   : new Exception(cause));
+            return;
+        }
+        try {
+            XMLPushStream out = library.beginImportDocument(p.path);
+            out.putNodeCopy(document, 0);
+            library.endImportDocument();
+            stored(p);
+        }
+        catch (DataModelException e) {
+            library.cancelImportDocument();
+            failed(p, e);
+        }
+    }
+
+    private void stored(Pending p)
+        throws IOException, DataModelException
+    {
+        ++documentCount;
+        ++batchDocs;
+        batchBytes += p.size;
+        if (batchDocs >= commitCount || (commitSize > 0 && batchBytes >= commitSize))
+            commit();
+    }
+
+    private void failed(Pending p, Exception e)
+        throws IOException
+    {
+        ++errorCount;
+        ++batchErrors;
+        if (report != null)
+            report.error(p.path, e);
+    }
+
+    private void commit()
+        throws IOException, DataModelException
+    {
+        library.commit();
+        ++batchNumber;
+        if (report != null)
+            report.batch(batchNumber, batchDocs, batchBytes, batchErrors,
+                         System.currentTimeMillis() - batchStart);
+        batchDocs = 0;
+        batchBytes = 0;
+        batchErrors = 0;
+        batchStart = System.currentTimeMillis();
+    }
+
+    private boolean accepts(String entryName)
+    {
+        return suffix == null || suffix.length() == 0
+               || entryName.toLowerCase().endsWith(suffix);
+    }
+
+    // reads until the end, or until more than limit bytes are read:
+    // returns false in the latter case
+    private static boolean readUpTo(InputStream in, ByteArrayOutputStream out,
+                                    long limit)
+        throws IOException
+    {
+        byte[] buffer = new byte[16384];
+        for (int n; (n = in.read(buffer)) > 0; ) {
+            out.write(buffer, 0, n);
+            if (out.size() > limit)
+                return false;
+        }
+        return true;
+    }
+
+    private static byte[] readFully(InputStream in, long size)
+        throws IOException
+    {
+        ByteArrayOutputStream out =
+            new ByteArrayOutputStream(size > 0 ? (int) size : 16384);
+        byte[] buffer = new byte[16384];
+        for (int n; (n = in.read(buffer)) > 0; )
+            out.write(buffer, 0, n);
+        return out.toByteArray();
+    }
+
+    /**
+     * Unwraps exceptions of the parser, for reports.
+     */
+    public static Exception rootCause(Exception e)
+    {
+        if (e instanceof DataModelException && e.getCause() instanceof SAXException)
+            return (SAXException) e.getCause();
+        return e;
+    }
+
+    private static class Pending
+    {
+        String path;
+        long size;
+        Future<Node> future;
+
+        Pending(String path, long size)
+        {
+            this.path = path;
+            this.size = size;
+        }
+    }
+
+    // parses a document into an in-memory tree, in a worker thread
+    private class ParseTask implements Callable<Node>
+    {
+        private byte[] data;
+
+        ParseTask(byte[] data)
+        {
+            this.data = data;
+        }
+
+        public Node call()
+            throws Exception
+        {
+            XMLReader reader = PARSERS.get();
+            if (reader == null) {
+                reader = PARSER_FACTORY.newSAXParser().getXMLReader();
+                PARSERS.set(reader);
+            }
+            PushNodeBuilder builder = new PushNodeBuilder();
+            SAXToPushStream adapter = new SAXToPushStream(builder);
+            reader.setContentHandler(adapter);
+            reader.setErrorHandler(adapter);
+            reader.setEntityResolver(resolver);
+            try {
+                reader.setProperty("http://xml.org/sax/properties/lexical-handler",
+                                   adapter);
+            }
+            catch (SAXException ignored) { ; }
+            try {
+                reader.parse(new InputSource(new ByteArrayInputStream(data)));
+            }
+            catch (SAXParseException e) {
+                throw new DataModelException(e.getMessage(), e);
+            }
+            finally {
+                data = null;
+            }
+            return builder.reap();
+        }
+    }
+
+    /**
+     * Minimal reader of tar archives (POSIX ustar and GNU long names).
+     */
+    static class TarReader
+    {
+        private static final int BLOCK = 512;
+        private InputStream in;
+        private byte[] header = new byte[BLOCK];
+        private long entrySize;
+        private long remaining;     // in current entry
+
+        TarReader(InputStream in)
+        {
+            this.in = in;
+        }
+
+        // returns the name of the next regular file, or null at end
+        String nextEntry()
+            throws IOException
+        {
+            String longName = null;
+            for (;;) {
+                if (!readBlock(header) || header[0] == 0)
+                    return null;
+                entrySize = octal(header, 124, 12);
+                remaining = entrySize;
+                byte type = header[156];
+                if (type == 'L') {  // GNU long name for the next entry
+                    byte[] name = readFully(entryStream(), entrySize);
+                    skipEntry();
+                    longName = string(name, 0, name.length);
+                    continue;
+                }
+                if (type == 'x') {  // POSIX extended header
+                    byte[] pax = readFully(entryStream(), entrySize);
+                    skipEntry();
+                    String path = paxPath(string(pax, 0, pax.length));
+                    if (path != null)
+                        longName = path;
+                    continue;
+                }
+                if (type != '0' && type != 0) {  // not a regular file
+                    skipEntry();
+                    longName = null;
+                    continue;
+                }
+                if (longName != null)
+                    return longName;
+                String name = string(header, 0, 100);
+                if (header[257] == 'u' && header[345] != 0)  // ustar prefix
+                    name = string(header, 345, 155) + "/" + name;
+                return name;
+            }
+        }
+
+        long entrySize()
+        {
+            return entrySize;
+        }
+
+        InputStream entryStream()
+        {
+            return new InputStream() {
+                public int read()
+                    throws IOException
+                {
+                    byte[] b = new byte[1];
+                    return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xff);
+                }
+
+                public int read(byte[] b, int off, int len)
+                    throws IOException
+                {
+                    if (remaining <= 0)
+                        return -1;
+                    int n = in.read(b, off, (int) Math.min(len, remaining));
+                    if (n < 0)
+                        throw new EOFException("truncated tar archive");
+                    remaining -= n;
+                    return n;
+                }
+            };
+        }
+
+        // skips the rest of the current entry and its padding
+        void skipEntry()
+            throws IOException
+        {
+            long skip = remaining + (BLOCK - entrySize % BLOCK) % BLOCK;
+            remaining = 0;
+            entrySize = 0;
+            byte[] buffer = new byte[BLOCK];
+            while (skip > 0) {
+                int n = in.read(buffer, 0, (int) Math.min(BLOCK, skip));
+                if (n < 0)
+                    throw new EOFException("truncated tar archive");
+                skip -= n;
+            }
+        }
+
+        private boolean readBlock(byte[] block)
+            throws IOException
+        {
+            int off = 0;
+            while (off < BLOCK) {
+                int n = in.read(block, off, BLOCK - off);
+                if (n < 0) {
+                    if (off == 0)
+                        return false;
+                    throw new EOFException("truncated tar archive");
+                }
+                off += n;
+            }
+            return true;
+        }
+
+        // records are "<length> <key>=<value>\n"
+        private static String paxPath(String records)
+        {
+            for (String record : records.split("\n")) {
+                int sp = record.indexOf(' ');
+                if (record.startsWith("path=", sp + 1))
+                    return record.substring(sp + 6);
+            }
+            return null;
+        }
+
+        private static long octal(byte[] b, int off, int len)
+        {
+            long value = 0;
+            for (int i = off; i < off + len; i++) {
+                byte c = b[i];
+                if (c >= '0' && c <= '7')
+                    value = value * 8 + (c - '0');
+                else if (c == 0 || (c == ' ' && value > 0))
+                    break;
+            }
+            return value;
+        }
+
+        private static String string(byte[] b, int off, int len)
+        {
+            int end = off;
+            while (end < off + len && b[end] != 0)
+                ++end;
+            try {
+                return new String(b, off, end - off, "UTF-8");
+            }
+            catch (java.io.UnsupportedEncodingException e) {
+                return new String(b, off, end - off);
+            }
+        }
+    }
+
+    // the parser of the Library closes its input
+    private static class UnclosableStream extends FilterInputStream
+    {
+        long count;     // bytes read
+
+        UnclosableStream(InputStream in)
+        {
+            super(in);
+        }
+
+        public int read()
+            throws IOException
+        {
+            int b = in.read();
+            if (b >= 0)
+                ++count;
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len)
+            throws IOException
+        {
+            int n = in.read(b, off, len);
+            if (n > 0)
+                count += n;
+            return n;
+        }
+
+        public long skip(long n)
+            throws IOException
+        {
+            long skipped = in.skip(n);
+            count += skipped;
+            return skipped;
+        }
+
+        public void close()
+        {
+        }
+    }
+}
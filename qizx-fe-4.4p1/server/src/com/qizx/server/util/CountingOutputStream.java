@@ -0,0 +1,46 @@
+/*
+ *    Qizx Free_Engine-4.4p1
+ *
+ *    This code is part of the Qizx application components
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.server.util;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Counts bytes written to an output stream, for example to flush a
+ * streamed response every N bytes.
+ */
+public class CountingOutputStream extends FilterOutputStream
+{
+    private long count;
+
+    public CountingOutputStream(OutputStream out)
+    {
+        super(out);
+    }
+
+    public long getCount()
+    {
+        return count;
+    }
+
+    public void write(int b)
+        throws IOException
+    {
+        out.write(b);
+        ++count;
+    }
+
+    public void write(byte[] b, int off, int len)
+        throws IOException
+    {
+        out.write(b, off, len);
+        count += len;
+    }
+}
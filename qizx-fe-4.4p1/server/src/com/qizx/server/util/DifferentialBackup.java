@@ -0,0 +1,467 @@
+/*
+ *    Qizx Free_Engine-4.4p1
+ *
+ *    This code is part of the Qizx application components
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.server.util;
+
+import com.qizx.api.DataModelException;
+import com.qizx.api.LibraryException;
+import com.qizx.api.LibraryManager;
+import com.qizx.api.LibraryProgressObserver;
+import com.qizx.api.util.backup.BackupSession;
+import com.qizx.api.util.backup.BackupTarget;
+import com.qizx.util.basic.IntSet;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Incremental backup of a Library into a backup Library, copying only what
+ * changed since the previous backup.
+ * <p>
+ * MicroFiles are compared by "pages" of identifiers: the digests of pages of
+ * the source and of the target are compared first, and only the identifiers
+ * of pages that differ are listed. Since a modified MicroFile gets a new
+ * identifier, new identifiers are copied and missing ones deleted. Index
+ * segments are compared by digest. The size of what is to be copied is known
+ * before copying starts, for progress reporting.
+ * <p>
+ * Blocks are read from the source by the calling thread and written to the
+ * target by another thread, through buffers of the pool of the
+ * {@link BackupExecutor}, which also limits the throughput. Blocks are copied
+ * as stored, hence compressed if the source is compressed.
+ */
+public class DifferentialBackup
+{
+    private static final int PAGE_SIZE = 4096;
+    private static final int SEGMENT_BLOCK_SIZE = 4096;
+    // always copied last, as done by the engine's incremental backup
+    private static final int[] ROOT_FILES = { 1, 4 };
+    private static final int[] DATASETS = {
+        BackupSession.DOCS, BackupSession.METADOCS
+    };
+    private static final long PROGRESS_STEP = 1048576;
+    private static final int QUEUE_SIZE = 1024;
+
+    private final BackupSession source;
+    private final BackupTarget target;
+    private final BackupExecutor executor;
+    private final LibraryProgressObserver observer;
+
+    private int pageCount;
+    private int changedPages;
+    private int copiedFiles;
+    private int deletedFiles;
+    private int copiedSegments;
+    private int deletedSegments;
+    private long jobSize;
+    private long copiedBytes;
+    private long nextProgress = PROGRESS_STEP;
+    private long duration;
+
+    // operations on the target, performed by the writer thread:
+    private final BlockingQueue<Op> queue = new LinkedBlockingQueue<Op>(QUEUE_SIZE);
+    private volatile Throwable writeError;
+
+    /**
+     * @param executor provides buffers and throttling
+     * @param observer if not null, receives the fraction of data copied
+     */
+    public DifferentialBackup(BackupSession source, BackupTarget target,
+                              BackupExecutor executor,
+                              LibraryProgressObserver observer)
+    {
+        this.source = source;
+        this.target = target;
+        this.executor = executor;
+        this.observer = observer;
+    }
+
+    /**
+     * Performs an incremental backup of a Library into a directory. A backup
+     * Library is created in the directory if it does not exist yet, or if its
+     * storage version is not that of the Library.
+     * @return the backup performed, for its figures
+     */
+    public static DifferentialBackup backup(LibraryManager engine,
+                                            String libName, File location,
+                                            BackupExecutor executor,
+                                            LibraryProgressObserver observer)
+        throws DataModelException, IOException, InterruptedException
+    {
+        if (!location.exists() && !location.mkdirs())
+            throw new DataModelException("cannot create backup Library in "
+                                         + location);
+        BackupSession source = engine.openForBackup(libName);
+        try {
+            BackupTarget target = engine.createBackup(location, libName,
+                                                      source.getVersion(), true);
+            // the backup is marked as up to date only if complete
+            long commitId = target.getCommitId();
+            try {
+                DifferentialBackup backup =
+                    new DifferentialBackup(source, target, executor, observer);
+                backup.run();
+                commitId = source.getCommitId();
+                return backup;
+            }
+            finally {
+                target.close(commitId);
+            }
+        }
+        finally {
+            source.close();
+        }
+    }
+
+    /**
+     * Compares the source and the target, then copies the differences.
+     */
+    public void run()
+        throws LibraryException, InterruptedException
+    {
+        long t0 = System.currentTimeMillis();
+        ArrayList<IntSet[]> pages = compareFiles();
+        long[][] sourceSegments = new long[DATASETS.length][];
+        long[][] targetSegments = new long[DATASETS.length][];
+        for (int d = 0; d < DATASETS.length; d++) {
+            sourceSegments[d] = source.getSegments(DATASETS[d]);
+            targetSegments[d] = target.getSegments(DATASETS[d]);
+            compareSegments(d, sourceSegments[d], targetSegments[d], false);
+        }
+
+        Writer writer = new Writer();
+        writer.start();
+        boolean ended = false;
+        try {
+            for (IntSet[] page : pages) {
+                IntSet toCopy = page[0], toDelete = page[1];
+                for (int fid = -1; toCopy != null
+                                   && (fid = toCopy.getNext(fid + 1)) > 0; )
+                    copyFile(fid);
+                for (int fid = -1; toDelete != null
+                                   && (fid = toDelete.getNext(fid + 1)) > 0; ) {
+                    put(new Op(Op.DELETE_FILE, fid, 0));
+                    ++deletedFiles;
+                }
+                put(new Op(Op.COMMIT, 0, 0));
+            }
+            for (int d = 0; d < DATASETS.length; d++)
+                compareSegments(d, sourceSegments[d], targetSegments[d], true);
+            for (int fid : ROOT_FILES)
+                copyFile(fid);
+            put(new Op(Op.COMMIT, 0, 0));
+            put(new Op(Op.END, 0, 0));
+            ended = true;
+            writer.join();
+        }
+        finally {
+            if (!ended) {
+                writer.interrupt();
+                writer.join();
+            }
+        }
+        if (writeError instanceof LibraryException)
+            throw (LibraryException) writeError;
+        if (writeError != null)
+            throw new LibraryException("backup failure: " + writeError,
+                                       writeError);
+        duration = System.currentTimeMillis() - t0;
+        if (observer != null)
+            observer.backupProgress(1);
+    }
+
+    /**
+     * Lists MicroFiles to copy and to delete, for each page that differs.
+     */
+    private ArrayList<IntSet[]> compareFiles()
+        throws LibraryException
+    {
+        long[] sourceDigests = source.getPageDigests(PAGE_SIZE);
+        long[] targetDigests = target.getPageDigests(PAGE_SIZE);
+        pageCount = Math.max(sourceDigests.length, targetDigests.length);
+        ArrayList<IntSet[]> pages = new ArrayList<IntSet[]>();
+        for (int p = 0; p < pageCount; p++) {
+            boolean inSource = p < sourceDigests.length;
+            boolean inTarget = p < targetDigests.length;
+            if (inSource && inTarget && sourceDigests[p] == targetDigests[p])
+                continue;
+            IntSet sourceIds = inSource?
+                source.getFileIds(p * PAGE_SIZE, PAGE_SIZE) : null;
+            IntSet targetIds = inTarget?
+                target.getFileIds(p * PAGE_SIZE, PAGE_SIZE) : null;
+            // null if the page exists on one side only
+            IntSet toCopy =
+                inSource? IntSet.differenceOf(sourceIds, targetIds) : null;
+            IntSet toDelete =
+                inTarget? IntSet.differenceOf(targetIds, sourceIds) : null;
+            if (toCopy != null)
+                jobSize += source.getMicroFilesSize(toCopy);
+            pages.add(new IntSet[] { toCopy, toDelete });
+            ++changedPages;
+        }
+        return pages;
+    }
+
+    /**
+     * Compares segments (triplets id, size, digest sorted by id) and either
+     * accounts for the size to copy or performs the copy.
+     */
+    private void compareSegments(int d, long[] sourceSegs, long[] targetSegs,
+                                 boolean copy)
+        throws LibraryException, InterruptedException
+    {
+        int dataset = DATASETS[d];
+        int s = 0, t = 0;
+        while (s < sourceSegs.length || t < targetSegs.length) {
+            long sid = (s < sourceSegs.length)? sourceSegs[s] : Long.MAX_VALUE;
+            long tid = (t < targetSegs.length)? targetSegs[t] : Long.MAX_VALUE;
+            if (sid == tid) {
+                if (sourceSegs[s + 2] != targetSegs[t + 2])
+                    copySegment(dataset, (int) sid, sourceSegs[s + 1], copy);
+                s += 3;
+                t += 3;
+            }
+            else if (sid < tid) {
+                copySegment(dataset, (int) sid, sourceSegs[s + 1], copy);
+                s += 3;
+            }
+            else {
+                if (copy) {
+                    put(new Op(Op.DELETE_SEGMENT, dataset, (int) tid));
+                    ++deletedSegments;
+                }
+                t += 3;
+            }
+        }
+    }
+
+    private void copyFile(int fid)
+        throws LibraryException, InterruptedException
+    {
+        long blocks = source.beginMicroFile(fid);
+        int blockSize = source.getBlockSize();
+        Op begin = new Op(Op.BEGIN_FILE, fid, source.getCompression());
+        begin.size = blockSize;
+        put(begin);
+        copyBlocks(blocks, blockSize);
+        put(new Op(Op.END_FILE, fid, 0));
+        ++copiedFiles;
+    }
+
+    private void copySegment(int dataset, int segId, long size, boolean copy)
+        throws LibraryException, InterruptedException
+    {
+        if (!copy) {
+            jobSize += size;
+            return;
+        }
+        long blocks = source.beginSegment(dataset, segId);
+        put(new Op(Op.BEGIN_SEGMENT, dataset, segId));
+        copyBlocks(blocks, SEGMENT_BLOCK_SIZE);
+        source.endSegment(dataset);
+        put(new Op(Op.END_SEGMENT, dataset, segId));
+        ++copiedSegments;
+    }
+
+    private void copyBlocks(long blocks, int blockSize)
+        throws LibraryException, InterruptedException
+    {
+        for (long b = 0; b < blocks; b++) {
+            byte[] buffer = executor.takeBuffer(blockSize);
+            int size;
+            try {
+                size = source.getBlockBytes(buffer);
+            }
+            catch (LibraryException e) {
+                executor.releaseBuffer(buffer);
+                throw e;
+            }
+            if (size <= 0) {
+                executor.releaseBuffer(buffer);
+                break;
+            }
+            Op block = new Op(Op.BLOCK, 0, 0);
+            block.buffer = buffer;
+            block.size = size;
+            put(block);
+            executor.throttle(size);
+            countCopied(size);
+        }
+    }
+
+    private void countCopied(int size)
+    {
+        copiedBytes += size;
+        if (copiedBytes >= nextProgress) {
+            nextProgress += PROGRESS_STEP;
+            if (observer != null && jobSize > 0)
+                observer.backupProgress(Math.min(copiedBytes / (double) jobSize,
+                                                 0.99));
+        }
+    }
+
+    private void put(Op op)
+        throws LibraryException, InterruptedException
+    {
+        if (writeError != null) {
+            if (op.buffer != null)
+                executor.releaseBuffer(op.buffer);
+            throw new LibraryException("backup failure: " + writeError,
+                                       writeError);
+        }
+        queue.put(op);
+    }
+
+    /**
+     * Number of pages of MicroFile identifiers.
+     */
+    public int getPageCount()
+    {
+        return pageCount;
+    }
+
+    /**
+     * Number of pages of MicroFile identifiers that differed.
+     */
+    public int getChangedPages()
+    {
+        return changedPages;
+    }
+
+    public int getCopiedFiles()
+    {
+        return copiedFiles;
+    }
+
+    public int getDeletedFiles()
+    {
+        return deletedFiles;
+    }
+
+    public int getCopiedSegments()
+    {
+        return copiedSegments;
+    }
+
+    public int getDeletedSegments()
+    {
+        return deletedSegments;
+    }
+
+    /**
+     * Number of bytes read from the source and written to the target.
+     */
+    public long getCopiedBytes()
+    {
+        return copiedBytes;
+    }
+
+    public String toString()
+    {
+        return changedPages + "/" + pageCount + " pages changed, "
+               + copiedFiles + " files copied, " + deletedFiles + " deleted, "
+               + copiedSegments + " segments copied, "
+               + deletedSegments + " deleted, "
+               + copiedBytes + " bytes in " + duration + " ms";
+    }
+
+    private static class Op
+    {
+        static final int BEGIN_FILE = 1, END_FILE = 2, DELETE_FILE = 3,
+            BEGIN_SEGMENT = 4, END_SEGMENT = 5, DELETE_SEGMENT = 6,
+            BLOCK = 7, COMMIT = 8, END = 9;
+
+        final int kind;
+        final int arg1;
+        final int arg2;
+        byte[] buffer;
+        int size;
+
+        Op(int kind, int arg1, int arg2)
+        {
+            this.kind = kind;
+            this.arg1 = arg1;
+            this.arg2 = arg2;
+        }
+    }
+
+    /**
+     * Performs operations on the target. After an error, operations are
+     * skipped until the end, so that the reader is never blocked.
+     */
+    private class Writer extends Thread
+    {
+        Writer()
+        {
+            super(Thread.currentThread().getName() + " writer");
+            setDaemon(true);
+        }
+
+        public void run()
+        {
+            try {
+                for (;;) {
+                    Op op = queue.take();
+                    try {
+                        if (writeError == null)
+                            perform(op);
+                    }
+                    catch (Throwable e) {
+                        writeError = e;
+                    }
+                    finally {
+                        if (op.buffer != null)
+                            executor.releaseBuffer(op.buffer);
+                    }
+                    if (op.kind == Op.END)
+                        break;
+                }
+            }
+            catch (InterruptedException e) {
+                // aborted by the reader: release remaining buffers
+                for (Op op; (op = queue.poll()) != null; )
+                    if (op.buffer != null)
+                        executor.releaseBuffer(op.buffer);
+            }
+        }
+
+        private void perform(Op op)
+            throws LibraryException
+        {
+            switch (op.kind) {
+            case Op.BEGIN_FILE:
+                target.beginMicroFile(op.arg1, op.arg2, op.size);
+                break;
+            case Op.END_FILE:
+                target.endMicroFile();
+                break;
+            case Op.DELETE_FILE:
+                target.deleteMicroFile(op.arg1);
+                break;
+            case Op.BEGIN_SEGMENT:
+                target.beginSegment(op.arg1, op.arg2);
+                break;
+            case Op.END_SEGMENT:
+                target.endSegment(op.arg1, op.arg2);
+                break;
+            case Op.DELETE_SEGMENT:
+                target.deleteSegment(op.arg1, op.arg2);
+                break;
+            case Op.BLOCK:
+                target.putBlock(op.buffer, op.size);
+                break;
+            case Op.COMMIT:
+                target.commit();
+                break;
+            }
+        }
+    }
+}
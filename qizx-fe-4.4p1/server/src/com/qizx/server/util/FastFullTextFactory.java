@@ -0,0 +1,27 @@
+/*
+ *    Qizx Free_Engine-4.4p1
+ *
+ *    This code is part of the Qizx application components
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.server.util;
+
+import com.qizx.api.fulltext.TextTokenizer;
+import com.qizx.api.util.fulltext.DefaultFullTextFactory;
+
+/**
+ * Default full-text factory of the engine, with a {@link FastTextTokenizer}
+ * instead of the default tokenizer.
+ * <p>
+ * The engine instantiates a new factory of the same class for each Library
+ * session: this class must keep a public constructor without arguments.
+ */
+public class FastFullTextFactory extends DefaultFullTextFactory
+{
+    public TextTokenizer getTokenizer(String languageCode)
+    {
+        return new FastTextTokenizer();
+    }
+}
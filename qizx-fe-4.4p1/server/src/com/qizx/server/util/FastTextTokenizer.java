@@ -0,0 +1,308 @@
+/*
+ *    Qizx Free_Engine-4.4p1
+ *
+ *    This code is part of the Qizx application components
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.server.util;
+
+import com.qizx.api.fulltext.TextTokenizer;
+
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Text Tokenizer producing exactly the same tokens as the engine's
+ * DefaultTextTokenizer, but faster on large texts.
+ * <p>
+ * Characters are classified by a table precomputed for the whole BMP, instead
+ * of calls to Character.isLetter and Character.isDigit: ASCII characters are
+ * in the first entries of the table, which stay in cache. Special characters
+ * are tested with a bit mask for ASCII and a short array otherwise.
+ * <p>
+ * Strings are copied into a buffer owned and reused by the tokenizer, rather
+ * than into a new array for each text. Tokens can be read without allocation
+ * through {@link #getTokenOffset}, {@link #getTokenLength} and
+ * {@link #copyTokenTo}; {@link #getTokenChars} still returns a new array,
+ * because the engine normalizes the returned words in place.
+ * <p>
+ * Since indexes are built and queried with the same tokenizer, any difference
+ * with DefaultTextTokenizer would make words unfindable: the logic of
+ * tokenization, including wildcard parsing, is deliberately kept identical.
+ */
+public class FastTextTokenizer
+    implements TextTokenizer
+{
+    private static final byte LETTER = 1;
+    private static final byte DIGIT = 2;
+
+    // class of each char, from Character.isLetter and isDigit (else 0)
+    private static final byte[] CHAR_CLASS = new byte[Character.MAX_VALUE + 1];
+    static {
+        for (int c = 0; c <= Character.MAX_VALUE; c++) {
+            if (Character.isLetter((char) c))
+                CHAR_CLASS[c] = LETTER;
+            else if (Character.isDigit((char) c))
+                CHAR_CLASS[c] = DIGIT;
+        }
+    }
+
+    private static final Pattern RANGE_PATTERN = Pattern.compile("\\d+,\\d+?");
+
+    private char[] txt;
+    private int txtLength;
+    private int ptr;
+    private int wordStart;
+    // buffer owned by this tokenizer, reused for CharSequences
+    private char[] buffer;
+
+    private boolean parseSpecialChars;
+    private boolean acceptWildCards;
+    private int maxDigit = 3;   // word rejected if contains more than N digits
+
+    private boolean gotWildCard;
+    // special chars: mask for ASCII, array for others
+    private long specialLow;
+    private long specialHigh;
+    private char[] specialChars;
+    private int specialCount;
+
+    public void start(char[] text, int length)
+    {
+        txt = text;
+        txtLength = length;
+        ptr = 0;
+    }
+
+    public void start(CharSequence text)
+    {
+        int len = text.length();
+        if (buffer == null || buffer.length < len)
+            buffer = new char[Math.max(len, 256)];
+        if (text instanceof String)
+            ((String) text).getChars(0, len, buffer, 0);
+        else if (text instanceof StringBuilder)
+            ((StringBuilder) text).getChars(0, len, buffer, 0);
+        else if (text instanceof StringBuffer)
+            ((StringBuffer) text).getChars(0, len, buffer, 0);
+        else {
+            for (int i = 0; i < len; i++)
+                buffer[i] = text.charAt(i);
+        }
+        txt = buffer;
+        txtLength = len;
+        ptr = 0;
+    }
+
+    public void copyTokenTo(char[] array, int start)
+    {
+        int tlen = ptr - wordStart;
+        if (tlen > 0)
+            System.arraycopy(txt, wordStart, array, start, tlen);
+    }
+
+    public char[] getTokenChars()
+    {
+        if (ptr > txtLength)
+            ptr = txtLength;
+        int tlen = ptr - wordStart;
+        if (tlen <= 0)
+            return null;
+        char[] word = new char[tlen];
+        System.arraycopy(txt, wordStart, word, 0, tlen);
+        return word;
+    }
+
+    public int getTokenOffset()
+    {
+        return wordStart;
+    }
+
+    public int getTokenLength()
+    {
+        return ptr - wordStart;
+    }
+
+    public boolean isAcceptingWildcards()
+    {
+        return acceptWildCards;
+    }
+
+    public void setAcceptingWildcards(boolean acceptingWildcards)
+    {
+        acceptWildCards = acceptingWildcards;
+    }
+
+    public boolean isParsingSpecialChars()
+    {
+        return parseSpecialChars;
+    }
+
+    public void setParsingSpecialChars(boolean parsingSpecialChars)
+    {
+        parseSpecialChars = parsingSpecialChars;
+    }
+
+    public void defineSpecialChar(char ch)
+    {
+        if (ch < 64)
+            specialLow |= 1L << ch;
+        else if (ch < 128)
+            specialHigh |= 1L << (ch - 64);
+        else if (!isSpecial(ch)) {
+            if (specialChars == null)
+                specialChars = new char[4];
+            else if (specialCount == specialChars.length) {
+                char[] old = specialChars;
+                specialChars = new char[2 * old.length];
+                System.arraycopy(old, 0, specialChars, 0, specialCount);
+            }
+            specialChars[specialCount++] = ch;
+        }
+    }
+
+    public boolean gotWildcard()
+    {
+        return gotWildCard;
+    }
+
+    public int nextToken()
+    {
+        gotWildCard = false;
+        final char[] txt = this.txt;
+        final int txtLength = this.txtLength;
+        wordStart = ptr;
+        for (; ptr < txtLength; ptr++)
+        {
+            wordStart = ptr;
+            char ch = txt[ptr];
+            byte cl = CHAR_CLASS[ch];
+
+            if (cl == LETTER || (ch == '.' && testWildcard(ch))) {
+                // begin word on a letter:
+                // break on dash and quote/apostrophe
+                int digitCnt = 0;
+                ++ptr;
+                if (!acceptWildCards) {
+                    // fast path: only letters and digits
+                    for (; ptr < txtLength; ptr++) {
+                        cl = CHAR_CLASS[txt[ptr]];
+                        if (cl == DIGIT)
+                            ++digitCnt;
+                        else if (cl != LETTER)
+                            break;
+                    }
+                }
+                else {
+                    for (; ptr < txtLength; ) {
+                        ch = txt[ptr];
+                        cl = CHAR_CLASS[ch];
+                        if (ch == '\\')
+                            ptr += 2; // swallow both
+                        else if (cl == LETTER)
+                            ++ptr;
+                        else if (cl == DIGIT) {
+                            ++ptr;
+                            ++digitCnt;
+                        }
+                        else if (testWildcard(ch))
+                            ++ptr;
+                        else
+                            break;
+                    }
+                }
+                if (digitCnt > maxDigit)
+                    continue;
+                return WORD;
+            }
+            else if (cl == DIGIT) {
+                ++ptr;
+                for (; ptr < txtLength; ptr++) {
+                    ch = txt[ptr];
+                    if (CHAR_CLASS[ch] != DIGIT && !testWildcard(ch))
+                        break;
+                }
+                return WORD;
+            }
+            else if (parseSpecialChars && isSpecial(ch)) {
+                ++ptr;
+                return ch;
+            }
+            else if (ch == '\\' && acceptWildCards) {
+                ++ptr;
+            }
+            // else throw away
+        }
+        wordStart = ptr;
+        return END;
+    }
+
+    private boolean isSpecial(char ch)
+    {
+        if (ch < 64)
+            return (specialLow & (1L << ch)) != 0;
+        if (ch < 128)
+            return (specialHigh & (1L << (ch - 64))) != 0;
+        for (int i = specialCount; --i >= 0; )
+            if (specialChars[i] == ch)
+                return true;
+        return false;
+    }
+
+    /**
+     * Test whether a wildchar sequence lies ahead. On return the current
+     * position is on the last character of the sequence.
+     * @param c current char (at current position ptr)
+     * @return true if a wildchar sequence has been recognized.
+     */
+    protected boolean testWildcard(char c)
+    {
+        if (!acceptWildCards)
+            return false;
+        if (c != '.')
+            return false;
+        char ch2 = charAhead(1);
+        if (ch2 == '?' || ch2 == '+' || ch2 == '*')
+            ptr += 2; // ptr is on occ indicator
+        else if (ch2 == '{') {
+            int cp = ptr + 1;
+            for (; cp < txtLength && txt[cp] != '}'; )
+                ++cp;
+            if (cp >= txtLength || txt[cp] != '}') {
+                ptr = cp;
+                // the text only, not the whole reused buffer
+                int length = (txt == buffer)? txtLength : txt.length;
+                throw new PatternSyntaxException("missing closing '}'",
+                                                 new String(txt, 0, length),
+                                                 txtLength);
+            }
+            String rex = new String(txt, ptr + 2, cp - ptr - 2);
+            if (!RANGE_PATTERN.matcher(rex).matches())
+                throw new PatternSyntaxException("invalid wildcard repeat range",
+                                                 rex, 0);
+            ptr = cp;
+        }
+        else
+            ++ptr;
+        gotWildCard = true;
+        return true;
+    }
+
+    protected char charAhead(int offset)
+    {
+        int pos = ptr + offset;
+        return (pos < 0 || pos >= txtLength)? (char) 0 : txt[pos];
+    }
+
+    public int getDigitMax()
+    {
+        return maxDigit;
+    }
+
+    public void setDigitMax(int max)
+    {
+        maxDigit = max;
+    }
+}
@@ -0,0 +1,544 @@
+/*
+ *    Qizx Free_Engine-4.4p1
+ *
+ *    This code is part of the Qizx application components
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.server.util;
+
+import com.qizx.api.DataModelException;
+import com.qizx.api.Item;
+import com.qizx.api.ItemType;
+import com.qizx.api.Node;
+import com.qizx.api.QName;
+import com.qizx.api.QizxException;
+import com.qizx.util.json.JSONBuilder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+
+/**
+ * Streams XQuery items as JSON, directly from the data model (no intermediate
+ * string or DOM).
+ * <p>
+ * Mapping of items:
+ * <ul>
+ * <li>Numeric and boolean atomic values are JSON numbers and booleans; other
+ * atomic values are strings.
+ * <li>Elements in the namespace of {@link JSONBuilder} (as produced by
+ * x:parse-json) are converted to native JSON maps, arrays and values.
+ * <li>Other elements use the JsonML convention:
+ * <code>["name", {"attr": "value"...}, children...]</code>, text nodes are
+ * strings, comments and processing-instructions are dropped.
+ * <li>A document node is represented by its element children (the document
+ * element in general), or by an array if it has several.
+ * <li>An attribute node is a map <code>{"name": "value"}</code>.
+ * </ul>
+ * Commas are inserted automatically between values of a same map or array,
+ * and between top-level values when not in line mode. In line mode
+ * (NDJSON), each top-level value must be followed by {@link #newLine()}.
+ * <p>
+ * A writer on an OutputStream encodes in UTF-8 through its own buffer, and
+ * can be reused for another output with {@link #setOutput(OutputStream)}.
+ */
+public class JSONItemWriter
+{
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private Writer out;
+    // per nesting level: true if a value has already been put
+    private boolean[] hasValue = new boolean[16];
+    private int depth;
+    private boolean afterKey;
+
+    public JSONItemWriter(OutputStream output)
+    {
+        this(new UTF8Output(output));
+    }
+
+    public JSONItemWriter(Writer out)
+    {
+        this.out = out;
+    }
+
+    /**
+     * Redirects the writer to another output, and resets its state. Pending
+     * output should have been flushed.
+     */
+    public void setOutput(OutputStream output)
+    {
+        if (out instanceof UTF8Output)
+            ((UTF8Output) out).setOutput(output);
+        else
+            out = new UTF8Output(output);
+        depth = 0;
+        hasValue[0] = false;
+        afterKey = false;
+    }
+
+    public void flush()
+        throws IOException
+    {
+        out.flush();
+    }
+
+    /**
+     * Terminates a top-level value, in NDJSON mode.
+     */
+    public void newLine()
+        throws IOException
+    {
+        out.write('\n');
+        hasValue[0] = false;
+    }
+
+    public void putMapStart()
+        throws IOException
+    {
+        startValue();
+        out.write('{');
+        push();
+    }
+
+    public void putMapEnd()
+        throws IOException
+    {
+        --depth;
+        out.write('}');
+    }
+
+    public void putKey(String key)
+        throws IOException
+    {
+        startValue();
+        putQuoted(key);
+        out.write(':');
+        afterKey = true;
+    }
+
+    public void putArrayStart()
+        throws IOException
+    {
+        startValue();
+        out.write('[');
+        push();
+    }
+
+    public void putArrayEnd()
+        throws IOException
+    {
+        --depth;
+        out.write(']');
+    }
+
+    public void putString(String value)
+        throws IOException
+    {
+        startValue();
+        putQuoted(value);
+    }
+
+    public void putNumber(long value)
+        throws IOException
+    {
+        startValue();
+        out.write(Long.toString(value));
+    }
+
+    public void putNumber(double value)
+        throws IOException
+    {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            putString(Double.toString(value)); // not representable
+            return;
+        }
+        startValue();
+        if (value == Math.rint(value) && Math.abs(value) < 1e15)
+            out.write(Long.toString((long) value));
+        else
+            out.write(Double.toString(value));
+    }
+
+    public void putBoolean(boolean value)
+        throws IOException
+    {
+        startValue();
+        out.write(value? "true" : "false");
+    }
+
+    public void putNull()
+        throws IOException
+    {
+        startValue();
+        out.write("null");
+    }
+
+    /**
+     * Puts a property value of a Library member: a Java object or a Node.
+     */
+    public void putObject(Object value)
+        throws IOException, DataModelException
+    {
+        if (value == null)
+            putNull();
+        else if (value instanceof Node)
+            putNode((Node) value);
+        else if (value instanceof Boolean)
+            putBoolean(((Boolean) value).booleanValue());
+        else if (value instanceof Long || value instanceof Integer)
+            putNumber(((Number) value).longValue());
+        else if (value instanceof Number)
+            putNumber(((Number) value).doubleValue());
+        else if (value instanceof java.util.Date)
+            putString(new com.qizx.api.util.time.DateTime((java.util.Date) value, 0)
+                          .toString());
+        else
+            putString(value.toString());
+    }
+
+    /**
+     * Puts the current item of a sequence, or any item.
+     */
+    public void putItem(Item item)
+        throws IOException, QizxException
+    {
+        if (item.isNode()) {
+            putNode(item.getNode());
+            return;
+        }
+        ItemType type = item.getType();
+        String typeName = (type == null)? null : type.getShortName();
+        if ("boolean".equals(typeName))
+            putBoolean(item.getBoolean());
+        else if ("integer".equals(typeName) || isIntegerType(typeName))
+            putNumber(item.getInteger());
+        else if ("double".equals(typeName) || "float".equals(typeName))
+            putNumber(item.getDouble());
+        else if ("decimal".equals(typeName)) {
+            startValue();
+            out.write(item.getDecimal().toPlainString());
+        }
+        else
+            putString(item.getString());
+    }
+
+    public void putNode(Node node)
+        throws IOException, DataModelException
+    {
+        switch (node.getNodeNature()) {
+        case Node.DOCUMENT:
+            putDocument(node);
+            break;
+        case Node.ELEMENT:
+            if (isJSONElement(node))
+                putJSONElement(node);
+            else
+                putElement(node);
+            break;
+        case Node.ATTRIBUTE:
+            putMapStart();
+            putKey(qualifiedName(node, node.getNodeName()));
+            putString(node.getStringValue());
+            putMapEnd();
+            break;
+        case Node.TEXT:
+        default:
+            // comments, PI, namespaces: string value
+            putString(node.getStringValue());
+            break;
+        }
+    }
+
+    private void putDocument(Node doc)
+        throws IOException, DataModelException
+    {
+        int count = 0;
+        for (Node kid = doc.getFirstChild(); kid != null; kid = kid.getNextSibling())
+            if (kid.getNodeNature() == Node.ELEMENT)
+                ++count;
+        if (count != 1)
+            putArrayStart();
+        for (Node kid = doc.getFirstChild(); kid != null; kid = kid.getNextSibling())
+            if (kid.getNodeNature() == Node.ELEMENT)
+                putNode(kid);
+        if (count != 1)
+            putArrayEnd();
+    }
+
+    // JsonML
+    private void putElement(Node element)
+        throws IOException, DataModelException
+    {
+        putArrayStart();
+        putString(qualifiedName(element, element.getNodeName()));
+        Node[] attrs = element.getAttributes();
+        if (attrs != null && attrs.length > 0) {
+            putMapStart();
+            for (int a = 0; a < attrs.length; a++) {
+                putKey(qualifiedName(element, attrs[a].getNodeName()));
+                putString(attrs[a].getStringValue());
+            }
+            putMapEnd();
+        }
+        for (Node kid = element.getFirstChild(); kid != null;
+             kid = kid.getNextSibling())
+        {
+            int nature = kid.getNodeNature();
+            if (nature == Node.ELEMENT || nature == Node.TEXT)
+                putNode(kid);
+        }
+        putArrayEnd();
+    }
+
+    private void putJSONElement(Node node)
+        throws IOException, DataModelException
+    {
+        QName name = node.getNodeName();
+        if (JSONBuilder.E_MAP.equals(name)) {
+            putMapStart();
+            for (Node pair = node.getFirstChild(); pair != null;
+                 pair = pair.getNextSibling())
+            {
+                if (pair.getNodeNature() != Node.ELEMENT)
+                    continue;
+                Node key = pair.getAttribute(JSONBuilder.AT_NAME);
+                putKey(key == null? "" : key.getStringValue());
+                Node value = firstElement(pair);
+                if (value == null)
+                    putNull();
+                else
+                    putNode(value);
+            }
+            putMapEnd();
+        }
+        else if (JSONBuilder.E_ARRAY.equals(name)) {
+            putArrayStart();
+            for (Node kid = node.getFirstChild(); kid != null;
+                 kid = kid.getNextSibling())
+                if (kid.getNodeNature() == Node.ELEMENT)
+                    putNode(kid);
+            putArrayEnd();
+        }
+        else if (JSONBuilder.E_NUMBER.equals(name)) {
+            String value = node.getStringValue().trim();
+            try {
+                putNumber(Double.parseDouble(value));
+            }
+            catch (NumberFormatException e) {
+                putString(value);
+            }
+        }
+        else if (JSONBuilder.E_BOOL.equals(name))
+            putBoolean("true".equals(node.getStringValue().trim()));
+        else if (JSONBuilder.E_NULL.equals(name))
+            putNull();
+        else
+            putString(node.getStringValue());
+    }
+
+    private static Node firstElement(Node node)
+        throws DataModelException
+    {
+        for (Node kid = node.getFirstChild(); kid != null; kid = kid.getNextSibling())
+            if (kid.getNodeNature() == Node.ELEMENT)
+                return kid;
+        return null;
+    }
+
+    private static boolean isJSONElement(Node node)
+        throws DataModelException
+    {
+        QName name = node.getNodeName();
+        return name != null
+               && JSONBuilder.JSON_NS.equals(name.getNamespaceURI());
+    }
+
+    private static boolean isIntegerType(String typeName)
+    {
+        return typeName != null
+               && (typeName.endsWith("Integer") || typeName.equals("long")
+                   || typeName.equals("int") || typeName.equals("short")
+                   || typeName.equals("byte") || typeName.startsWith("unsigned"));
+    }
+
+    private static String qualifiedName(Node context, QName name)
+        throws DataModelException
+    {
+        if (name == null)
+            return "";
+        String prefix = name.getPrefix();
+        if (prefix == null && !name.hasNoNamespace())
+            prefix = context.getNamespacePrefix(name.getNamespaceURI());
+        if (prefix == null || prefix.length() == 0)
+            return name.getLocalPart();
+        return prefix + ":" + name.getLocalPart();
+    }
+
+    private void startValue()
+        throws IOException
+    {
+        if (afterKey) {
+            afterKey = false;
+            return;
+        }
+        if (hasValue[depth])
+            out.write(',');
+        hasValue[depth] = true;
+    }
+
+    private void push()
+    {
+        if (++depth == hasValue.length) {
+            boolean[] old = hasValue;
+            hasValue = new boolean[old.length * 2];
+            System.arraycopy(old, 0, hasValue, 0, old.length);
+        }
+        hasValue[depth] = false;
+    }
+
+    private void putQuoted(String s)
+        throws IOException
+    {
+        out.write('"');
+        int len = s.length(), start = 0;
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c >= ' ' && c != '"' && c != '\\' && c != '\u2028' && c != '\u2029')
+                continue;
+            out.write(s, start, i - start);
+            start = i + 1;
+            switch (c) {
+            case '"':  out.write("\\\""); break;
+            case '\\': out.write("\\\\"); break;
+            case '\n': out.write("\\n"); break;
+            case '\r': out.write("\\r"); break;
+            case '\t': out.write("\\t"); break;
+            default:
+                out.write("\\u");
+                out.write(HEX[(c >> 12) & 15]);
+                out.write(HEX[(c >> 8) & 15]);
+                out.write(HEX[(c >> 4) & 15]);
+                out.write(HEX[c & 15]);
+            }
+        }
+        out.write(s, start, len - start);
+        out.write('"');
+    }
+
+    /**
+     * Buffered UTF-8 encoder, retargetable.
+     */
+    private static final class UTF8Output extends Writer
+    {
+        private OutputStream output;
+        private byte[] buffer = new byte[8192];
+        private int count;
+        private char highSurrogate;
+
+        UTF8Output(OutputStream output)
+        {
+            this.output = output;
+        }
+
+        void setOutput(OutputStream output)
+        {
+            this.output = output;
+            count = 0;
+            highSurrogate = 0;
+        }
+
+        public void write(int c)
+            throws IOException
+        {
+            if (count + 4 > buffer.length)
+                flushBuffer();
+            if (c < 0x80 && highSurrogate == 0) {
+                buffer[count++] = (byte) c;
+                return;
+            }
+            if (highSurrogate != 0) {
+                char high = highSurrogate;
+                highSurrogate = 0;
+                if (Character.isLowSurrogate((char) c)) {
+                    int cp = Character.toCodePoint(high, (char) c);
+                    buffer[count++] = (byte) (0xf0 | (cp >> 18));
+                    buffer[count++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                    buffer[count++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                    buffer[count++] = (byte) (0x80 | (cp & 0x3f));
+                    return;
+                }
+                buffer[count++] = (byte) '?'; // unpaired surrogate
+            }
+            if (c < 0x80)
+                buffer[count++] = (byte) c;
+            else if (c < 0x800) {
+                buffer[count++] = (byte) (0xc0 | (c >> 6));
+                buffer[count++] = (byte) (0x80 | (c & 0x3f));
+            }
+            else if (Character.isHighSurrogate((char) c))
+                highSurrogate = (char) c;
+            else if (Character.isLowSurrogate((char) c))
+                buffer[count++] = (byte) '?';
+            else {
+                buffer[count++] = (byte) (0xe0 | (c >> 12));
+                buffer[count++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buffer[count++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+
+        public void write(char[] chars, int offset, int length)
+            throws IOException
+        {
+            for (int i = 0; i < length; i++)
+                write(chars[offset + i]);
+        }
+
+        public void write(String s, int offset, int length)
+            throws IOException
+        {
+            for (int i = 0; i < length; i++) {
+                char c = s.charAt(offset + i);
+                if (c < 0x80 && count < buffer.length && highSurrogate == 0)
+                    buffer[count++] = (byte) c;
+                else
+                    write(c);
+            }
+        }
+
+        public void write(String s)
+            throws IOException
+        {
+            write(s, 0, s.length());
+        }
+
+        public void flush()
+            throws IOException
+        {
+            flushBuffer();
+            output.flush();
+        }
+
+        public void close()
+            throws IOException
+        {
+            if (highSurrogate != 0) {
+                highSurrogate = 0;
+                write('?'); // unpaired surrogate
+            }
+            flushBuffer();
+            output.close();
+        }
+
+        private void flushBuffer()
+            throws IOException
+        {
+            if (count > 0) {
+                output.write(buffer, 0, count);
+                count = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ *    Qizx Free_Engine-4.4p1
+ *
+ *    This code is part of the Qizx application components
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.server.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of durations, recorded without lock, for computing percentiles.
+ * <p>
+ * Durations are counted in microseconds, in log-linear buckets: each power of
+ * two is divided into 16 buckets, so that a percentile is accurate within
+ * about 6%, from 1 microsecond up to several hours.
+ */
+public final class LatencyHistogram
+{
+    private static final int SUB_BITS = 4;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    // largest power of two: 2^36 microseconds is about 19 hours
+    private static final int MAX_MAGNITUDE = 36;
+    private static final int BUCKET_COUNT =
+        (MAX_MAGNITUDE - SUB_BITS + 2) * SUB_COUNT;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a duration.
+     * @param nanos duration in nanoseconds
+     */
+    public void record(long nanos)
+    {
+        long micros = Math.max(nanos / 1000, 0);
+        buckets.incrementAndGet(bucketOf(micros));
+        for (long m = max.get(); micros > m; m = max.get())
+            if (max.compareAndSet(m, micros))
+                break;
+    }
+
+    /**
+     * Returns the largest duration recorded, in microseconds.
+     */
+    public long getMax()
+    {
+        return max.get();
+    }
+
+    /**
+     * Returns the duration in microseconds below which (inclusively) a given
+     * percentage of the recorded durations fall, or 0 if nothing is recorded.
+     * @param percent between 0 and 100
+     */
+    public long getPercentile(double percent)
+    {
+        long[] counts = new long[BUCKET_COUNT];
+        long total = 0;
+        for (int b = 0; b < BUCKET_COUNT; b++)
+            total += (counts[b] = buckets.get(b));
+        if (total == 0)
+            return 0;
+        long rank = Math.max((long) Math.ceil(total * percent / 100), 1);
+        long seen = 0;
+        int b = 0;
+        for (; b < BUCKET_COUNT - 1; b++) {
+            seen += counts[b];
+            if (seen >= rank)
+                break;
+        }
+        return Math.min(upperBound(b), max.get());
+    }
+
+    public void reset()
+    {
+        for (int b = 0; b < BUCKET_COUNT; b++)
+            buckets.set(b, 0);
+        max.set(0);
+    }
+
+    private static int bucketOf(long micros)
+    {
+        if (micros < SUB_COUNT)
+            return (int) micros;
+        int magnitude = 63 - Long.numberOfLeadingZeros(micros);
+        if (magnitude > MAX_MAGNITUDE)
+            return BUCKET_COUNT - 1;
+        int shift = magnitude - SUB_BITS;
+        int sub = (int) (micros >>> shift) & (SUB_COUNT - 1);
+        return (shift + 1) * SUB_COUNT + sub;
+    }
+
+    // largest value falling into a bucket
+    private static long upperBound(int bucket)
+    {
+        if (bucket < SUB_COUNT)
+            return bucket;
+        int shift = bucket / SUB_COUNT - 1;
+        long low = (long) (SUB_COUNT + bucket % SUB_COUNT) << shift;
+        return low + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,342 @@
+/*
+ *    Qizx Free_Engine-4.4p1
+ *
+ *    This code is part of the Qizx application components
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.server.util;
+
+import com.qizx.api.util.logging.Statistic;
+import com.qizx.api.util.logging.Statistics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Writes statistics in the OpenMetrics text format, as they are collected.
+ * <p>
+ * This is a Statistic.Map that can be given to {@link Statistics#collect} or
+ * LibraryManager.collectStatistics, followed by {@link #endPass}. No mapping
+ * must be set. As in a plain Statistic.Map, values passed to
+ * {@link #cumulate} for the same statistic id and value name are summed.
+ * <p>
+ * Statistic ids become metric names (prefixed by "qizx_"), and value types
+ * become units: times in seconds, sizes in bytes. Statistics that are broken
+ * down per library (id prefixed by "library:", see
+ * {@link Statistics#getLibPrefix}), per request ("server|request|op") or per
+ * user of the session pool get a label 'library', 'request' or 'user'
+ * instead, and per-library metrics are prefixed by "qizx_library_".
+ * <p>
+ * The samples of a metric must be contiguous. Other metrics are written as
+ * soon as the next statistic arrives, but the samples of labelled metrics
+ * arrive interleaved with other statistics: they are held until the end of
+ * the collection pass.
+ */
+public class OpenMetricsWriter extends Statistic.Map
+{
+    public static final String CONTENT_TYPE =
+        "application/openmetrics-text; version=1.0.0; charset=utf-8";
+
+    private static final String PREFIX = "qizx_";
+    private static final String REQUEST_PREFIX = "server|request|";
+    private static final String USER_PREFIX = SessionPool.USER_STATS_PREFIX;
+
+    private static final long serialVersionUID = 1L;
+
+    private final Writer out;
+    private final StringBuilder line = new StringBuilder(128);
+    private IOException error;
+    // unlabelled metric being collected, written when the next one begins:
+    private String currentName;
+    private Family current;
+    // labelled metrics of the collection pass, by family name:
+    private LinkedHashMap<String, Family> groups;
+
+    public OpenMetricsWriter(Writer out)
+    {
+        this.out = out;
+    }
+
+    public void cumulate(Statistics.Base stat, String name, long value)
+    {
+        String id = stat.id;
+        String library = null, labelName = null, labelValue = null;
+        int colon = id.indexOf(':');
+        if (colon > 0 && id.lastIndexOf('|', colon) < 0) {
+            library = id.substring(0, colon);
+            id = id.substring(colon + 1);
+        }
+        if (id.startsWith(REQUEST_PREFIX)) {
+            labelName = "request";
+            labelValue = id.substring(REQUEST_PREFIX.length());
+            id = REQUEST_PREFIX.substring(0, REQUEST_PREFIX.length() - 1);
+        }
+        else if (id.startsWith(USER_PREFIX)) {
+            labelName = "user";
+            labelValue = id.substring(USER_PREFIX.length());
+            id = USER_PREFIX.substring(0, USER_PREFIX.length() - 1);
+        }
+
+        String type = "unknown", suffix = "", percentile = null;
+        int scale = 0;
+        StringBuilder family = new StringBuilder(id.length() + 40);
+        family.append(PREFIX);
+        // distinct from the totals of all libraries
+        if (library != null)
+            family.append("library_");
+        appendName(family, id);
+        if ("count".equals(name)) {
+            type = "counter";
+            suffix = "_total";
+        }
+        else if ("time".equals(name)) {
+            family.append("_seconds");
+            type = "counter";
+            suffix = "_total";
+            scale = 3;
+        }
+        else if ("hit+miss".equals(name)) {
+            family.append("_accesses");
+            type = "counter";
+            suffix = "_total";
+        }
+        else if ("size".equals(name)) {
+            family.append("_bytes");
+        }
+        else if (Statistics.Cache.USED.equals(name)) {
+            family.append("_used_bytes");
+            type = "gauge";
+        }
+        else if ("hit_ratio".equals(name)) {
+            family.append("_hit_ratio");
+            type = "gauge";
+            scale = 2;
+        }
+        else if (ServerStatistics.VALUE.equals(name)) {
+            type = "gauge";
+        }
+        else if (ServerStatistics.MAX.equals(name)) {
+            family.append("_latency_max_seconds");
+            type = "gauge";
+            scale = 6;
+        }
+        else if (ServerStatistics.P50.equals(name)) {
+            percentile = "50";
+        }
+        else if (ServerStatistics.P95.equals(name)) {
+            percentile = "95";
+        }
+        else if (ServerStatistics.P99.equals(name)) {
+            percentile = "99";
+        }
+        else {
+            appendName(family.append('_'), name);
+        }
+        // 'quantile' is reserved for summaries, which have a count and a sum
+        if (percentile != null) {
+            family.append("_latency_seconds");
+            type = "gauge";
+            scale = 6;
+        }
+        String familyName = family.toString();
+
+        StringBuilder sb = line;
+        sb.setLength(0);
+        sb.append(familyName).append(suffix);
+        if (library != null || labelName != null || percentile != null) {
+            sb.append('{');
+            if (library != null)
+                appendLabel(sb, "library", library);
+            if (labelName != null)
+                appendLabel(sb.append(library != null? "," : ""),
+                            labelName, labelValue);
+            if (percentile != null)
+                appendLabel(sb.append(library != null || labelName != null
+                                      ? "," : ""), "percentile", percentile);
+            sb.append('}');
+        }
+
+        Family fam;
+        if (library == null && labelName == null) {
+            if (!familyName.equals(currentName)) {
+                writeCurrent();
+                currentName = familyName;
+                current = new Family(type, stat.description, scale);
+            }
+            fam = current;
+        }
+        else {
+            if (groups == null)
+                groups = new LinkedHashMap<String, Family>();
+            fam = groups.get(familyName);
+            if (fam == null) {
+                // descriptions of per-library statistics name the library
+                String help = "request".equals(labelName)
+                                ? "REST API requests" : null;
+                fam = new Family(type, help, scale);
+                groups.put(familyName, fam);
+            }
+        }
+        fam.add(sb.toString(), value);
+    }
+
+    /**
+     * Writes the metrics held during a collection pass. To be called after
+     * each call of Statistics.collect or LibraryManager.collectStatistics.
+     */
+    public void endPass()
+    {
+        writeCurrent();
+        if (groups != null) {
+            for (Map.Entry<String, Family> e : groups.entrySet())
+                writeFamily(e.getKey(), e.getValue());
+            groups.clear();
+        }
+    }
+
+    /**
+     * Ends the collection pass, writes the end marker, and flushes.
+     * @throws IOException if an error occurred while writing any sample
+     */
+    public void finish()
+        throws IOException
+    {
+        endPass();
+        if (error != null)
+            throw error;
+        out.write("# EOF\n");
+        out.flush();
+    }
+
+    private void writeCurrent()
+    {
+        if (current != null)
+            writeFamily(currentName, current);
+        currentName = null;
+        current = null;
+    }
+
+    private void writeFamily(String name, Family fam)
+    {
+        StringBuilder sb = line;
+        sb.setLength(0);
+        appendHeader(sb, name, fam.type, fam.help);
+        for (Map.Entry<String, long[]> sample : fam.samples.entrySet()) {
+            sb.append(sample.getKey()).append(' ');
+            appendDecimal(sb, sample.getValue()[0], fam.scale);
+            sb.append('\n');
+        }
+        write(sb);
+    }
+
+    private void write(CharSequence text)
+    {
+        if (error != null)
+            return;
+        try {
+            out.append(text);
+        }
+        catch (IOException e) {
+            error = e;
+        }
+    }
+
+    private static void appendHeader(StringBuilder sb, String family,
+                                     String type, String help)
+    {
+        sb.append("# TYPE ").append(family).append(' ').append(type).append('\n');
+        if (help != null && help.length() > 0) {
+            sb.append("# HELP ").append(family).append(' ');
+            appendEscaped(sb, help, false);
+            sb.append('\n');
+        }
+    }
+
+    private static void appendLabel(StringBuilder sb, String name, String value)
+    {
+        sb.append(name).append("=\"");
+        appendEscaped(sb, value, true);
+        sb.append('"');
+    }
+
+    private static void appendEscaped(StringBuilder sb, String s, boolean quote)
+    {
+        for (int i = 0, len = s.length(); i < len; i++) {
+            char c = s.charAt(i);
+            if (c == '\\')
+                sb.append("\\\\");
+            else if (c == '\n')
+                sb.append("\\n");
+            else if (c == '"' && quote)
+                sb.append("\\\"");
+            else
+                sb.append(c);
+        }
+    }
+
+    // metric names: [a-zA-Z0-9_], without repeated underscores
+    private static void appendName(StringBuilder sb, String s)
+    {
+        for (int i = 0, len = s.length(); i < len; i++) {
+            char c = s.charAt(i);
+            if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z'
+                  || c >= '0' && c <= '9'))
+                c = '_';
+            if (c != '_' || sb.charAt(sb.length() - 1) != '_')
+                sb.append(c);
+        }
+        if (sb.charAt(sb.length() - 1) == '_')
+            sb.setLength(sb.length() - 1);
+    }
+
+    // value / 10^scale, without going through double
+    private static void appendDecimal(StringBuilder sb, long value, int scale)
+    {
+        if (scale == 0) {
+            sb.append(value);
+            return;
+        }
+        if (value < 0) {
+            sb.append('-');
+            value = -value;
+        }
+        long unit = 1;
+        for (int s = 0; s < scale; s++)
+            unit *= 10;
+        sb.append(value / unit).append('.');
+        String frac = Long.toString(value % unit);
+        for (int z = frac.length(); z < scale; z++)
+            sb.append('0');
+        sb.append(frac);
+    }
+
+    private static class Family
+    {
+        final String type;
+        final String help;
+        final int scale;
+        // summed values, by sample name with labels:
+        final LinkedHashMap<String, long[]> samples =
+            new LinkedHashMap<String, long[]>();
+
+        Family(String type, String help, int scale)
+        {
+            this.type = type;
+            this.help = help;
+            this.scale = scale;
+        }
+
+        void add(String sample, long value)
+        {
+            long[] sum = samples.get(sample);
+            if (sum == null)
+                samples.put(sample, new long[] { value });
+            else
+                sum[0] += value;
+        }
+    }
+}
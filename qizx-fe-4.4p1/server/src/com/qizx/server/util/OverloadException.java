@@ -0,0 +1,36 @@
+/*
+ *    Qizx Free_Engine-4.4p1
+ *
+ *    This code is part of the Qizx application components
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.server.util;
+
+/**
+ * A request rejected because the server is saturated. Sent as an HTTP error
+ * 503 with a Retry-After header.
+ */
+public class OverloadException extends RequestException
+{
+    private static final long serialVersionUID = 1L;
+
+    public static final String OVERLOADED = "Overloaded";
+
+    private final int retryAfter;
+
+    /**
+     * @param retryAfter suggested delay before retrying, in seconds
+     */
+    public OverloadException(String message, int retryAfter)
+    {
+        super(OVERLOADED, message);
+        this.retryAfter = retryAfter;
+    }
+
+    public int getRetryAfter()
+    {
+        return retryAfter;
+    }
+}
@@ -10,7 +10,9 @@ package com.qizx.server.util;
 
 import com.qizx.api.*;
 import com.qizx.api.Configuration.Property;
+import com.qizx.api.fulltext.FullTextFactory;
 import com.qizx.api.util.DefaultModuleResolver;
+import com.qizx.api.util.fulltext.DefaultFullTextFactory;
 import com.qizx.api.util.logging.Statistic;
 import com.qizx.api.util.logging.Statistics;
 import com.qizx.api.util.time.ScheduleHelper;
@@ -27,8 +29,10 @@ import com.qizx.xquery.ext.AdminFunctions;
 import com.xmlmind.multipartreq.MultipartConfig;
 
 import org.apache.xml.resolver.CatalogManager;
+import org.apache.xml.resolver.tools.CatalogResolver;
 import org.expath.pkg.repo.FileSystemStorage;
 import org.expath.pkg.repo.PackageException;
+import org.xml.sax.EntityResolver;
 
 import java.io.File;
 import java.io.IOException;
@@ -41,9 +45,14 @@ import java.text.DecimalFormatSymbols;
 import java.text.ParseException;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletContext;
@@ -76,6 +85,16 @@ public class QizxDriver
     static final String SERVER_API_NS = "java:com.qizx.server.util.ServerFunctions";
     
     public static final String DRIVER_PROP = "qizxServer";
+
+    // kinds of long actions:
+    public static final String TASK_OPTIMIZE = "optimize";
+    public static final String TASK_REINDEX = "reindex";
+    public static final String TASK_BACKUP = "backup";
+    public static final String TASK_OTHER = "other";
+    // number of finished long actions kept for progress and listtasks
+    private static final int TASK_HISTORY_SIZE = 200;
+    // seconds between load checks of adaptive optimization
+    private static final int ADAPTIVE_CHECK_PERIOD = 15;
     
     // -----------------------------------------------------------------------
 
@@ -168,6 +187,15 @@ public class QizxDriver
                      "Maximum size of the session pool",
                      20);
     
+    /**
+     * Time in seconds after which an idle session of the Session Pool is closed.
+     * <p>If value is <= 0, idle sessions are kept until evicted by newer ones.
+     */
+    public static final Property SESSION_POOL_IDLE_TIME =
+        new Property("session_pool_idle_time", "Server", "admin",
+                     "Time in seconds after which an idle pooled session is closed",
+                     0);
+    
     /**
      * Maximum size of the Stored Query Cache.
      * <p>This cache is used for 
@@ -177,6 +205,44 @@ public class QizxDriver
                      "Maximum size of the Stored Query Cache",
                      100);
     
+    /**
+     * Maximum estimated memory size in Mb of the Stored Query Cache.
+     * <p>If value is <= 0, only the number of entries is limited.
+     */
+    public static final Property STORED_QUERIES_CACHE_MEMORY =
+        new Property("stored_queries_cache_memory", "Server", "admin",
+                     "Maximum estimated memory size in Mb of the Stored Query Cache",
+                     0);
+    
+    /**
+     * Maximum number of compiled copies of a same stored query.
+     * <p>Several copies allow concurrent requests on a same query to avoid
+     * recompiling it.
+     */
+    public static final Property STORED_QUERIES_MAX_COPIES =
+        new Property("stored_queries_max_copies", "Server", "expert",
+                     "Maximum number of cached compiled copies of a same stored query",
+                     4);
+    
+    /**
+     * Detection of modified stored queries: "watch" uses file-system
+     * notifications, "poll" checks files periodically, "none" checks
+     * the file on each cache hit.
+     */
+    public static final Property STORED_QUERIES_WATCH =
+        new Property("stored_queries_watch", "Server", "expert",
+                     "Detection of modified stored queries: 'watch' (file-system " +
+                     "notifications), 'poll' (periodic check) or 'none' (check on each access)",
+                     "watch");
+    
+    /**
+     * Interval in seconds between checks of stored query files in 'poll' mode.
+     */
+    public static final Property STORED_QUERIES_POLL_INTERVAL =
+        new Property("stored_queries_poll_interval", "Server", "expert",
+                     "Interval in seconds between checks of stored query files",
+                     5);
+    
     /**
      * Size of the Sequence Cache.
      * <p>value could be approximately the number of simultaneous users
@@ -185,6 +251,23 @@ public class QizxDriver
         new Property("sequence_cache_size", "Server", "admin",
                      "Size of the Sequence Cache",
                      20);
+    /**
+     * Maximum estimated memory size in Mb of the Sequence Cache.
+     * <p>If value is <= 0, only the number of sequences is limited.
+     */
+    public static final Property SEQUENCE_CACHE_MEMORY =
+        new Property("sequence_cache_memory", "Server", "admin",
+                     "Maximum estimated memory size in Mb of the Sequence Cache",
+                     0);
+    /**
+     * Time in seconds after which an unused cached sequence is evicted,
+     * returning its session to the pool.
+     * <p>If value is <= 0, sequences are kept until evicted by newer ones.
+     */
+    public static final Property SEQUENCE_CACHE_IDLE_TIME =
+        new Property("sequence_cache_idle_time", "Server", "admin",
+                     "Time in seconds after which an unused cached sequence is evicted",
+                     0);
     /**
      * Policy of the Sequence Cache, used in 'eval' request.
      * <p>value is "smart" by default, or "brutal" (invalidate whole cache on each update)
@@ -203,6 +286,84 @@ public class QizxDriver
         new Property("eval_time_out", "Server", "admin",
                      "Maximum execution time for XQuery evaluations, in milliseconds",
                      0);
+    /**
+     * Maximum number of queries (eval, update, stored queries) evaluated at
+     * the same time. Further queries wait for admission.
+     * <p>If value is <= 0, there is no maximum.
+     */
+    public static final Property MAX_QUERIES =
+        new Property("max_queries", "Server", "admin",
+                     "Maximum number of queries evaluated at the same time" +
+                     " (0: no limit)",
+                     0);
+    /**
+     * Maximum number of queries of a user evaluated at the same time.
+     * <p>If value is <= 0, there is no maximum.
+     */
+    public static final Property MAX_USER_QUERIES =
+        new Property("max_user_queries", "Server", "admin",
+                     "Maximum number of queries of a user evaluated at the" +
+                     " same time (0: no limit)",
+                     0);
+    /**
+     * Maximum number of queries on a Library evaluated at the same time.
+     * <p>If value is <= 0, there is no maximum.
+     */
+    public static final Property MAX_LIBRARY_QUERIES =
+        new Property("max_library_queries", "Server", "expert",
+                     "Maximum number of queries on a Library evaluated at" +
+                     " the same time (0: no limit)",
+                     0);
+    /**
+     * Maximum number of queries waiting for admission. Queries beyond are
+     * rejected with an HTTP error 503.
+     */
+    public static final Property QUERY_QUEUE_SIZE =
+        new Property("query_queue_size", "Server", "admin",
+                     "Maximum number of queries waiting for admission",
+                     100);
+    /**
+     * Maximum time in milliseconds a query waits for admission, after which
+     * it is rejected with an HTTP error 503.
+     */
+    public static final Property QUERY_QUEUE_TIME_OUT =
+        new Property("query_queue_time_out", "Server", "admin",
+                     "Maximum time in milliseconds a query waits for admission",
+                     10000);
+    /**
+     * Duration in milliseconds above which a traced request is written to
+     * the slow request log. If value is <= 0, requests are not traced.
+     */
+    public static final Property SLOW_REQUEST_THRESHOLD =
+        new Property("slow_request_threshold", "Server", "admin",
+                     "Duration in milliseconds above which a request is written" +
+                     " to the slow request log (0: no log)",
+                     0);
+    /**
+     * Percentage of requests traced for the slow request log.
+     */
+    public static final Property TRACE_SAMPLING =
+        new Property("trace_sampling", "Server", "expert",
+                     "Percentage of requests traced for the slow request log",
+                     100);
+    /**
+     * Path of the slow request log. By default, the log of the web
+     * application is used.
+     */
+    public static final Property SLOW_REQUEST_LOG =
+        new Property("slow_request_log", "Server", "admin",
+                     "Path of the slow request log (default: web application log)",
+                     "");
+    /**
+     * Tokenizer used for full-text indexing and queries: "default" for the
+     * tokenizer of the engine, or "fast" for an equivalent tokenizer that
+     * is faster on large texts (see {@link FastTextTokenizer}).
+     */
+    public static final Property FULLTEXT_TOKENIZER =
+        new Property("fulltext_tokenizer", "Server", "expert",
+                     "Full-text tokenizer: 'default' or 'fast' (same tokens," +
+                     " faster indexing)",
+                     "default");
     /**
      * Maximum size in Mb of a POST request.
      * <p>Beware that the J2EE container might have its own limits.
@@ -211,6 +372,30 @@ public class QizxDriver
         new Property("POST_limit", "Server", "admin",
                      "Maximum size in Mb of a POST request.",
                      -1);
+    /**
+     * Number of threads parsing documents in bulk imports.
+     * <p>If value is <= 0, the number of available processors is used.
+     */
+    public static final Property BULK_IMPORT_THREADS =
+        new Property("bulk_import_threads", "Server", "expert",
+                     "Number of threads parsing documents in bulk imports"
+                     + " (number of processors if 0)",
+                     0);
+    /**
+     * Number of documents after which a bulk import is committed.
+     */
+    public static final Property BULK_IMPORT_COMMIT_COUNT =
+        new Property("bulk_import_commit_count", "Server", "admin",
+                     "Number of documents after which a bulk import is committed",
+                     1000);
+    /**
+     * Size in Mb of XML source after which a bulk import is committed.
+     * <p>If value is <= 0, only the number of documents is considered.
+     */
+    public static final Property BULK_IMPORT_COMMIT_SIZE =
+        new Property("bulk_import_commit_size", "Server", "admin",
+                     "Size in Mb of XML source after which a bulk import is committed",
+                     64);
     /**
      * XML schema and DTD catalogs for XML parsing in the server:
      * a list of paths containing XML catalogs.
@@ -275,6 +460,30 @@ public class QizxDriver
         new Property("scheduled_backup_latest", "Server", "expert",
                      null, 0);
 
+    /**
+     * Number of long actions (optimize, reindex...) executed in parallel.
+     * Others wait in a queue.
+     */
+    public static final Property TASK_THREADS =
+        new Property("task_threads", "Server", "expert",
+                     "Number of long actions (optimize, reindex...) executed in parallel",
+                     2);
+    /**
+     * Number of libraries backed up in parallel.
+     */
+    public static final Property BACKUP_THREADS =
+        new Property("backup_threads", "Server", "expert",
+                     "Number of libraries backed up in parallel",
+                     2);
+    /**
+     * Maximum throughput of backups in Mb per second, shared by all backups
+     * running in parallel. If value is <= 0, there is no limit.
+     */
+    public static final Property BACKUP_MAX_RATE =
+        new Property("backup_max_rate", "Server", "admin",
+                     "Maximum throughput of backups in Mb/s (0: no limit)",
+                     0);
+
     /**
      * Path of the target directory for backup.
      */
@@ -322,6 +531,41 @@ public class QizxDriver
         new Property("scheduled_optimize_max_time", "Server", "admin",
                      "Max time spent for database optimization, in minutes",
                      30);
+    /**
+     * Duration in seconds of optimization slices performed on Libraries that
+     * need it, when the server is idle. If value is <= 0, there is no
+     * adaptive optimization. A slice is run in steps of at most
+     * {@link AdaptiveOptimizer#STEP_TIME} seconds, and stops after the
+     * current step once the server is busy.
+     * @see AdaptiveOptimizer
+     */
+    public static final Property ADAPTIVE_OPTIMIZE_SLICE =
+        new Property("adaptive_optimize_slice", "Server", "admin",
+                     "Duration in seconds of optimization slices run when the " +
+                     "server is idle (0: no adaptive optimization)",
+                     0);
+    /**
+     * Request rate (per minute) under which the server is considered idle
+     * by adaptive optimization.
+     */
+    public static final Property ADAPTIVE_OPTIMIZE_IDLE_RATE =
+        new Property("adaptive_optimize_idle_rate", "Server", "expert",
+                     "Request rate per minute under which the server is idle",
+                     60);
+    /**
+     * Number of index segments from which a Library needs optimization.
+     */
+    public static final Property ADAPTIVE_OPTIMIZE_SEGMENTS =
+        new Property("adaptive_optimize_segments", "Server", "expert",
+                     "Number of index segments from which a Library is optimized when idle",
+                     8);
+    /**
+     * Number of commits after which a Library needs optimization.
+     */
+    public static final Property ADAPTIVE_OPTIMIZE_COMMITS =
+        new Property("adaptive_optimize_commits", "Server", "expert",
+                     "Number of commits after which a Library is optimized when idle",
+                     100);
     
     
     // -----------------------------------------------------------------------
@@ -350,9 +594,11 @@ public class QizxDriver
     private volatile String[] libNames;
     private HashMap<String,AccessControl> acMap;
     
-    // Long actions (backup etc) in progress:
-    protected ArrayList<LongAction> actions = new ArrayList<LongAction>();
+    // Long actions (backup etc):
+    private TaskScheduler taskScheduler;
+    private final AtomicInteger actionIds = new AtomicInteger();
     protected ScheduledExecutorService actionService;
+    private BackupExecutor backupExecutor;
     
     private String adminRoleName;
     private String[] adminUsers;
@@ -361,18 +607,22 @@ public class QizxDriver
     private String servicesDefaultLibrary;
 
     private SequenceCache sequenceCache;
-    private SessionPool sessionPool;
+    private volatile SessionPool sessionPool;
+    private volatile AdmissionController admission;
     private QueryCache queryCache;
+    private ScriptWatcher scriptWatcher;
 
     private CatalogManager catManager;
+    private ExecutorService importService;
 
     private QizxRepository expathRepo;
 
     private String[] allowedClasses;    // Java binding
     public int evalTimeout;
 
-    private Statistics statsTable;
-    protected HashMap<String, Statistics.Activity> reqStats;
+    private ServerStatistics statsTable;
+    private volatile RequestTracer tracer;
+    protected ConcurrentHashMap<String, Statistics.Activity> reqStats;
 
 
 
@@ -389,19 +639,32 @@ public class QizxDriver
                 MODULES_DIR, 
                 EXPATH_REPOSITORY,
                 SERVICES_DIR, SERVICES_LIBRARY, 
-                SEQUENCE_CACHE_SIZE, SEQUENCE_CACHE_POLICY, 
-                STORED_QUERIES_CACHE_SIZE, SESSION_CACHE_SIZE,
+                SEQUENCE_CACHE_SIZE, SEQUENCE_CACHE_MEMORY, SEQUENCE_CACHE_IDLE_TIME,
+                SEQUENCE_CACHE_POLICY, 
+                STORED_QUERIES_CACHE_SIZE, STORED_QUERIES_CACHE_MEMORY,
+                STORED_QUERIES_MAX_COPIES,
+                STORED_QUERIES_WATCH, STORED_QUERIES_POLL_INTERVAL,
+                SESSION_CACHE_SIZE, SESSION_POOL_IDLE_TIME,
                 ACCESS_CONTROL, ADMIN_USER, ADMIN_ROLE,
                 CATALOGS, CATALOGS_PREFER, CATALOGS_VERBOSITY, 
                 EVAL_TIME_OUT,
+                MAX_QUERIES, MAX_USER_QUERIES, MAX_LIBRARY_QUERIES,
+                QUERY_QUEUE_SIZE, QUERY_QUEUE_TIME_OUT,
+                FULLTEXT_TOKENIZER,
+                SLOW_REQUEST_THRESHOLD, TRACE_SAMPLING, SLOW_REQUEST_LOG,
                 POST_LIMIT,
+                BULK_IMPORT_THREADS, BULK_IMPORT_COMMIT_COUNT, BULK_IMPORT_COMMIT_SIZE,
                 BACKUP_DIR, BACKUP_DIR_COUNT, BACKUP_INTERVAL, BACKUP_START_TIME,
+                TASK_THREADS, BACKUP_THREADS, BACKUP_MAX_RATE,
                 IBACKUP_DIR, IBACKUP_INTERVAL, IBACKUP_START_TIME,
-                SCH_OPTIMIZE_INTERVAL, SCH_OPTIMIZE_START_TIME, SCH_OPTIMIZE_MAX_TIME
+                SCH_OPTIMIZE_INTERVAL, SCH_OPTIMIZE_START_TIME, SCH_OPTIMIZE_MAX_TIME,
+                ADAPTIVE_OPTIMIZE_SLICE, ADAPTIVE_OPTIMIZE_IDLE_RATE,
+                ADAPTIVE_OPTIMIZE_SEGMENTS, ADAPTIVE_OPTIMIZE_COMMITS
             });
         
-        statsTable = new Statistics();
-        reqStats = new HashMap<String, Statistics.Activity>(); // requests
+        statsTable = new ServerStatistics();
+        // requests:
+        reqStats = new ConcurrentHashMap<String, Statistics.Activity>();
     }
 
     /**
@@ -541,6 +804,18 @@ public class QizxDriver
         
         context.log("configuring");
         // Qizx engine configuration
+        if (libManager != null
+            && "fast".equalsIgnoreCase(config.stringProp(FULLTEXT_TOKENIZER))) {
+            // a factory defined by the engine configuration is kept
+            FullTextFactory ftf = libManager.getFullTextFactory();
+            if (ftf == null || ftf.getClass() == DefaultFullTextFactory.class) {
+                libManager.setFullTextFactory(new FastFullTextFactory());
+                context.log(" Full-text tokenizer: fast");
+            }
+            else if (!(ftf instanceof FastFullTextFactory))
+                context.log(" Full-text tokenizer: custom factory "
+                            + ftf.getClass().getName() + " kept");
+        }
         try {
             String acClass = config.stringProp(ACCESS_CONTROL);
             if(acClass != null && acClass.length() > 0) {
@@ -572,9 +847,12 @@ public class QizxDriver
         
         int sessionCacheSize = config.intProp(SESSION_CACHE_SIZE);
         if (sessionCacheSize > 1) {
-            sessionPool = new SessionPool(sessionCacheSize);
-            sessionPool.setStats(statsTable.forCache("server|session_cache", "Cache",
-                                                     "Session pool"));
+            SessionPool pool = new SessionPool(sessionCacheSize);
+            pool.setStats(statsTable.forCache("server|session_cache", "Cache",
+                                              "Session pool"));
+            pool.setStatsTable(statsTable);
+            pool.setMaxIdleTime(config.intProp(SESSION_POOL_IDLE_TIME) * 1000L);
+            sessionPool = pool;
             context.log(" Session Cache size=" + sessionCacheSize);
         }
         else {
@@ -584,25 +862,38 @@ public class QizxDriver
         
         int queryCacheSize = config.intProp(STORED_QUERIES_CACHE_SIZE);
         if (queryCacheSize > 1) {
-            queryCache = new QueryCache(this, queryCacheSize);
+            long queryCacheMemory = config.longProp(STORED_QUERIES_CACHE_MEMORY) * MB;
+            queryCache = new QueryCache(this, queryCacheSize, queryCacheMemory);
+            queryCache.setMaxCopies(config.intProp(STORED_QUERIES_MAX_COPIES));
             queryCache.setStats(statsTable.forCache("server|query_cache", "Cache",
                                                     "Stored Queries cache"));
-            context.log(" Query Cache size=" + queryCacheSize);
+            context.log(" Query Cache size=" + queryCacheSize
+                        + (queryCacheMemory > 0? (" memory=" + queryCacheMemory) : ""));
         }
         else {
-            sequenceCache = null;
+            queryCache = null;
             context.log(" no Query Cache");
         }
 
         int seqCacheSize = config.intProp(SEQUENCE_CACHE_SIZE);
         if (seqCacheSize > 1) {
-            sequenceCache = new SequenceCache(seqCacheSize, 0); // TODO memory size
+            long seqCacheMemory = config.longProp(SEQUENCE_CACHE_MEMORY) * MB;
+            sequenceCache = new SequenceCache(seqCacheSize, seqCacheMemory);
             sequenceCache.setStats(statsTable.forCache("server|seq_cache", "Cache",
                                                        "Result Sequence cache"));
+            int idleTime = config.intProp(SEQUENCE_CACHE_IDLE_TIME);
+            sequenceCache.setMaxIdleTime(idleTime * 1000L);
             
-            context.log(" Sequence Cache size=" + seqCacheSize);
+            context.log(" Sequence Cache size=" + seqCacheSize
+                        + (seqCacheMemory > 0? (" memory=" + seqCacheMemory) : ""));
             String policy = config.stringProp(SEQUENCE_CACHE_POLICY);
             sequenceCache.setSmart(!"dumb".equalsIgnoreCase(policy));
+            sequenceCache.setEvictor(new SequenceCache.Evictor() {
+                public void evict(ItemSequence sequence)
+                {
+                    closeSequence(sequence);
+                }
+            });
             libManager.addPostCommitTrigger(null,
                                             new SeqCacheTrigger(sequenceCache));
         }
@@ -643,9 +934,60 @@ public class QizxDriver
         
         servicesRoot = getFileProperty(SERVICES_DIR);
         servicesDefaultLibrary = config.stringProp(SERVICES_LIBRARY);
+
+        // background detection of modified stored queries:
+        String watchMode = config.stringProp(STORED_QUERIES_WATCH);
+        if (queryCache != null && !"none".equalsIgnoreCase(watchMode)) {
+            scriptWatcher =
+                new ScriptWatcher(this, queryCache,
+                                  config.intProp(STORED_QUERIES_POLL_INTERVAL) * 1000L,
+                                  "poll".equalsIgnoreCase(watchMode));
+            scriptWatcher.addRoot(servicesRoot);
+            String webappRoot = context.getRealPath("/");
+            if (webappRoot != null)
+                scriptWatcher.addRoot(new File(webappRoot));
+            scriptWatcher.start();
+            context.log(" Stored query watcher: "
+                        + (scriptWatcher.isPolling()? "polling" : "watching"));
+        }
         
         evalTimeout = config.intProp(EVAL_TIME_OUT);
 
+        int maxQueries = config.intProp(MAX_QUERIES);
+        int maxUserQueries = config.intProp(MAX_USER_QUERIES);
+        int maxLibQueries = config.intProp(MAX_LIBRARY_QUERIES);
+        if (maxQueries > 0 || maxUserQueries > 0 || maxLibQueries > 0) {
+            AdmissionController ac =
+                new AdmissionController(maxQueries, maxUserQueries,
+                                        maxLibQueries,
+                                        config.intProp(QUERY_QUEUE_SIZE),
+                                        config.intProp(QUERY_QUEUE_TIME_OUT));
+            ac.setStats(statsTable.forActivity("server|admission|wait",
+                                       "Activity", "Wait for query admission"),
+                        statsTable.forCounting("server|admission|rejected",
+                                       "Counter", "Rejected queries"),
+                        statsTable.forGauge("server|admission|queue",
+                                       "Gauge", "Queries waiting for admission"));
+            admission = ac;
+            context.log(" Admission control: " + maxQueries + " queries, "
+                        + maxUserQueries + " per user, "
+                        + maxLibQueries + " per Library");
+        }
+        else {
+            admission = null;
+        }
+
+        String slowLog = config.stringProp(SLOW_REQUEST_LOG);
+        tracer = new RequestTracer(this, statsTable,
+                                   config.intProp(SLOW_REQUEST_THRESHOLD),
+                                   config.intProp(TRACE_SAMPLING),
+                                   (slowLog == null || slowLog.length() == 0)
+                                       ? null : getFileProperty(SLOW_REQUEST_LOG));
+        if (tracer.isEnabled())
+            context.log(" Slow request log: threshold "
+                        + config.intProp(SLOW_REQUEST_THRESHOLD) + " ms, sampling "
+                        + config.intProp(TRACE_SAMPLING) + "%");
+
         // scheduled backups or optims?
         if (config.intProp(BACKUP_INTERVAL) > 0
             || config.intProp(IBACKUP_INTERVAL) > 0
@@ -653,6 +995,31 @@ public class QizxDriver
                 startActionService();
                 actionService.schedule(scheduledTaskActivator, 5, TimeUnit.SECONDS);
         }
+        int slice = config.intProp(ADAPTIVE_OPTIMIZE_SLICE);
+        if (slice > 0) {
+            AdaptiveOptimizer optimizer =
+                new AdaptiveOptimizer(this, reqStats.values(), slice,
+                                      config.intProp(ADAPTIVE_OPTIMIZE_IDLE_RATE),
+                                      config.intProp(ADAPTIVE_OPTIMIZE_SEGMENTS),
+                                      config.intProp(ADAPTIVE_OPTIMIZE_COMMITS));
+            startActionService();
+            actionService.scheduleWithFixedDelay(optimizer, ADAPTIVE_CHECK_PERIOD,
+                                                 ADAPTIVE_CHECK_PERIOD,
+                                                 TimeUnit.SECONDS);
+            context.log(" Adaptive optimization: slices of " + slice + " s");
+        }
+        // return sessions pinned by idle cached sequences:
+        if (sequenceCache != null && sequenceCache.getMaxIdleTime() > 0) {
+            final SequenceCache cache = sequenceCache;
+            long period = Math.max(1000, cache.getMaxIdleTime() / 4);
+            startActionService();
+            actionService.scheduleWithFixedDelay(new Runnable() {
+                public void run()
+                {
+                    cache.evictIdle();
+                }
+            }, period, period, TimeUnit.MILLISECONDS);
+        }
         
         context.log("Qizx server started");
         
@@ -668,10 +1035,26 @@ public class QizxDriver
         boolean graceful = libManager.closeAllLibraries(1000);
         changedLibraryList(null);
         libManager = null;
+        if (scriptWatcher != null) {
+            scriptWatcher.stop();
+            scriptWatcher = null;
+        }
         if (actionService != null) {
             actionService.shutdownNow();
             actionService = null;   // otherwise rejects tasks
         }
+        if (importService != null) {
+            importService.shutdownNow();
+            importService = null;
+        }
+        if (taskScheduler != null) {
+            taskScheduler.shutdownNow();
+            taskScheduler = null;
+        }
+        if (backupExecutor != null) {
+            backupExecutor.shutdownNow();
+            backupExecutor = null;
+        }
         context.log("Qizx engine stopped " + (graceful? "gracefully" : "with rollbacks"));
     }
 
@@ -683,24 +1066,29 @@ public class QizxDriver
     public void changedLibraryList(String libName)
     {
         libNames = null;
-        if (sessionPool != null && libName != null)
-            sessionPool.eraseLibrary(libName);
+        SessionPool pool = sessionPool;
+        if (pool != null && libName != null)
+            pool.eraseLibrary(libName);
     }
     
     // returns a non-null library name iff there is one library exactly.
     private String singleLibName()
     {
-        if(libNames == null) {
-            synchronized (libManager) {
+        String[] names = libNames;
+        if(names == null) {
+            LibraryManager engine = libManager;
+            if (engine == null)
+                return null;
+            synchronized (engine) {
                 try {
-                    libNames = libManager.listLibraries();
+                    libNames = names = engine.listLibraries();
                 }
                 catch (DataModelException e) {
                     context.log("error getting library names", e);
                 }
             }
         }
-        return (libNames != null && libNames.length == 1)? libNames[0] : null;
+        return (names != null && names.length == 1)? names[0] : null;
     }
 
     /*
@@ -867,26 +1255,35 @@ public class QizxDriver
 
     /**
      * Gets a session.<p>
-     * If sessions are pooled, look in the pool, otherwise simply create new session
+     * If sessions are pooled, look in the pool, otherwise simply create new session.
+     * Not synchronized: the pool is thread-safe.
      * @param qizxRequestBase 
      */
-    public synchronized Library acquireSession (String libraryName,
-                                                String userName,
-                                                QizxRequestBase request)
+    public Library acquireSession (String libraryName,
+                                   String userName,
+                                   QizxRequestBase request)
         throws RequestException, DataModelException
     {
-        requireEngine();
+        LibraryManager engine = requireEngine();
         if(libraryName == null || libraryName.length() == 0)
             libraryName = singleLibName();
         if(libraryName == null)
             throw new RequestException(Request.BAD_REQUEST,
                                        "unspecified XML Library name");
+        admit(request, libraryName, userName);
+        long t0 = System.nanoTime();
+        RequestTrace trace = request.getTrace();
+        if (trace != null)
+            trace.setLibrary(libraryName);
         Library lib = null;
         // session pool has a candidate?
-        if (sessionPool != null) {
-            lib = sessionPool.acquireSession(libraryName, userName);
+        SessionPool pool = sessionPool;
+        if (pool != null) {
+            lib = pool.acquireSession(libraryName, userName);
             if (lib != null) {
                 lib.refresh();   // important to be up to date
+                if (trace != null)
+                    trace.addTimeSince(RequestTrace.SESSION, t0);
                 return lib;
             }
         }
@@ -897,10 +1294,12 @@ public class QizxDriver
         //if(acctrl != null)
         user = new ServerUser(userName, request);
         
-        lib = libManager.openLibrary(libraryName, acctrl, user);
+        lib = engine.openLibrary(libraryName, acctrl, user);
         if(lib == null)
             throw new RequestException(Request.BAD_REQUEST,
                                        "no XML Library named '" + libraryName +"'");
+        if (pool != null)
+            pool.addOpenTime(libraryName, userName, System.nanoTime() - t0);
 
         // init XQuery context:
         if (hasAdminRole(userName, request.getRequest())) {
@@ -913,18 +1312,42 @@ public class QizxDriver
                 lib.enableJavaBinding(cl);
             }
         }
+        if (trace != null)
+            trace.addTimeSince(RequestTrace.SESSION, t0);
         return lib;
     }
     
+    /**
+     * Waits until a query of the request can be evaluated, if the request
+     * is subject to admission control. The request holds the admission
+     * until its cleanup.
+     * @throws OverloadException if the server is saturated
+     */
+    private void admit(QizxRequestBase request, String libraryName,
+                       String userName)
+        throws OverloadException
+    {
+        AdmissionController ac = admission;
+        if (ac == null || request == null || !request.isAdmissionControlled()
+            || request.getAdmission() != null)
+            return;
+        long t0 = System.nanoTime();
+        request.setAdmission(ac.admit(userName, libraryName));
+        RequestTrace trace = request.getTrace();
+        if (trace != null)
+            trace.addTimeSince(RequestTrace.ADMISSION, t0);
+    }
+
     /**
      * Releases a session.<p>
      * If sessions are pooled, release it to the pool, otherwise simply 
      * close the session.
      */
-    public synchronized void releaseSession(Library session)
+    public void releaseSession(Library session)
     {
-        if (sessionPool != null) {
-            sessionPool.releaseSession(session);
+        SessionPool pool = sessionPool;
+        if (pool != null) {
+            pool.releaseSession(session);
         }
         else {
             // no pooling: directly close
@@ -955,6 +1378,12 @@ public class QizxDriver
         throws RequestException, QizxException
     {
         ItemSequence items = null;
+        RequestTrace trace = request.getTrace();
+        if (trace != null)
+            trace.setQuery(query);
+        // also for cached sequences: moving them evaluates the query
+        admit(request, (libName == null || libName.length() == 0)
+                           ? singleLibName() : libName, userName);
         if (sequenceCache != null) {
             items = sequenceCache.acquire(libName, userName, query, profile, startPos);
             if (items != null) {
@@ -965,7 +1394,10 @@ public class QizxDriver
         }
         
         XQuerySession lib = acquireSession(libName, userName, request);
+        long t0 = System.nanoTime();
         Expression expr = lib.compileExpression(query);
+        if (trace != null)
+            trace.addTimeSince(RequestTrace.COMPILE, t0);
         
 //        // controversial: enforce it?
 //        if (expr.isUpdating())
@@ -985,29 +1417,65 @@ public class QizxDriver
             ex.setProperty(DRIVER_PROP, this);
         }
         
+        t0 = System.nanoTime();
         if (profile)
             items = expr.profile();
         else
             items = expr.evaluate();
+        if (trace != null)
+            trace.addTimeSince(RequestTrace.EVALUATE, t0);
         return items;
     }
     /////((ExpressionImpl) expr).setCompilationTrace(new PrintWriter(System.err, true));
 
+    /**
+     * Resumes a sequence released with a cursor token, at the position where
+     * it was released.
+     * @return the sequence, or null if the cursor is unknown or expired.
+     * @throws OverloadException if the server is saturated
+     */
+    public ItemSequence acquireCursor(QizxRequestBase request, String cursor,
+                                      String libName, String userName)
+        throws OverloadException
+    {
+        if (sequenceCache == null || cursor == null)
+            return null;
+        // moving the resumed sequence evaluates the query
+        admit(request, (libName == null || libName.length() == 0)
+                           ? singleLibName() : libName, userName);
+        return sequenceCache.acquireCursor(cursor, libName, userName);
+    }
+
     public void releaseSequence(ItemSequence sequence)
     {
-        if (sequenceCache != null) {
-            ItemSequence evicted = sequenceCache.release(sequence);
-            if(evicted != null) {
-                Expression expr = evicted.getExpression();
-                
+        releaseSequence(sequence, false);
+    }
 
-                // There is ONE expression per session: otherwise it would not
-                // be guaranteed that a session is used by only one thread
-                releaseSession(expr.getLibrary());
-                expr.close(); // AFTER release session
-            }
+    /**
+     * Releases a sequence to the cache.
+     * @param withCursor if true, returns a cursor token for acquireCursor
+     * @return a cursor token, or null
+     */
+    public String releaseSequence(ItemSequence sequence, boolean withCursor)
+    {
+        if (sequenceCache != null) {
+            // evicted sequences are closed by closeSequence()
+            return sequenceCache.release(sequence, withCursor);
         }
         // else just GC it
+        return null;
+    }
+
+    // sequence dropped from the cache (eviction or invalidation)
+    private void closeSequence(ItemSequence sequence)
+    {
+        Expression expr = sequence.getExpression();
+        if (expr == null)
+            return;
+        // There is ONE expression per session: otherwise it would not
+        // be guaranteed that a session is used by only one thread
+        releaseSession(expr.getLibrary());
+        expr.close(); // AFTER release session
     }
     
     public void invalidateAll(String libName)
@@ -1080,6 +1548,10 @@ public class QizxDriver
             throw new RequestException(Request.SERVER,
                                        "undefined XML Library name: specify Configuration property SERVICES_LIBRARY");
 
+        RequestTrace trace = request.getTrace();
+        if (trace != null)
+            trace.setQuery(location.toString());
+        admit(request, libName, userName);
         Expression expr = null;
         if (queryCache != null) {
             expr = queryCache.get(location.toString(), libName, userName);
@@ -1102,9 +1574,15 @@ public class QizxDriver
         //lib.getContext().setBaseURI(FileUtil.urlToSystemId(location));
         lib.getContext().setBaseURI(location.toString());
         System.err.println("compile in "+location+" "+storedQuery);
+        long tl = System.nanoTime();
         String query = FileUtil.loadString(location);
+        if (trace != null)
+            trace.addTimeSince(RequestTrace.LOAD, tl);
         
+        tl = System.nanoTime();
         expr = lib.compileExpression(query);
+        if (trace != null)
+            trace.addTimeSince(RequestTrace.COMPILE, tl);
 
         if (hasAdminRole(userName, request.getRequest())) {
             ExpressionImpl ex = (ExpressionImpl) expr;
@@ -1119,6 +1597,42 @@ public class QizxDriver
         return expr;
     }
 
+    /**
+     * Recompiles a modified stored query in the session of its invalidated
+     * cache entry, and puts the new expression in the cache.
+     * The session is released on failure.
+     */
+    void recompileStoredQuery(QueryCache.Entry entry)
+    {
+        Expression old = entry.getExpression();
+        Library lib = old.getLibrary();
+        QueryCache cache = queryCache;
+        try {
+            if (cache == null || !isRunning())
+                throw new DataModelException("server stopped");
+            long t0 = System.nanoTime();
+            URL location = new URL(entry.getQueryURL());
+            String query = FileUtil.loadString(location);
+            Expression expr = lib.compileExpression(query);
+            // same properties as in getStoredQuery:
+            ExpressionImpl oldex = (ExpressionImpl) old;
+            Object manager = oldex.getProperty(AdminFunctions.CTX_PROP_LIB_MANAGER);
+            if (manager != null) {
+                ExpressionImpl ex = (ExpressionImpl) expr;
+                ex.setProperty(AdminFunctions.CTX_PROP_LIB_MANAGER, manager);
+                ex.setProperty(DRIVER_PROP, this);
+            }
+            old.close();
+            cache.put(expr, entry.getQueryURL(), entry.getLibraryName(),
+                      entry.getUserName(), System.nanoTime() - t0);
+            cache.release(expr);
+        }
+        catch (Exception e) {
+            // will be compiled again on next request, reporting errors
+            releaseSession(lib);
+        }
+    }
+
     public void releaseStoredQuery(Expression expr)
     {
         if(queryCache != null)
@@ -1219,40 +1733,53 @@ public class QizxDriver
     
     // -------------------- progress on long actions ------------------------
     
+    /**
+     * An operation running in the background, started by
+     * {@link QizxDriver#startAction} and run by the {@link TaskScheduler}.
+     * Its progress can be queried by its identifier.
+     */
     public abstract class LongAction
         implements Runnable, LibraryProgressObserver
     {
         protected Library library;
         protected String id;
         protected String description;
-        protected long startTime;
+        protected long submitTime;
+        protected long startTime;   // 0 while queued
         protected long endTime;
+        private final String kind;
+        private final String libraryName;
         private double fractionDone;
         private Throwable error;
         private DecimalFormat fformat = 
             new DecimalFormat("0.000", new DecimalFormatSymbols(Locale.US)); // FIX
+        // managed by the TaskScheduler:
+        volatile int state = TaskScheduler.QUEUED;
+        TaskScheduler scheduler;
+        private volatile boolean cancelled;
+        private boolean ended;
 
         public LongAction(Library lib, String description)
+        {
+            this(TASK_OTHER, lib, description);
+        }
+
+        /**
+         * @param kind kind of action, such as {@link QizxDriver#TASK_OPTIMIZE},
+         * for concurrency limits.
+         * @param lib session used by the action, released when finished, or
+         * null if the action is not specific to a Library.
+         */
+        public LongAction(String kind, Library lib, String description)
         {
             library = lib;
+            this.kind = kind;
             this.description = description;
+            libraryName = (lib == null)? null : lib.getName();
             if(lib != null)
                 lib.setProgressObserver(this);
-            
-            long now = System.currentTimeMillis();
-            synchronized (actions) {
-                // cleanup very old finished actions
-                for(int a = actions.size(); --a >= 0; ) {
-                    LongAction old = (LongAction) actions.get(a);
-                    // finished more than 10 minutes ago?
-                    if(old.endTime > 0 && old.endTime < now - 600000)
-                        actions.remove(a);
-                }
-                // register action:
-                startTime = now;
-                id = "A" + hashCode();
-                actions.add(this);
-            }
+            submitTime = System.currentTimeMillis();
+            id = "A" + actionIds.incrementAndGet();
         }
 
         public String getId()
@@ -1260,6 +1787,91 @@ public class QizxDriver
             return id;
         }
 
+        public String getKind()
+        {
+            return kind;
+        }
+
+        /**
+         * Returns the name of the Library, or null if the action is not
+         * specific to a Library.
+         */
+        public String getLibraryName()
+        {
+            return libraryName;
+        }
+
+        public String getDescription()
+        {
+            return description;
+        }
+
+        /**
+         * Returns true if the action must not run at the same time as another
+         * exclusive action on the same Library (optimize, reindex).
+         */
+        public boolean isExclusive()
+        {
+            return TASK_OPTIMIZE.equals(kind) || TASK_REINDEX.equals(kind);
+        }
+
+        /**
+         * Returns the state, eg {@link TaskScheduler#RUNNING}.
+         */
+        public int getState()
+        {
+            return state;
+        }
+
+        public String getStateName()
+        {
+            return TaskScheduler.STATE_NAMES[state];
+        }
+
+        public long getSubmitTime()
+        {
+            return submitTime;
+        }
+
+        public long getStartTime()
+        {
+            return startTime;
+        }
+
+        public long getEndTime()
+        {
+            return endTime;
+        }
+
+        public double getFractionDone()
+        {
+            return fractionDone;
+        }
+
+        /**
+         * Asks the action to stop. An action that is running stops only if
+         * it calls {@link #checkCancelled()}.
+         */
+        public void cancel()
+        {
+            cancelled = true;
+        }
+
+        public boolean isCancelled()
+        {
+            return cancelled;
+        }
+
+        /**
+         * To be called by actions at points where they can stop.
+         * @throws CancellationException if the action has been cancelled
+         */
+        protected void checkCancelled()
+        {
+            if (cancelled)
+                throw new CancellationException("cancelled");
+        }
+
 //        public void start()
 //        {
 //            context.log("starting long action " + id +" ("+ description +")");
@@ -1270,6 +1882,8 @@ public class QizxDriver
 
         public String getProgress()
         {
+            if (state == TaskScheduler.CANCELLED)
+                return description + "\nerror cancelled\n";
             if (error == null)
                 return description + "\n" + fformat.format(fractionDone) + "\n";
             
@@ -1285,9 +1899,13 @@ public class QizxDriver
         public void run()
         {
             try {
+                checkCancelled();
                 act();
                 finishedAction();
             }
+            catch (CancellationException e) {
+                cancelledAction();
+            }
             catch (Throwable e) {
                 abortedAction(e);
             }
@@ -1296,55 +1914,36 @@ public class QizxDriver
         protected void finishedAction()
         {
             context.log("finishing long action " + id +" ("+ description +")");
-            fractionDone = 1;
-            endTime = System.currentTimeMillis();
-            if(library != null)
-                releaseSession(library);
+            ended(TaskScheduler.FINISHED, null);
         }
 
         protected void abortedAction(Throwable e)
         {
             context.log("error in long action " + id +" ("+ description +")", e);
-            fractionDone = 1;
-            error = e;
-            endTime = System.currentTimeMillis();
-            if(library != null)
-                releaseSession(library);
+            ended(TaskScheduler.FAILED, e);
         }
 
-        // creates a root directory containing all Libs
-        public void backupAllLibraries(File location, int index, boolean incremental)
-            throws RequestException, DataModelException
+        protected void cancelledAction()
         {
-            requireEngine();
-            String kind = incremental? "incremental backup" : "full backup";
+            context.log("cancelled long action " + id +" ("+ description +")");
+            ended(TaskScheduler.CANCELLED, null);
+        }
 
-            location = FileUtil.indexFile(location, index);
-            if(!location.isDirectory() && !location.mkdirs())
-                throw new DataModelException("cannot create backup root " + location);
-            
-            context.log("starting " + kind + " of all libraries");
-            // snapshot of all Libs:
-            String[] libNames = libManager.listLibraries();
-            Library[] libs = new Library[libNames.length];
-            for (int i = 0; i < libs.length; i++) {
-                libs[i] = libManager.openLibrary(libNames[i]);
+        private void ended(int finalState, Throwable e)
+        {
+            synchronized (this) {
+                if (ended)
+                    return;
+                ended = true;
             }
-            
-            // do backup:
-            for (int i = 0; i < libs.length; i++) {
-                String name = libNames[i];
-                File backupDir = new File(location, name);
-                description = "scheduled " + kind + " of " + libNames[i]
-                                                  + " to " + backupDir;
-                libs[i].setProgressObserver(this);
-                if (incremental)
-                    libs[i].incrementalBackup(backupDir);
-                else
-                    libs[i].backup(backupDir);
-                libs[i].close();
-            }         
-            context.log("finishing " + kind + " of all libraries");   
+            fractionDone = 1;
+            error = e;
+            endTime = System.currentTimeMillis();
+            state = finalState;
+            if(library != null)
+                releaseSession(library);
+            if (scheduler != null)
+                scheduler.ended(this);
         }
 
         public void optimizeAllLibraries(int maxTime)
@@ -1354,6 +1953,7 @@ public class QizxDriver
             String[] libNames = libManager.listLibraries();
             context.log("starting optimization of all libraries");
             for (int i = 0; i < libNames.length; i++) {
+                checkCancelled();
                 Library lib = libManager.openLibrary(libNames[i]);
                 if(maxTime <= 0)
                     lib.optimize();
@@ -1394,32 +1994,350 @@ public class QizxDriver
         }
     }
 
-    public LongAction findAction(String id)
+    /**
+     * Backup of one Library or of all Libraries, run by the backup executor.
+     * <p>
+     * Each Library is backed up by a separate task, so that several Libraries
+     * can be saved in parallel. The action finishes when all tasks are done,
+     * and its progress lists the state of each Library.
+     */
+    public class BackupAction extends LongAction
     {
-        synchronized (actions) {
-            for (int a = actions.size(); --a >= 0;) {
-                LongAction act = (LongAction) actions.get(a);
-                if (act.id.equals(id))
-                    return act;
+        private final File location;
+        private final boolean incremental;
+        private final int priority;
+        private BackupPart[] parts;
+        private int remaining;
+        private Throwable firstError;
+
+        /**
+         * Backup of a Library session, released when finished.
+         * @param priority see {@link BackupExecutor#submit}
+         */
+        public BackupAction(Library lib, File location, boolean incremental,
+                            int priority)
+        {
+            super(TASK_BACKUP, lib, (incremental? "incr backup " : "full backup ")
+                                    + lib.getName());
+            this.location = location;
+            this.incremental = incremental;
+            this.priority = priority;
+        }
+
+        /**
+         * Backup of all Libraries, in sub-directories of a root directory.
+         * @param priority see {@link BackupExecutor#submit}
+         */
+        public BackupAction(String description, File root, boolean incremental,
+                            int priority)
+        {
+            super(TASK_BACKUP, null, description);
+            this.location = root;
+            this.incremental = incremental;
+            this.priority = priority;
+        }
+
+        protected void act()
+        {
+            // not used: see run()
+        }
+
+        /**
+         * Queues a task per Library on the backup executor. Sessions are
+         * opened immediately, so that all Libraries are saved as of now.
+         */
+        public void run()
+        {
+            try {
+                BackupExecutor executor = getBackupExecutor();
+                if (library != null) {
+                    parts = new BackupPart[] {
+                        new BackupPart(library, location, false)
+                    };
+                }
+                else {
+                    requireEngine();
+                    if(!location.isDirectory() && !location.mkdirs())
+                        throw new DataModelException("cannot create backup root "
+                                                     + location);
+                    String[] libNames = libManager.listLibraries();
+                    parts = new BackupPart[libNames.length];
+                    for (int i = 0; i < libNames.length; i++) {
+                        Library lib = libManager.openLibrary(libNames[i]);
+                        parts[i] = new BackupPart(lib, new File(location, libNames[i]),
+                                                  true);
+                    }
+                }
+                remaining = parts.length;
+                if (parts.length == 0)
+                    finishedAction();
+                for (BackupPart part : parts)
+                    executor.submit(part, priority);
+            }
+            catch (Throwable e) {
+                if (parts != null)
+                    for (BackupPart part : parts)
+                        if (part != null && part.closeSession)
+                            closeSession(part.lib);
+                abortedAction(e);
             }
         }
-        return null;
+
+        public String getProgress()
+        {
+            String progress = super.getProgress();
+            BackupPart[] parts = this.parts;
+            if (parts == null || (parts.length == 1 && library != null))
+                return progress;
+            StringBuilder buf = new StringBuilder(progress);
+            for (BackupPart part : parts)
+                buf.append(part.lib.getName()).append(' ')
+                   .append(BACKUP_STATES[part.state]).append(' ')
+                   .append(String.format(Locale.US, "%.3f", part.fraction))
+                   .append('\n');
+            return buf.toString();
+        }
+
+        private void partFinished(Throwable error)
+        {
+            boolean last;
+            synchronized (this) {
+                if (error != null && firstError == null)
+                    firstError = error;
+                last = (--remaining == 0);
+            }
+            if (!last)
+                updateFraction();
+            else if (firstError == null)
+                finishedAction();
+            else if (firstError instanceof CancellationException)
+                cancelledAction();
+            else
+                abortedAction(firstError);
+        }
+
+        private void updateFraction()
+        {
+            double sum = 0;
+            for (BackupPart part : parts)
+                sum += part.fraction;
+            super.backupProgress(sum / parts.length);
+        }
+
+        /**
+         * Backup of one Library.
+         */
+        private class BackupPart
+            implements Runnable, LibraryProgressObserver
+        {
+            static final int QUEUED = 0, RUNNING = 1, DONE = 2, FAILED = 3;
+
+            final Library lib;
+            final File target;
+            final boolean closeSession;
+            volatile int state = QUEUED;
+            volatile double fraction;
+            private long size;      // estimated, for throttling full backups
+            private long copied;
+
+            BackupPart(Library lib, File target, boolean closeSession)
+            {
+                this.lib = lib;
+                this.target = target;
+                this.closeSession = closeSession;
+            }
+
+            public void run()
+            {
+                state = RUNNING;
+                Throwable error = null;
+                try {
+                    // Libraries not started yet are skipped
+                    checkCancelled();
+                    if (incremental) {
+                        // copies only what changed, throttled by itself
+                        DifferentialBackup done = DifferentialBackup.backup(
+                            requireEngine(), lib.getName(), target,
+                            getBackupExecutor(), this);
+                        log("incr backup " + lib.getName() + ": " + done);
+                    }
+                    else {
+                        if (getBackupExecutor().getMaxRate() > 0)
+                            size = getLibrarySize(lib.getName());
+                        lib.setProgressObserver(this);
+                        lib.backup(target);
+                    }
+                }
+                catch (Throwable e) {
+                    error = e;
+                }
+                finally {
+                    if (closeSession)
+                        closeSession(lib);
+                }
+                fraction = 1;
+                state = (error == null)? DONE : FAILED;
+                partFinished(error);
+            }
+
+            public void backupProgress(double fraction)
+            {
+                this.fraction = fraction;
+                updateFraction();
+                long done = (long) (fraction * size);
+                if (done > copied) {
+                    long bytes = done - copied;
+                    copied = done;
+                    try {
+                        getBackupExecutor().throttle(bytes);
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+
+            public void importProgress(double size) { }
+
+            public void commitProgress(double fraction) { }
+
+            public void optimizationProgress(double fraction) { }
+
+            public void reindexingProgress(double fraction) { }
+        }
     }
 
-    public void startAction(LongAction action)
+    private static final String[] BACKUP_STATES = {
+        "queued", "running", "done", "failed"
+    };
+
+    // size of the files of a Library in the group directory (0 if elsewhere)
+    private long getLibrarySize(String libName)
     {
-        // this is a change: we used to run as many threads as actions
-        startActionService();
+        LibraryManager engine = libManager;
+        if (engine == null || engine.getGroupDirectory() == null)
+            return 0;
+        return getFileSize(new File(engine.getGroupDirectory(), libName));
+    }
 
+    private static long getFileSize(File file)
+    {
+        File[] children = file.listFiles();
+        if (children == null)
+            return file.length();
+        long size = 0;
+        for (File child : children)
+            size += getFileSize(child);
+        return size;
+    }
+
+    /**
+     * Finds a queued, running or recently finished action.
+     */
+    public LongAction findAction(String id)
+    {
+        return getTaskScheduler().find(id);
+    }
+
+    /**
+     * Queues an action on the task scheduler.
+     */
+    public void startAction(LongAction action)
+    {
         context.log("starting long action " + action.id +" ("+ action.description +")");
-        actionService.submit(action);
+        // backups only queue their work on the backup executor
+        getTaskScheduler().submit(action);
+    }
+
+    /**
+     * Cancels a queued action, or asks a running action to stop.
+     * @return the state of the action after the call, or -1 if not found
+     */
+    public int cancelAction(String id)
+    {
+        int state = getTaskScheduler().cancel(id);
+        if (state >= 0)
+            context.log("cancel requested for long action " + id);
+        return state;
+    }
+
+    /**
+     * Returns the scheduler of long actions, created on first use.
+     */
+    public synchronized TaskScheduler getTaskScheduler()
+    {
+        if (taskScheduler == null) {
+            taskScheduler = new TaskScheduler(config.intProp(TASK_THREADS),
+                                              TASK_HISTORY_SIZE);
+            // heavy on I/O
+            taskScheduler.setKindLimit(TASK_OPTIMIZE, 1);
+            taskScheduler.setKindLimit(TASK_REINDEX, 1);
+        }
+        return taskScheduler;
+    }
+
+    /**
+     * Returns the executor of backups, created on first use.
+     */
+    public synchronized BackupExecutor getBackupExecutor()
+    {
+        if (backupExecutor == null)
+            backupExecutor =
+                new BackupExecutor(config.intProp(BACKUP_THREADS),
+                                   config.intProp(BACKUP_MAX_RATE) * (long) MB);
+        return backupExecutor;
     }
 
 
+    /**
+     * Returns the pool of threads that parse documents for bulk imports,
+     * shared by all concurrent imports.
+     */
+    public synchronized ExecutorService getImportService()
+    {
+        if (importService == null)
+            importService = Executors.newFixedThreadPool(getImportThreads(),
+                                                         new ThreadFactory() {
+                private int count;
+                public Thread newThread(Runnable r)
+                {
+                    Thread t = new Thread(r, "Qizx import parser " + ++count);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        return importService;
+    }
+
+    public int getImportThreads()
+    {
+        int threads = config.intProp(BULK_IMPORT_THREADS);
+        return (threads > 0) ? threads : Runtime.getRuntime().availableProcessors();
+    }
+
+    public int getImportCommitCount()
+    {
+        return config.intProp(BULK_IMPORT_COMMIT_COUNT);
+    }
+
+    public long getImportCommitSize()
+    {
+        return config.intProp(BULK_IMPORT_COMMIT_SIZE) * 1048576L;
+    }
+
+    /**
+     * Entity resolver using the XML catalogs of the server.
+     */
+    public EntityResolver getEntityResolver()
+    {
+        return new CatalogResolver(catManager);
+    }
+
+    // timers only: actions are run by the task scheduler
     private void startActionService()
     {
         if (actionService == null)
-            actionService = Executors.newScheduledThreadPool(2);
+            actionService = Executors.newScheduledThreadPool(1);
     }
 
     private Runnable scheduledTaskActivator = new Runnable()
@@ -1451,16 +2369,9 @@ public class QizxDriver
                         }
                     }
 
-                    final int dirIndex = index; // java bullshit
-                    final File location = new File(backupRoot);
-                    LongAction backupAction = new LongAction(null, "scheduled backup") {
-                        protected void act()
-                            throws RequestException, DataModelException
-                        {
-                            backupAllLibraries(location, dirIndex, false);
-                        }
-                    };
-                    startAction(backupAction);
+                    File location = FileUtil.indexFile(new File(backupRoot), index);
+                    startAction(new BackupAction("scheduled backup", location, false,
+                                                 BackupExecutor.SCHEDULED));
                 }
                 
                 backupRoot = config.stringProp(IBACKUP_DIR);
@@ -1468,21 +2379,16 @@ public class QizxDriver
                 if (backupRoot != null && backupRoot.length() > 0
                     && checkTime(now, sc, IBACKUP_INTERVAL, IBACKUP_START_TIME))
                 {    
-                    final File location = new File(backupRoot);
-                    LongAction backupAction = new LongAction(null, "scheduled incr backup") {
-                        protected void act()
-                            throws RequestException, DataModelException
-                        {
-                            backupAllLibraries(location, -1, true);
-                        }
-                    };
-                    startAction(backupAction);
+                    File location = new File(backupRoot);
+                    startAction(new BackupAction("scheduled incr backup", location, true,
+                                                 BackupExecutor.SCHEDULED));
                 }
 
                 if (checkTime(now, sc, SCH_OPTIMIZE_INTERVAL, SCH_OPTIMIZE_START_TIME))
                 {
                     final int maxTime = config.intProp(SCH_OPTIMIZE_MAX_TIME);
-                    LongAction optimAction = new LongAction(null, "scheduled optimize") {
+                    LongAction optimAction =
+                        new LongAction(TASK_OPTIMIZE, null, "scheduled optimize") {
                         protected void act()
                             throws RequestException, DataModelException
                         {
@@ -1533,18 +2439,39 @@ public class QizxDriver
         statsTable.collect(stats);
     }
 
+    /**
+     * Starts tracing a request, if tracing is enabled and the request sampled.
+     * @return a trace, or null
+     */
+    public RequestTrace startTrace(String operation)
+    {
+        RequestTracer tr = tracer;
+        return (tr == null)? null : tr.start(operation);
+    }
+
+    public void endTrace(RequestTrace trace, String userName)
+    {
+        RequestTracer tr = tracer;
+        if (tr != null)
+            tr.end(trace, userName);
+    }
+
     public Statistics.Activity getActivityStats(String name)
     {
         Statistics.Activity ac = reqStats.get(name);
         if (ac == null) {
             ac = statsTable.forActivity("server|request|" + name, "Activity",
                                         "REST API request '" + name + "'");
-            
-            reqStats.put(name, ac);
+            reqStats.putIfAbsent(name, ac);
         }
         return ac;
     }
 
+    public void log(String message)
+    {
+        context.log(message);
+    }
+
     public URL resolve(String resource)
         throws MalformedURLException
     {
@@ -31,6 +31,7 @@ public abstract class QizxRequestBase extends Request
 {    
     public static final String MIME_QIZX_ERROR = "text/x-qizx-error; charset=UTF-8";
     public static final String JSON = "json";
+    public static final String NDJSON = "ndjson";
 
     // Qizx specific error codes
     protected static final String ACCESS = "AccessControl";
@@ -46,6 +47,9 @@ public abstract class QizxRequestBase extends Request
     protected Part currentPart;
 
     private long startTime;
+    private RequestTrace trace;
+    // held while admitted by the AdmissionController
+    private AdmissionController.Ticket admission;
 
     
     protected QizxDriver getDriver()
@@ -61,6 +65,7 @@ public abstract class QizxRequestBase extends Request
         driver = getDriver();
         libSession = null;
         startTime = System.nanoTime();
+        trace = (driver == null)? null : driver.startTrace(getName());
     }
     
     public void cleanup()
@@ -70,11 +75,56 @@ public abstract class QizxRequestBase extends Request
         Statistics.Activity ac = driver.getActivityStats(getName());
         long endTime = System.nanoTime();
         ac.addTime(endTime - startTime);
+        if (trace != null) {
+            driver.endTrace(trace, getUserName());
+            trace = null;
+        }
         
         if(libSession != null) {
             driver.releaseSession(libSession);
             libSession = null;
         }
+        if(admission != null) {
+            admission.release();
+            admission = null;
+        }
+    }
+
+    public void recycle()
+    {
+        super.recycle();
+        libSession = null;
+        currentPart = null;
+        trace = null;
+        admission = null;
+    }
+
+    /**
+     * Returns the trace of this request, or null if it is not traced.
+     * Phases are timed only if the trace is not null.
+     */
+    protected RequestTrace getTrace()
+    {
+        return trace;
+    }
+
+    /**
+     * Returns true if this request evaluates queries, and is therefore
+     * subject to admission control (see {@link AdmissionController}).
+     */
+    protected boolean isAdmissionControlled()
+    {
+        return false;
+    }
+
+    AdmissionController.Ticket getAdmission()
+    {
+        return admission;
+    }
+
+    void setAdmission(AdmissionController.Ticket admission)
+    {
+        this.admission = admission;
     }
 
     protected void sendError(RequestException he)
@@ -85,6 +135,12 @@ public abstract class QizxRequestBase extends Request
 
         // define the content-type and error code: can be redefined
         startErrorContent();
+        if (he instanceof OverloadException) {
+            // clients must know they can retry
+            response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            response.setHeader("Retry-After",
+                     Integer.toString(((OverloadException) he).getRetryAfter()));
+        }
         
         // handle Qizx exceptions:
         Throwable cause = he.getCause();
@@ -268,6 +324,23 @@ public abstract class QizxRequestBase extends Request
         return gen;
     }
     
+    /**
+     * Returns true if the format is JSON or NDJSON, and sets the content type
+     * accordingly.
+     */
+    protected boolean prepareJSONFormat(String format)
+    {
+        if(JSON.equalsIgnoreCase(format)) {
+            response.setContentType(MIME_JSON + "; charset=UTF-8");
+            return true;
+        }
+        if(NDJSON.equalsIgnoreCase(format)) {
+            response.setContentType(MIME_NDJSON + "; charset=UTF-8");
+            return true;
+        }
+        return false;
+    }
+    
     // Get XML data either for file part or from String parameter
     protected InputSource openXMLSource(String paramName)
         throws RequestException
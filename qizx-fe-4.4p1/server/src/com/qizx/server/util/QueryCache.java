@@ -15,27 +15,61 @@ import com.qizx.util.basic.FileUtil;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
 
 /**
  * A cache for "Stored Queries", i.e compiled XQuery expressions.
  * <p>
  * Checks that a query has been modified on disk and reloads if necessary.
- * A minimum time between 2 lookups on disk is used to avoid too many disk accesses
+ * A minimum time between 2 lookups on disk is used to avoid too many disk accesses.
+ * When a {@link ScriptWatcher} is active, no check is done on cache hits:
+ * the watcher invalidates modified queries asynchronously.
+ * <p>
+ * Entries are indexed by (query URL, library, user), and linked in a LRU list,
+ * so that lookup and promotion are O(1). Several compiled copies of a same
+ * query can be cached, so that concurrent requests on a hot query do not
+ * recompile it just because the only copy is in use.
+ * <p>
+ * The cache is bounded both by a number of entries and by an estimated size
+ * in bytes (see {@link #estimateSize(Expression)}).
  */
 public class QueryCache
 {
+    // rough cost of a pooled session and its compiled context:
+    private static final int SESSION_FOOTPRINT = 32 * 1024;
+    // rough size of compiled code per character of source:
+    private static final int BYTES_PER_SOURCE_CHAR = 64;
+
     private QizxDriver serverDriver;
-    private ArrayList<Entry> lru;
+    private HashMap<Key, ArrayList<Entry>> index;
+    // in-use expressions:
+    private IdentityHashMap<Expression, Entry> locked;
+    // LRU list: head is most recent
+    private Entry head, tail;
+    private int entryCount;
+    private long totalSize;
+
     private int minCheckTime = 1000;
+    private volatile boolean checkOnHit = true;
     private Statistics.Cache stats;
     private int maxEntryCount;
+    private long maxSize;
+    private int maxCopies = 4;
     private boolean trace = !true;
-    
-    public QueryCache(QizxDriver serverDriver, int maxEntryCount) // TODO memory size
+
+    /**
+     * @param maxEntryCount maximum number of compiled expressions
+     * @param maxSize maximum estimated size in bytes, no limit if <= 0
+     */
+    public QueryCache(QizxDriver serverDriver, int maxEntryCount, long maxSize)
     {
         this.serverDriver = serverDriver;
         this.maxEntryCount = maxEntryCount;
-        lru = new ArrayList<QueryCache.Entry>();
+        this.maxSize = maxSize;
+        index = new HashMap<Key, ArrayList<Entry>>();
+        locked = new IdentityHashMap<Expression, Entry>();
     }
 
     public Statistics.Cache getStats()
@@ -48,10 +82,48 @@ public class QueryCache
         this.stats = stats;
     }
 
+    public int getMaxCopies()
+    {
+        return maxCopies;
+    }
+
+    /**
+     * Defines the maximum number of compiled copies kept for a same query,
+     * library and user.
+     */
+    public void setMaxCopies(int maxCopies)
+    {
+        this.maxCopies = Math.max(1, maxCopies);
+    }
+
+    public boolean isCheckOnHit()
+    {
+        return checkOnHit;
+    }
+
+    /**
+     * If true (default), the modification date of a query file is checked
+     * on each cache hit. Set to false when modifications are detected by
+     * other means, typically a {@link ScriptWatcher}.
+     */
+    public void setCheckOnHit(boolean checkOnHit)
+    {
+        this.checkOnHit = checkOnHit;
+    }
+
+    /**
+     * Returns the estimated memory size of the cache, in bytes.
+     */
+    public synchronized long getSize()
+    {
+        return totalSize;
+    }
+
     /**
      * Looks for a ready compiled expression matching queryURL, library, and user.
      * <p>
-     * removed from the cache and returned.
+     * A matching expression is locked until {@link #release(Expression)}
+     * is called, and returned.
      * @param mode
      */
     public synchronized Expression get(String queryURL, String libraryName,
@@ -60,29 +132,32 @@ public class QueryCache
         Check.nonNull("libraryName", libraryName);
         Check.nonNull("queryURL", queryURL);
 
-        int h = hashKey(queryURL, libraryName, user);
+        Key key = new Key(queryURL, libraryName, user);
         if (trace)
-            System.err.println("get " + queryURL + " " + user + " " + h);
-
-        for (int i = 0, size = lru.size(); i < size; i++) {
-            Entry e = lru.get(i);
-            if (e.hash == h && !e.locked
-                && e.matches(queryURL, libraryName, user))
-            {
-                lru.remove(i);
-                if (isStale(e.queryURL, e.loadTime)) {
+            System.err.println("get " + queryURL + " " + user + " " + key.hash);
+
+        ArrayList<Entry> copies = index.get(key);
+        if (copies != null) {
+            for (int i = copies.size(); --i >= 0; ) {
+                Entry e = copies.get(i);
+                if (e.locked)
+                    continue;
+                if (checkOnHit && isStale(e.key.queryURL, e.loadTime)) {
+                    remove(e);
                     serverDriver.releaseSession(e.expr.getLibrary());
                     if (trace)
                         System.err.println("stale entry "
                                            + e.expr.getIdentifier());
-                    return null;
+                    continue;
                 }
                 if (trace)
                     System.err.println("hit " + e.expr);
                 if (stats != null)
                     stats.addAccess(true);
-                lru.add(0, e);
+                unlink(e);
+                linkFirst(e);
                 e.locked = true;
+                locked.put(e.expr, e);
                 return e.expr;
             }
         }
@@ -92,41 +167,175 @@ public class QueryCache
         return null;
     }
 
+    /**
+     * Adds a compiled expression, which is considered in use (locked) until
+     * it is released.
+     */
     public synchronized void put(Expression expr, String queryURL,
                                  String libName, String userName,
                                  long loadTimeNanos)
     {
-        Entry e = new Entry(expr, queryURL, libName, userName);
+        Entry e = new Entry(expr, new Key(queryURL, libName, userName));
         e.loadTime = System.currentTimeMillis() - loadTimeNanos / 1000000; // picky!
-        
-        lru.add(0, e);
-        if (lru.size() > maxEntryCount) {
-            e = lru.remove(lru.size() - 1);
-            serverDriver.releaseSession(e.expr.getLibrary());
+        e.size = estimateSize(expr);
+        e.locked = true;
+        locked.put(expr, e);
+
+        ArrayList<Entry> copies = index.get(e.key);
+        if (copies == null) {
+            copies = new ArrayList<Entry>(2);
+            index.put(e.key, copies);
+        }
+        else if (copies.size() >= maxCopies) {
+            // too many copies: the new one is just not cached
+            locked.remove(expr);
+            e.dropped = true;
+            if (stats != null)
+                stats.addMiss(-1, loadTimeNanos);
+            return;
+        }
+        copies.add(e);
+        linkFirst(e);
+        ++entryCount;
+        totalSize += e.size;
+
+        // eviction of least recently used entries:
+        for (Entry old = tail; old != null && old != e
+                               && (entryCount > maxEntryCount
+                                   || (maxSize > 0 && totalSize > maxSize)); )
+        {
+            Entry prev = old.prev;
+            remove(old);
+            if (!old.locked)
+                serverDriver.releaseSession(old.expr.getLibrary());
+            // else released by release()
+            old = prev;
         }
         if (stats != null) {
             stats.addMiss(-1, loadTimeNanos);
+            stats.size = totalSize;
         }
     }
 
     public synchronized void release(Expression expr)
     {
-        for(int i = 0, size = lru.size(); i < size; i++) {
-            Entry e = lru.get(i);
-            if (e.expr == expr) {
-                e.locked = false;
+        Entry e = locked.remove(expr);
+        if (e != null) {
+            e.locked = false;
+            if (!e.dropped)
                 return;
-            }
         }
         // dropped:
         serverDriver.releaseSession(expr.getLibrary());
     }
 
+    /**
+     * Removes all entries of queries stored in a file.
+     * <p>
+     * Returns the entries that were not in use: their session is not
+     * released, so that the caller can recompile the query in the same session,
+     * or release it. Entries in use are released by {@link #release}.
+     */
+    public synchronized ArrayList<Entry> invalidate(File file)
+    {
+        ArrayList<Entry> idle = new ArrayList<Entry>();
+        ArrayList<Key> keys = new ArrayList<Key>();
+        for (Key key : index.keySet()) {
+            if (file.equals(key.getFile()))
+                keys.add(key);
+        }
+        for (Key key : keys) {
+            ArrayList<Entry> copies = index.get(key);
+            for (int i = copies.size(); --i >= 0; ) {
+                Entry e = copies.get(i);
+                remove(e);
+                if (!e.locked)
+                    idle.add(e);
+            }
+        }
+        if (trace && !idle.isEmpty())
+            System.err.println("invalidated " + file);
+        return idle;
+    }
+
+    /**
+     * Returns the files of cached queries, with the oldest load time of
+     * their entries.
+     */
+    public synchronized Map<File, Long> getQueryFiles()
+    {
+        HashMap<File, Long> files = new HashMap<File, Long>();
+        for (Map.Entry<Key, ArrayList<Entry>> me : index.entrySet()) {
+            File file = me.getKey().getFile();
+            if (file == null)
+                continue;
+            for (Entry e : me.getValue()) {
+                Long time = files.get(file);
+                if (time == null || e.loadTime < time)
+                    files.put(file, e.loadTime);
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Estimated memory footprint of a compiled expression, in bytes:
+     * proportional to the size of its source code, plus the cost of the
+     * session it holds.
+     */
+    public static long estimateSize(Expression expr)
+    {
+        String source = expr.getSource();
+        int length = (source == null)? 0 : source.length();
+        return SESSION_FOOTPRINT + (long) length * BYTES_PER_SOURCE_CHAR;
+    }
+
+    // removes from index and LRU list; session is not released
+    private void remove(Entry e)
+    {
+        ArrayList<Entry> copies = index.get(e.key);
+        if (copies != null) {
+            copies.remove(e);
+            if (copies.isEmpty())
+                index.remove(e.key);
+        }
+        unlink(e);
+        e.dropped = true;
+        --entryCount;
+        totalSize -= e.size;
+        if (stats != null)
+            stats.size = totalSize;
+    }
+
+    private void linkFirst(Entry e)
+    {
+        e.prev = null;
+        e.next = head;
+        if (head != null)
+            head.prev = e;
+        head = e;
+        if (tail == null)
+            tail = e;
+    }
+
+    private void unlink(Entry e)
+    {
+        if (e.prev != null)
+            e.prev.next = e.next;
+        else if (head == e)
+            head = e.next;
+        if (e.next != null)
+            e.next.prev = e.prev;
+        else if (tail == e)
+            tail = e.prev;
+        e.prev = e.next = null;
+    }
+
     private boolean isStale(String queryURI, long timeStamp)
     {
         File file = FileUtil.urlToFile(queryURI);
         long now = System.currentTimeMillis();
-        
+
         return file != null && now  > timeStamp + minCheckTime &&
                file.lastModified() > timeStamp;
     }
@@ -138,32 +347,85 @@ public class QueryCache
                (user == null? 0 : user.hashCode());
     }
 
-    public static class Entry
+    static final class Key
     {
-        long    loadTime;
-        Expression expr;
-        String  queryURL;
-        String  userName;
-        String  libName;
-        int     hash; // speedup
-        boolean locked;
-        
-        public Entry(Expression expression, String queryURL, String libName, String user)
+        final String  queryURL;
+        final String  libName;
+        final String  userName;
+        final int     hash;
+        private File  file;
+
+        Key(String queryURL, String libName, String userName)
         {
-            this.expr = expression;
             this.queryURL = queryURL;
             this.libName = libName;
-            this.userName = user;
+            this.userName = userName;
             hash = hashKey(queryURL, libName, userName);
         }
-        
-        public boolean matches(String queryURL, String libraryName, String userName)
+
+        // local file of the query, or null
+        File getFile()
+        {
+            if (file == null)
+                file = FileUtil.urlToFile(queryURL);
+            return file;
+        }
+
+        @Override
+        public int hashCode()
         {
-            if ( !this.queryURL.equals(queryURL) || !libName.equals(libraryName))
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof Key))
                 return false;
-            if (this.userName == userName)
+            Key k = (Key) obj;
+            if (k.hash != hash || !queryURL.equals(k.queryURL)
+                || !libName.equals(k.libName))
+                return false;
+            if (userName == k.userName)
                 return true;
-            return (userName != null && userName.equals(this.userName));                
+            return (userName != null && userName.equals(k.userName));
+        }
+    }
+
+    public static class Entry
+    {
+        long    loadTime;
+        long    size;
+        Expression expr;
+        Key     key;
+        boolean locked;
+        boolean dropped;    // no longer in cache
+        Entry   prev, next; // LRU links
+
+        public Entry(Expression expression, Key key)
+        {
+            this.expr = expression;
+            this.key = key;
+        }
+
+        public Expression getExpression()
+        {
+            return expr;
+        }
+
+        public String getQueryURL()
+        {
+            return key.queryURL;
+        }
+
+        public String getLibraryName()
+        {
+            return key.libName;
+        }
+
+        public String getUserName()
+        {
+            return key.userName;
         }
     }
 }
@@ -8,6 +8,8 @@
  */
 package com.qizx.server.util;
 
+import com.qizx.api.DataModelException;
+import com.qizx.api.util.XMLSerializer;
 import com.qizx.util.basic.FileUtil;
 
 import com.xmlmind.multipartreq.MultipartRequest;
@@ -15,6 +17,7 @@ import com.xmlmind.multipartreq.Part;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.security.Principal;
 import java.util.Enumeration;
 
@@ -27,8 +30,10 @@ import javax.servlet.http.HttpServletResponse;
 /**
  * Abstract request handler for a servlet service.
  * <p>
- * A handler is instantiated for each HTTP request and wraps both request and
- * response (Command Design Pattern, for the pedantic).
+ * A handler wraps both request and response of an HTTP request (Command
+ * Design Pattern, for the pedantic). Handlers are reused for successive
+ * requests (see {@link RequestPool}): per-request state must be reset by
+ * {@link #recycle()}, or the handler must declare itself not reusable.
  */
 public abstract class Request
 {
@@ -40,6 +45,7 @@ public abstract class Request
     public static final String MIME_PLAIN_TEXT = "text/plain";
     public static final String MIME_CSV_TEXT = "text/csv";
     public static final String MIME_JSON = "application/json";
+    public static final String MIME_NDJSON = "application/x-ndjson";
     public static final String MIME_XML = "text/xml";
 
 
@@ -51,6 +57,15 @@ public abstract class Request
     protected HttpServletResponse response;
     protected ServletOutputStream output;
 
+    // factory to which this handler is given back:
+    RequestFactory factory;
+
+    // reusable buffers, kept while the handler is pooled:
+    private PooledSerializer serializer;
+    private JSONItemWriter jsonWriter;
+    private StringBuilder textBuffer;
+    private byte[] ioBuffer;
+
     public abstract String getName();
     
     public void handleHead()
@@ -94,6 +109,78 @@ public abstract class Request
 
     public abstract void cleanup();
 
+    /**
+     * Returns true if this handler can be reused for another request after
+     * {@link #recycle()}. By default true.
+     */
+    public boolean isReusable()
+    {
+        return true;
+    }
+
+    /**
+     * Resets per-request state before reuse of the handler. Redefined by
+     * handlers that have own per-request fields.
+     */
+    public void recycle()
+    {
+        request = null;
+        response = null;
+        multipart = null;
+        output = null;
+        opName = null;
+        factory = null;
+        if (textBuffer != null && textBuffer.capacity() > 8192)
+            textBuffer = null;
+    }
+
+    /**
+     * Returns the XML serializer of this handler, with default options and
+     * ready to write on the specified output.
+     */
+    protected XMLSerializer getSerializer(OutputStream out, String encoding)
+        throws DataModelException
+    {
+        if (serializer == null)
+            serializer = new PooledSerializer();
+        serializer.recycle(out, encoding);
+        return serializer;
+    }
+
+    /**
+     * Returns the JSON writer of this handler, ready to write on the
+     * specified output.
+     */
+    protected JSONItemWriter getJSONWriter(OutputStream out)
+    {
+        if (jsonWriter == null)
+            jsonWriter = new JSONItemWriter(out);
+        else
+            jsonWriter.setOutput(out);
+        return jsonWriter;
+    }
+
+    /**
+     * Returns an empty StringBuilder, for building status lines and messages.
+     */
+    protected StringBuilder getTextBuffer()
+    {
+        if (textBuffer == null)
+            textBuffer = new StringBuilder(256);
+        textBuffer.setLength(0);
+        return textBuffer;
+    }
+
+    /**
+     * Returns a byte buffer for copying data.
+     */
+    protected byte[] getIOBuffer()
+    {
+        if (ioBuffer == null)
+            ioBuffer = new byte[8192];
+        return ioBuffer;
+    }
+
     protected void multipartCleanup()
         throws IOException, ServletException
     {
@@ -102,7 +189,8 @@ public abstract class Request
  
         Part[] parts;
         try {
-            parts = multipart.getParts();
+            // in streaming mode, unread parts are skipped
+            parts = multipart.getReceivedParts();
             for (int i = 0; i < parts.length; ++i) {
                 try {
                     parts[i].delete();
@@ -289,6 +377,32 @@ public abstract class Request
     {
         return request.getCookies();
     }
+
+    /**
+     * Serializer reset to default options for each use.
+     */
+    private static class PooledSerializer extends XMLSerializer
+    {
+        void recycle(OutputStream out, String encoding)
+            throws DataModelException
+        {
+            setOption(METHOD, "XML");
+            setOption(VERSION, "1.0");
+            setOption(STANDALONE, "no");
+            setOption(MEDIA_TYPE, null);
+            setOption(ESCAPE_URI_ATTRIBUTES, "yes");
+            setOption(INCLUDE_CONTENT_TYPE, "yes");
+            setOption(STRIP_PI, "no");
+            setOption(STRIP_COMMENT, "no");
+            setOption(AUTO_DTD, "yes");
+            setOmitXMLDeclaration(false);
+            setIndent(-1);
+            // DTD of the previous document, or options doctype-*:
+            dtdName = dtdPublicId = dtdSystemId = dtdInternalSubset = null;
+            setOutput(out, encoding);
+            reset();
+        }
+    }
 }
 
 //        Enumeration params = getParameterNames();
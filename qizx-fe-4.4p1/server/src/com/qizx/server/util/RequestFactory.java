@@ -0,0 +1,37 @@
+/*
+ *    Qizx Free_Engine-4.4p1
+ *
+ *    This code is part of the Qizx application components
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.server.util;
+
+import javax.servlet.ServletException;
+
+/**
+ * Provides handlers for one kind of request of a {@link ServletBase}.
+ * <p>
+ * A factory can create a handler for each HTTP request, or reuse handlers:
+ * a handler is given back with {@link #releaseRequest} at the end of the
+ * request, after its cleanup.
+ */
+public interface RequestFactory
+{
+    /**
+     * Name of the operation handled (value of parameter 'op').
+     */
+    String getName();
+
+    /**
+     * Returns a handler ready for {@link Request#prepare}.
+     */
+    Request newRequest()
+        throws ServletException;
+
+    /**
+     * Gives back a handler after use.
+     */
+    void releaseRequest(Request handler);
+}
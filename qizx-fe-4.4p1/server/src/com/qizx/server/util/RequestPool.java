@@ -0,0 +1,95 @@
+/*
+ *    Qizx Free_Engine-4.4p1
+ *
+ *    This code is part of the Qizx application components
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.server.util;
+
+import javax.servlet.ServletException;
+
+/**
+ * Default handler factory: keeps up to a fixed number of idle handlers of the
+ * class of a prototype, so that busy requests do not instantiate a handler
+ * (and its buffers) each time.
+ * <p>
+ * Handlers are recycled with {@link Request#recycle()} before being kept.
+ * With a capacity of 0, a new handler is created for each request.
+ */
+public class RequestPool
+    implements RequestFactory
+{
+    private final String name;
+    private final Class<? extends Request> handlerClass;
+    private final Request[] idle;
+    private int idleCount;
+
+    public RequestPool(Request prototype, int capacity)
+    {
+        this(prototype.getName(), prototype, capacity);
+    }
+
+    public RequestPool(String name, Request prototype, int capacity)
+    {
+        this.name = name;
+        this.handlerClass = prototype.getClass();
+        this.idle = new Request[Math.max(capacity, 0)];
+        // the prototype is a fresh handler: use it first
+        if (idle.length > 0 && prototype.isReusable())
+            idle[idleCount++] = prototype;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public Request newRequest()
+        throws ServletException
+    {
+        synchronized (this) {
+            if (idleCount > 0) {
+                Request h = idle[--idleCount];
+                idle[idleCount] = null;
+                return h;
+            }
+        }
+        try {
+            return handlerClass.newInstance();
+        }
+        catch (InstantiationException e) {
+            throw new ServletException(e);
+        }
+        catch (IllegalAccessException e) {
+            throw new ServletException(e);
+        }
+    }
+
+    public void releaseRequest(Request handler)
+    {
+        if (idle.length == 0 || !handler.isReusable())
+            return;
+        handler.recycle();
+        synchronized (this) {
+            if (idleCount < idle.length)
+                idle[idleCount++] = handler;
+        }
+    }
+
+    /**
+     * Drops idle handlers.
+     */
+    public synchronized void clear()
+    {
+        for (int i = 0; i < idleCount; i++)
+            idle[i] = null;
+        idleCount = 0;
+    }
+
+    public synchronized int getIdleCount()
+    {
+        return idleCount;
+    }
+}
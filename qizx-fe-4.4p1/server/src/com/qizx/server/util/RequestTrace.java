@@ -0,0 +1,92 @@
+/*
+ *    Qizx Free_Engine-4.4p1
+ *
+ *    This code is part of the Qizx application components
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.server.util;
+
+/**
+ * Timings of the phases of one request, for the slow request log.
+ * <p>
+ * A trace exists only for requests sampled by the {@link RequestTracer}: code
+ * measuring a phase gets the trace of the request and does nothing if it is
+ * null. Used by one thread at a time.
+ */
+public final class RequestTrace
+{
+    /** Acquisition of a Library session (pool lookup or open). */
+    public static final int SESSION = 0;
+    /** Lookup and loading of a stored query. */
+    public static final int LOAD = 1;
+    /** Compilation of a query. */
+    public static final int COMPILE = 2;
+    /** Start of evaluation (the sequence is then evaluated lazily). */
+    public static final int EVALUATE = 3;
+    /** Iteration on results and output to the client. */
+    public static final int SERIALIZE = 4;
+    /** Wait for admission (see {@link AdmissionController}). */
+    public static final int ADMISSION = 5;
+
+    static final String[] PHASE_NAMES = {
+        "session", "load", "compile", "evaluate", "serialize", "admission"
+    };
+
+    final String operation;
+    final long startTime;
+    final long[] phaseTimes = new long[PHASE_NAMES.length];
+    String library;
+    long queryHash;
+    int queryLength = -1;
+
+    RequestTrace(String operation, long startTime)
+    {
+        this.operation = operation;
+        this.startTime = startTime;
+    }
+
+    /**
+     * Adds time spent in a phase.
+     * @param phase a phase constant, eg {@link #COMPILE}
+     * @param nanos duration in nanoseconds
+     */
+    public void addTime(int phase, long nanos)
+    {
+        phaseTimes[phase] += nanos;
+    }
+
+    /**
+     * Adds the time elapsed since a start time obtained from System.nanoTime.
+     */
+    public void addTimeSince(int phase, long startNanos)
+    {
+        phaseTimes[phase] += System.nanoTime() - startNanos;
+    }
+
+    public void setLibrary(String library)
+    {
+        this.library = library;
+    }
+
+    /**
+     * Identifies the query: only a hash and the length are kept.
+     */
+    public void setQuery(CharSequence query)
+    {
+        // FNV-1a, 64 bits
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0, len = query.length(); i < len; i++) {
+            h ^= query.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        queryHash = h;
+        queryLength = query.length();
+    }
+
+    public long getPhaseTime(int phase)
+    {
+        return phaseTimes[phase];
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ *    Qizx Free_Engine-4.4p1
+ *
+ *    This code is part of the Qizx application components
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.server.util;
+
+import com.qizx.api.util.logging.Statistics;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Traces a sample of requests, and logs those slower than a threshold with
+ * the time spent in each phase (see {@link RequestTrace}).
+ * <p>
+ * Each entry of the slow request log is one line of key=value fields:
+ * <pre>
+ * time=... op=eval duration_ms=1234.567 library=lib user=john
+ *   query_hash=... query_length=... session_ms=... load_ms=... compile_ms=...
+ *   evaluate_ms=... serialize_ms=... other_ms=...
+ * </pre>
+ * The query text itself is not logged (for stored queries, the hash is that
+ * of their location). The time of each phase of traced requests is also
+ * accumulated in statistics "server|phase|name".
+ */
+public class RequestTracer
+{
+    private final QizxDriver driver;
+    private final long thresholdNanos;
+    private final int sampling;     // out of 65536
+    private final File logFile;
+    private final Statistics.Activity[] phaseStats;
+    private final SimpleDateFormat dateFormat =
+        new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+
+    /**
+     * @param thresholdMillis duration above which a traced request is logged;
+     * if <= 0, no request is traced.
+     * @param samplingPercent percentage of requests traced
+     * @param logFile file of the slow request log; if null, the log of the
+     * driver is used.
+     */
+    public RequestTracer(QizxDriver driver, Statistics stats,
+                         int thresholdMillis, int samplingPercent, File logFile)
+    {
+        this.driver = driver;
+        this.thresholdNanos = thresholdMillis * 1000000L;
+        int percent = Math.max(0, Math.min(samplingPercent, 100));
+        this.sampling = (thresholdMillis <= 0)? 0 : percent * 65536 / 100;
+        this.logFile = logFile;
+        phaseStats = new Statistics.Activity[RequestTrace.PHASE_NAMES.length];
+        for (int p = 0; p < phaseStats.length && sampling > 0; p++) {
+            String name = RequestTrace.PHASE_NAMES[p];
+            phaseStats[p] = stats.forActivity("server|phase|" + name, "Activity",
+                                              "Request phase '" + name
+                                              + "' (traced requests)");
+        }
+    }
+
+    public boolean isEnabled()
+    {
+        return sampling > 0;
+    }
+
+    /**
+     * Starts tracing a request if it is sampled.
+     * @return a trace, or null if the request is not traced
+     */
+    public RequestTrace start(String operation)
+    {
+        long now = System.nanoTime();
+        if (sampling == 0)
+            return null;
+        if (sampling < 65536 && (mix(now) & 0xffff) >= sampling)
+            return null;
+        return new RequestTrace(operation, now);
+    }
+
+    /**
+     * Ends a trace: records phase times, and logs the request if slow.
+     */
+    public void end(RequestTrace trace, String userName)
+    {
+        long duration = System.nanoTime() - trace.startTime;
+        for (int p = 0; p < phaseStats.length; p++) {
+            long time = trace.phaseTimes[p];
+            if (time > 0)
+                phaseStats[p].addTime(time);
+        }
+        if (duration >= thresholdNanos)
+            log(trace, duration, userName);
+    }
+
+    private void log(RequestTrace trace, long duration, String userName)
+    {
+        StringBuilder line = new StringBuilder(256);
+        synchronized (dateFormat) {
+            line.append("time=").append(dateFormat.format(new Date()));
+        }
+        line.append(" op=");
+        appendValue(line, trace.operation);
+        line.append(" duration_ms=");
+        appendMillis(line, duration);
+        if (trace.library != null) {
+            line.append(" library=");
+            appendValue(line, trace.library);
+        }
+        if (userName != null) {
+            line.append(" user=");
+            appendValue(line, userName);
+        }
+        if (trace.queryLength >= 0) {
+            line.append(" query_hash=").append(Long.toHexString(trace.queryHash));
+            line.append(" query_length=").append(trace.queryLength);
+        }
+        long other = duration;
+        for (int p = 0; p < trace.phaseTimes.length; p++) {
+            long time = trace.phaseTimes[p];
+            line.append(' ').append(RequestTrace.PHASE_NAMES[p]).append("_ms=");
+            appendMillis(line, time);
+            other -= time;
+        }
+        line.append(" other_ms=");
+        appendMillis(line, Math.max(other, 0));
+
+        if (logFile == null) {
+            driver.log("slow request: " + line);
+            return;
+        }
+        line.append('\n');
+        synchronized (this) {
+            try {
+                Writer out = new OutputStreamWriter(
+                                 new FileOutputStream(logFile, true), "UTF-8");
+                try {
+                    out.write(line.toString());
+                }
+                finally {
+                    out.close();
+                }
+            }
+            catch (IOException e) {
+                driver.log("cannot write slow request log " + logFile + ": " + e);
+            }
+        }
+    }
+
+    private static void appendMillis(StringBuilder sb, long nanos)
+    {
+        long micros = nanos / 1000;
+        sb.append(micros / 1000).append('.');
+        long frac = micros % 1000;
+        if (frac < 100)
+            sb.append('0');
+        if (frac < 10)
+            sb.append('0');
+        sb.append(frac);
+    }
+
+    // quoted if it contains spaces, quotes or '='
+    private static void appendValue(StringBuilder sb, String value)
+    {
+        boolean plain = value.length() > 0;
+        for (int i = 0, len = value.length(); i < len && plain; i++) {
+            char c = value.charAt(i);
+            plain = c > ' ' && c != '"' && c != '=';
+        }
+        if (plain) {
+            sb.append(value);
+            return;
+        }
+        sb.append('"');
+        for (int i = 0, len = value.length(); i < len; i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\')
+                sb.append('\\');
+            sb.append(c < ' '? ' ' : c);
+        }
+        sb.append('"');
+    }
+
+    // spreads bits of the clock and thread id, enough for sampling
+    private static long mix(long now)
+    {
+        long z = now ^ (Thread.currentThread().getId() * 0x9e3779b97f4a7c15L);
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
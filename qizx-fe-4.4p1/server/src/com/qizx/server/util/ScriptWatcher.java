@@ -0,0 +1,261 @@
+/*
+ *    Qizx Free_Engine-4.4p1
+ *
+ *    This code is part of the Qizx application components
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.server.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Detects modifications of stored queries (XQuery Services and XQSP pages)
+ * in a background thread, and pushes invalidations into the {@link QueryCache},
+ * so that cache hits never need to access the disk.
+ * <p>
+ * Invalidated queries that were idle in the cache are recompiled in the
+ * background in their own session, so that the first request after a
+ * deployment does not pay the compilation.
+ * <p>
+ * Two modes are supported: a WatchService over the root directories, or
+ * polling the files of cached queries at a fixed interval, for file-systems
+ * where watch events are unreliable. The watcher falls back to polling if
+ * the WatchService cannot be used.
+ */
+public class ScriptWatcher
+    implements Runnable
+{
+    // time to wait for more events after a first one (editors, deployments)
+    private static final long SETTLE_TIME = 200;
+
+    private QizxDriver driver;
+    private QueryCache cache;
+    private ArrayList<File> roots = new ArrayList<File>();
+    private long pollInterval;      // ms
+    private boolean polling;
+
+    private volatile Thread thread;
+    // closed by stop() while the watcher thread uses them:
+    private volatile WatchService watcher;
+    private ConcurrentHashMap<WatchKey, Path> watchedDirs =
+        new ConcurrentHashMap<WatchKey, Path>();
+
+    /**
+     * @param pollInterval interval in milliseconds between checks in polling
+     * mode, and between safety checks in watch mode.
+     * @param polling if true, use polling mode instead of a WatchService.
+     */
+    public ScriptWatcher(QizxDriver driver, QueryCache cache,
+                         long pollInterval, boolean polling)
+    {
+        this.driver = driver;
+        this.cache = cache;
+        this.pollInterval = Math.max(pollInterval, 100);
+        this.polling = polling;
+    }
+
+    /**
+     * Adds a root directory to watch, including its sub-directories.
+     */
+    public void addRoot(File root)
+    {
+        if (root != null && root.isDirectory())
+            roots.add(root.getAbsoluteFile());
+    }
+
+    public boolean isPolling()
+    {
+        return polling;
+    }
+
+    public synchronized void start()
+    {
+        if (thread != null)
+            return;
+        if (!polling) {
+            try {
+                watcher = FileSystems.getDefault().newWatchService();
+                for (File root : roots)
+                    registerTree(root);
+            }
+            catch (Exception e) {
+                driver.log("stored query watcher: cannot watch directories ("
+                           + e + "), using polling");
+                closeWatcher();
+                polling = true;
+            }
+        }
+        cache.setCheckOnHit(false);
+        Thread t = new Thread(this, "Qizx stored query watcher");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        thread = t;
+        t.start();
+    }
+
+    public synchronized void stop()
+    {
+        Thread t = thread;
+        thread = null;
+        if (t != null)
+            t.interrupt();
+        closeWatcher();
+        cache.setCheckOnHit(true);
+    }
+
+    public void run()
+    {
+        try {
+            if (polling)
+                pollLoop();
+            else
+                watchLoop();
+        }
+        catch (InterruptedException e) {
+            ; // stopped
+        }
+        catch (ClosedWatchServiceException e) {
+            ; // stopped
+        }
+        catch (Exception e) {
+            driver.log("stored query watcher stopped on error: " + e);
+            cache.setCheckOnHit(true);
+        }
+    }
+
+    private void pollLoop()
+        throws InterruptedException
+    {
+        while (thread == Thread.currentThread()) {
+            Thread.sleep(pollInterval);
+            checkQueryFiles();
+        }
+    }
+
+    private void watchLoop()
+        throws InterruptedException
+    {
+        WatchService watcher = this.watcher;
+        long lastCheck = System.currentTimeMillis();
+        while (thread == Thread.currentThread()) {
+            WatchKey key = watcher.poll(pollInterval, TimeUnit.MILLISECONDS);
+            LinkedHashSet<File> changed = new LinkedHashSet<File>();
+            boolean overflow = false;
+            // gather events until things settle down:
+            for (; key != null;
+                   key = watcher.poll(SETTLE_TIME, TimeUnit.MILLISECONDS))
+            {
+                if (collectEvents(key, changed))
+                    overflow = true;
+            }
+            for (File file : changed)
+                invalidate(file);
+            // events may be lost: check all cached files from time to time
+            if (overflow || System.currentTimeMillis() > lastCheck + 60000) {
+                checkQueryFiles();
+                lastCheck = System.currentTimeMillis();
+            }
+        }
+    }
+
+    // returns true on overflow
+    private boolean collectEvents(WatchKey key, LinkedHashSet<File> changed)
+    {
+        boolean overflow = false;
+        Path dir = watchedDirs.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                overflow = true;
+                continue;
+            }
+            if (dir == null)
+                continue;
+            File file = dir.resolve((Path) event.context()).toFile();
+            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE
+                && file.isDirectory()) {
+                try {
+                    registerTree(file);
+                }
+                catch (IOException e) {
+                    driver.log("stored query watcher: cannot watch " + file);
+                }
+            }
+            else
+                changed.add(file);
+        }
+        if (!key.reset())
+            watchedDirs.remove(key);
+        return overflow;
+    }
+
+    private void registerTree(File dir)
+        throws IOException
+    {
+        WatchService watcher = this.watcher;
+        if (watcher == null)
+            return; // stopped
+        Path path = dir.toPath();
+        WatchKey key =
+            path.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                          StandardWatchEventKinds.ENTRY_DELETE,
+                          StandardWatchEventKinds.ENTRY_MODIFY);
+        watchedDirs.put(key, path);
+        File[] children = dir.listFiles();
+        if (children != null)
+            for (File child : children)
+                if (child.isDirectory())
+                    registerTree(child);
+    }
+
+    // checks cached queries on disk (polling mode)
+    private void checkQueryFiles()
+    {
+        for (Map.Entry<File, Long> e : cache.getQueryFiles().entrySet()) {
+            File file = e.getKey();
+            if (!file.exists() || file.lastModified() > e.getValue())
+                invalidate(file);
+        }
+    }
+
+    private void invalidate(File file)
+    {
+        ArrayList<QueryCache.Entry> idle = cache.invalidate(file);
+        boolean exists = file.isFile();
+        for (QueryCache.Entry e : idle) {
+            if (exists)
+                driver.recompileStoredQuery(e);
+            else
+                driver.releaseSession(e.getExpression().getLibrary());
+        }
+    }
+
+    private void closeWatcher()
+    {
+        WatchService w = watcher;
+        if (w != null) {
+            watcher = null;
+            try {
+                w.close();
+            }
+            catch (IOException e) {
+                ; // ignored
+            }
+        }
+        watchedDirs.clear();
+    }
+}
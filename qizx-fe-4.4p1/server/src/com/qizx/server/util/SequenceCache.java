@@ -13,33 +13,88 @@ import com.qizx.api.ItemSequence;
 import com.qizx.api.Library;
 import com.qizx.api.User;
 import com.qizx.api.util.logging.Statistics;
-import com.qizx.util.basic.PathUtil;
 
+import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A Pool of evaluated ItemSequences.
  * <p>
  * Everything is done so that a user who requires consecutive pages of items on a
  * given query would retrieve the same Sequence.
+ * <p>
+ * There is no global lock: each key (library, user, query) has its own list
+ * of sequences, and each cached sequence is claimed atomically by exactly one
+ * of acquire, eviction or invalidation.
+ * <p>
+ * For smart invalidation, the root paths of the expression of each cached
+ * sequence are indexed in a path trie per (library, user). A commit touching
+ * N collections only visits the trie nodes on the path of each collection,
+ * i.e. O(N * depth), instead of comparing every cached sequence.
+ * <p>
+ * The cache is bounded by a number of sequences, by an estimated size in
+ * bytes (see {@link #estimateSize(ItemSequence)}), and optionally by an idle
+ * time, so that sessions pinned by forgotten sequences are returned to the
+ * pool. Eviction is LRU on individual sequences.
+ * <p>
+ * A sequence can also be released with an opaque cursor token, which allows
+ * the next request to resume exactly this sequence at its current position,
+ * without searching the closest position.
  */
 public class SequenceCache
 {
-    private LinkedHashMap<String, Entry> hash;
+    // rough cost of an open session and its evaluation context:
+    private static final int SESSION_FOOTPRINT = 64 * 1024;
+    // rough cost of an item already traversed (buffers, sort, node cache):
+    private static final int ITEM_FOOTPRINT = 128;
+
+    private ConcurrentHashMap<String, Entry> hash;
+    // path index, by (library, user):
+    private ConcurrentHashMap<String, PathIndex> pathIndexes;
+    // cached sequences in release order; may contain claimed sequences:
+    private ConcurrentLinkedQueue<Cached> lru;
+    // sequences released with a cursor token:
+    private ConcurrentHashMap<String, Cached> cursors;
+    private SecureRandom cursorGenerator = new SecureRandom();
     private int maxEntryCount;
-    private int entryCount;
+    private AtomicInteger entryCount = new AtomicInteger();
+    private AtomicInteger lruCount = new AtomicInteger();
+    private AtomicLong totalSize = new AtomicLong();
     //private int hits, misses;
     Statistics.Cache stats;
     private long maxSize;
+    private long maxIdleTime;   // ms, no limit if <= 0
     private boolean smart = true;
-    
+    private Evictor evictor;
+
+    /**
+     * Receives sequences dropped from the cache, in order to release their
+     * resources (session, expression).
+     */
+    public interface Evictor
+    {
+        void evict(ItemSequence sequence);
+    }
+
+    /**
+     * @param maxEntryCount maximum number of cached sequences
+     * @param maxSize maximum estimated size in bytes, no limit if <= 0
+     */
     public SequenceCache(int maxEntryCount, long maxSize)
     {
         this.maxEntryCount = maxEntryCount;
         this.maxSize = maxSize;
-        hash = new LinkedHashMap<String, Entry>();
+        hash = new ConcurrentHashMap<String, Entry>();
+        pathIndexes = new ConcurrentHashMap<String, PathIndex>();
+        lru = new ConcurrentLinkedQueue<Cached>();
+        cursors = new ConcurrentHashMap<String, Cached>();
     }
 
     public boolean isSmart()
@@ -62,141 +117,329 @@ public class SequenceCache
         this.stats = stats;
     }
 
+    /**
+     * Defines the time after which an unused sequence is evicted.
+     * @param maxIdleTime in milliseconds, no limit if <= 0
+     */
+    public void setMaxIdleTime(long maxIdleTime)
+    {
+        this.maxIdleTime = maxIdleTime;
+    }
+
+    public long getMaxIdleTime()
+    {
+        return maxIdleTime;
+    }
+
+    /**
+     * Returns the estimated memory size of cached sequences, in bytes.
+     */
+    public long getSize()
+    {
+        return totalSize.get();
+    }
+
+    public int getSequenceCount()
+    {
+        return entryCount.get();
+    }
+
+    public Evictor getEvictor()
+    {
+        return evictor;
+    }
+
+    public void setEvictor(Evictor evictor)
+    {
+        this.evictor = evictor;
+    }
+
     /**
      * Looks for a ready computed sequence matching query and library, and closest
      * to startPos.
      * <p>A matching sequence is removed from the cache and returned.
-     * @param mode 
+     * @param mode
      */
-    public synchronized ItemSequence acquire(String libraryName, String user,
-                                             String query, boolean profiling, long startPos)
+    public ItemSequence acquire(String libraryName, String user,
+                                String query, boolean profiling, long startPos)
     {
-        
-        if(stats != null)
-            stats.count();
+        Statistics.Cache st = stats;
+        if(st != null)
+            st.count();
         long t0 = System.nanoTime();
-        
+
         // must match these 3 keys:
-        String key = hashKey(libraryName, user, query);
-        Entry e = hash.get(key);
+        Entry e = hash.get(hashKey(libraryName, user, query));
         if (e == null) { // try with null user (matches any user)
-            key = hashKey(libraryName, null, query);
-            e = hash.get(key);
+            e = hash.get(hashKey(libraryName, null, query));
         }
 
         if (e != null) {
-            ItemSequence best = null;
-            int bestPenalty = Integer.MAX_VALUE;
-            for (ItemSequence s : e) {
-                if (profiling && s.getExpression() != null &&
-                                !s.getExpression().isProfiled())
-                    continue;
-                long dist = startPos - s.getPosition();
-                int penalty;
-                if (dist < 0)
-                    // too far: higher penalty
-                    penalty = (int) (-4 * dist);
-                else
-                    penalty = (int) dist;
-                if (penalty < bestPenalty) {
-                    bestPenalty = penalty;
-                    best = s;
+            Cached best = null;
+            synchronized (e) {
+                int bestPenalty = Integer.MAX_VALUE;
+                for (Cached c : e.sequences) {
+                    ItemSequence s = c.sequence;
+                    if (profiling && s.getExpression() != null &&
+                                    !s.getExpression().isProfiled())
+                        continue;
+                    long dist = startPos - s.getPosition();
+                    int penalty;
+                    if (dist < 0)
+                        // too far: higher penalty
+                        penalty = (int) (-4 * dist);
+                    else
+                        penalty = (int) dist;
+                    if (penalty < bestPenalty) {
+                        bestPenalty = penalty;
+                        best = c;
+                    }
                 }
+                if (best != null && best.claim()) {
+                    e.sequences.remove(best);
+                    if (e.sequences.isEmpty()) {
+                        e.removed = true;
+                        hash.remove(best.key, e);
+                    }
+                }
+                else
+                    best = null;
             }
             if(best != null) {
-                
-                e.remove(best);
-                -- entryCount;
-                return best;
+                forget(best);
+                return best.sequence;
             }
         }
-        
-        if(stats != null)
-            stats.addMiss(0, System.nanoTime() - t0);
+
+        if(st != null)
+            st.addMiss(0, System.nanoTime() - t0);
         return null;
     }
 
     /**
-     * Puts a sequence back to the cache. 
+     * Looks for the sequence released with a cursor token, for the same
+     * library and user.
+     * <p>The sequence is removed from the cache and returned as is, i.e at
+     * the position where it was released. Returns null if the cursor is
+     * unknown or the sequence has been evicted.
+     * @param libraryName if null, any library matches
+     */
+    public ItemSequence acquireCursor(String cursor, String libraryName,
+                                      String user)
+    {
+        Cached c = cursors.get(cursor);
+        if (c == null || !c.matches(libraryName, user) || !c.claim())
+            return null;
+        Statistics.Cache st = stats;
+        if(st != null)
+            st.count();
+        removeFromEntry(c);
+        forget(c);
+        return c.sequence;
+    }
+
+    /**
+     * Puts a sequence back to the cache.
      * Note: a used Sequence is not in the cache.
-     * This methods handles cache eviction in LRU way: older sequences are evicted
-     * returns the evicted Sequence, or null if none.
+     * This methods handles cache eviction in LRU way: older sequences are
+     * passed to the Evictor.
      */
-    public synchronized ItemSequence release(ItemSequence seq)
+    public void release(ItemSequence seq)
+    {
+        release(seq, false);
+    }
+
+    /**
+     * Puts a sequence back to the cache, optionally with a cursor token.
+     * @param withCursor if true, returns a cursor token that can be passed
+     * to {@link #acquireCursor} to resume the sequence at its position.
+     * @return a cursor token, or null if not requested or sequence not cached.
+     */
+    public String release(ItemSequence seq, boolean withCursor)
     {
         Expression expr = seq.getExpression();
         // FIX: if expression is closed it is useless to cache it
         if (expr == null || expr.isClosed())
             return null;
         // FIX: never cache sequences of expr that modify the context
-        //   instead return the sequence itself: will release the session
-        if (expr.isUpdating())
-            return seq;
-        
+        //   instead evict the sequence itself: will release the session
+        if (expr.isUpdating()) {
+            evicted(seq);
+            return null;
+        }
+
         String query = expr.getSource();
         Library library = expr.getLibrary();
         if (library == null)
             return null; // what's that crap?
-        
+
         String libName = library.getName();
         User u = library.getUser();
         String userName = (u == null)? null : u.getName();
-        
 
-        String key = hashKey(libName, userName, query);
-        Entry e = hash.get(key);
-        if (e == null) {
-            e = new Entry();
-            hash.put(key, e);
+        Cached c = new Cached(seq, hashKey(libName, userName, query),
+                              indexKey(libName, userName));
+        c.libraryName = libName;
+        c.userName = userName;
+        c.size = estimateSize(seq);
+        if (withCursor)
+            c.cursor = Long.toString(cursorGenerator.nextLong() & Long.MAX_VALUE, 36);
+        if (smart) {
+            c.rootPaths = expr.getRootPaths();
+            if (c.rootPaths == null)    // depends on whole Library
+                c.rootPaths = new String[] { null };
+        }
+
+        // counted and added to its entry before it can be found and claimed
+        // through the cursor or path index, so that forget() balances it
+        entryCount.incrementAndGet();
+        totalSize.addAndGet(c.size);
+        for (;;) {
+            Entry e = hash.get(c.key);
+            if (e == null) {
+                e = new Entry(libName);
+                Entry old = hash.putIfAbsent(c.key, e);
+                if (old != null)
+                    e = old;
+            }
+            synchronized (e) {
+                if (!e.removed) {
+                    e.sequences.add(c);
+                    break;
+                }
+            }
+            // else removed concurrently: retry
         }
-        e.add(seq);
-        ++ entryCount;
-        
-        // eviction:
-        if (entryCount > maxEntryCount) {
-            // need to drop a sequence: 
-            // we use a LinkedHashMap, so we get the oldest key:
-            Iterator<String> iter = hash.keySet().iterator();
-            if (iter.hasNext()) { // should
-                key = iter.next();
-                e = hash.get(key);
-                if (e.size() > 0)
-                    seq = e.remove(0);
-                if (e.size() == 0)
-                    hash.remove(key);
-                return seq;
+
+        if (c.cursor != null)
+            cursors.put(c.cursor, c);
+        PathIndex pindex = null;
+        if (c.rootPaths != null) {
+            pindex = pathIndexes.get(c.indexKey);
+            if (pindex == null) {
+                pindex = new PathIndex();
+                PathIndex old = pathIndexes.putIfAbsent(c.indexKey, pindex);
+                if (old != null)
+                    pindex = old;
             }
+            pindex.add(c);
         }
-        return null;
+        if (c.claimed.get()) {
+            // acquired or evicted meanwhile: forget() may have run before
+            // the sequence was published
+            if (c.cursor != null)
+                cursors.remove(c.cursor, c);
+            if (pindex != null)
+                pindex.remove(c);
+            return null;
+        }
+        lru.offer(c);
+        lruCount.incrementAndGet();
+
+        // eviction of least recently released sequences:
+        while (entryCount.get() > maxEntryCount
+               || (maxSize > 0 && totalSize.get() > maxSize)) {
+            if (!evictOldest())
+                break;
+        }
+        evictIdle();
+        updateStats();
+        // purge sequences acquired since they were released:
+        if (lruCount.get() > 2 * maxEntryCount + 16) {
+            for (Iterator<Cached> it = lru.iterator(); it.hasNext(); ) {
+                if (it.next().claimed.get()) {
+                    it.remove();
+                    lruCount.decrementAndGet();
+                }
+            }
+        }
+        return c.cursor;
     }
-    
+
+    /**
+     * Evicts sequences unused for more than the maximum idle time.
+     * Invoked on each release, and should be invoked periodically
+     * so that pinned sessions are returned to the pool.
+     */
+    public void evictIdle()
+    {
+        if (maxIdleTime <= 0)
+            return;
+        long limit = System.currentTimeMillis() - maxIdleTime;
+        for (Cached c; (c = lru.peek()) != null && c.releaseTime < limit; ) {
+            if (!evictOldest())
+                break;
+        }
+    }
+
+    /**
+     * Estimated memory footprint of a cached sequence, in bytes: cost of its
+     * session, plus a cost per item traversed so far, which approximates the
+     * items materialized by the evaluation.
+     */
+    public static long estimateSize(ItemSequence seq)
+    {
+        long size = SESSION_FOOTPRINT;
+        Expression expr = seq.getExpression();
+        if (expr != null && expr.getSource() != null)
+            size += 2 * expr.getSource().length();
+        return size + Math.max(0, seq.getPosition()) * ITEM_FOOTPRINT;
+    }
+
+    // returns false if the LRU list is empty
+    private boolean evictOldest()
+    {
+        Cached old = lru.poll();
+        if (old == null)
+            return false;
+        lruCount.decrementAndGet();
+        if (old.claim()) {
+            removeFromEntry(old);
+            forget(old);
+            evicted(old.sequence);
+        }
+        return true;
+    }
+
+    private void updateStats()
+    {
+        Statistics.Cache st = stats;
+        if (st != null)
+            st.size = totalSize.get();
+    }
+
     /**
      * Invalidates any sequence evaluated on a particular XML Library.
      */
-    public synchronized void invalidateAll(String libraryName)
+    public void invalidateAll(String libraryName)
     {
-        for(Entry e : hash.values()) {
-            for(int sp = e.size(); --sp >= 0; )
-            {
-                Expression expr = e.get(sp).getExpression();
-                if(expr == null || expr.getLibrary() == null)
-                    continue; // 
-                Library library = expr.getLibrary();
-                if (libraryName == null || 
-                    libraryName.equals(library.getName())) {
-                    e.remove(sp);
+        for (Entry e : hash.values()) {
+            if (libraryName != null && !libraryName.equals(e.libraryName))
+                continue;
+            ArrayList<Cached> dropped = new ArrayList<Cached>();
+            synchronized (e) {
+                for (int sp = e.sequences.size(); --sp >= 0; ) {
+                    Cached c = e.sequences.get(sp);
+                    if (c.claim()) {
+                        e.sequences.remove(sp);
+                        dropped.add(c);
+                    }
                 }
             }
+            for (Cached c : dropped) {
+                forget(c);
+                evicted(c.sequence);
+            }
         }
     }
-    
+
     /**
      * Invalidates any sequence whose Expression uses
      * - a Collection containing an updated path
      * - any Library member matching an updated path.
      */
-    public synchronized void invalidate(String libraryName, String user,
-                                        String[] updatedPaths)
+    public void invalidate(String libraryName, String user,
+                           String[] updatedPaths)
     {
         boolean trace = false;
         if (trace) {
@@ -204,57 +447,216 @@ public class SequenceCache
             for(String path2 : updatedPaths)
                 System.err.println("  = "+path2);
         }
-        
-        for(Entry e : hash.values()) {
-            for(int sp = e.size(); --sp >= 0; )
-            {
-                Expression expr = e.get(sp).getExpression();
-                if(expr == null || expr.getLibrary() == null)
-                    continue; // 
-                Library library = expr.getLibrary();
-                if (!libraryName.equals(library.getName()))
-                    continue;
-                User u = library.getUser();
-                String userName = (u == null)? null : u.getName();
-                if (user != userName &&
-                     !(user != null && userName != null && user.equals(userName)))
-                    continue;
-                
-                if (expr.isUpdating()) { // Huh? should not happen
-                    e.remove(sp);
-                    if (trace) 
-                        System.err.println("invalidate "+expr.getSource()+" b/c updating");
-                    continue;
-                }
-                
-                // matching entry:
-                String[] usedPaths = expr.getRootPaths();
-//                System.err.println("expr "+expr.getSource()+" deps "+usedPaths.length);
-//                for(String p : usedPaths)
-//                    System.err.println("  := "+p);
-                
-               mainLoop:
-                for(String path1 : usedPaths) {
-                    for(String path2 : updatedPaths) {
-                        if (path1.equals(path2)
-                             || PathUtil.contains(path1, false, path2)) {
-                            e.remove(sp);
-                            if (trace) 
-                                System.err.println("invalidate "+expr.getSource()+" b/c of "+path2);
-                            break mainLoop;
-                        }
-                    }
-                }
+        PathIndex pindex = pathIndexes.get(indexKey(libraryName, user));
+        if (pindex == null)
+            return;
+
+        ArrayList<Cached> found = new ArrayList<Cached>();
+        pindex.collect(updatedPaths, found);
+        for (Cached c : found) {
+            if (!c.claim())
+                continue;   // acquired or evicted meanwhile
+            if (trace)
+                System.err.println("invalidate " + c.sequence.getExpression().getSource());
+            removeFromEntry(c);
+            forget(c);
+            evicted(c.sequence);
+        }
+    }
+
+    // removes a claimed sequence from its key entry
+    private void removeFromEntry(Cached c)
+    {
+        Entry e = hash.get(c.key);
+        if (e == null)
+            return;
+        synchronized (e) {
+            e.sequences.remove(c);
+            if (e.sequences.isEmpty()) {
+                e.removed = true;
+                hash.remove(c.key, e);
             }
         }
     }
 
+    // a claimed sequence is no longer in the cache
+    private void forget(Cached c)
+    {
+        entryCount.decrementAndGet();
+        totalSize.addAndGet(- c.size);
+        updateStats();
+        if (c.cursor != null)
+            cursors.remove(c.cursor);
+        if (c.rootPaths != null) {
+            PathIndex pindex = pathIndexes.get(c.indexKey);
+            if (pindex != null)
+                pindex.remove(c);
+        }
+    }
+
+    private void evicted(ItemSequence seq)
+    {
+        if (evictor != null)
+            evictor.evict(seq);
+    }
+
     private String hashKey(String libraryName, String user, String query)
     {
         return libraryName + "\u0001" + user + "\u0001" + query;
     }
 
-    public class Entry extends ArrayList<ItemSequence>
+    private String indexKey(String libraryName, String user)
+    {
+        return libraryName + "\u0001" + user;
+    }
+
+    public class Entry
+    {
+        String libraryName;
+        ArrayList<Cached> sequences = new ArrayList<Cached>(2);
+        boolean removed;    // no longer in hash
+
+        Entry(String libraryName)
+        {
+            this.libraryName = libraryName;
+        }
+    }
+
+    static class Cached
+    {
+        ItemSequence sequence;
+        String   key;
+        String   indexKey;
+        String   libraryName;
+        String   userName;
+        String   cursor;        // optional
+        String[] rootPaths;     // if indexed
+        long     size;          // estimated
+        long     releaseTime;
+        AtomicBoolean claimed = new AtomicBoolean();
+
+        Cached(ItemSequence sequence, String key, String indexKey)
+        {
+            this.sequence = sequence;
+            this.key = key;
+            this.indexKey = indexKey;
+            releaseTime = System.currentTimeMillis();
+        }
+
+        boolean matches(String libraryName, String userName)
+        {
+            if (libraryName != null && !libraryName.equals(this.libraryName))
+                return false;
+            if (this.userName == userName)
+                return true;
+            return (userName != null && userName.equals(this.userName));
+        }
+
+        // only one of acquire, eviction, invalidation can succeed
+        boolean claim()
+        {
+            return claimed.compareAndSet(false, true);
+        }
+    }
+
+    /**
+     * Trie of root paths of cached sequences.
+     * <p>
+     * A sequence is registered at the node of each of its root paths. An
+     * update of a path invalidates the sequences registered on the nodes from
+     * the root to the path, i.e. using an ancestor-or-self of the path.
+     */
+    static class PathIndex
+    {
+        private PathNode root = new PathNode(null, null);
+
+        synchronized void add(Cached c)
+        {
+            for (String path : c.rootPaths) {
+                PathNode node = root;
+                if (path != null) { // null means whole Library
+                    for (String step : path.split("/")) {
+                        if (step.length() == 0)
+                            continue;
+                        PathNode child = node.children == null? null
+                                                 : node.children.get(step);
+                        if (child == null)
+                            child = node.addChild(step);
+                        node = child;
+                    }
+                }
+                node.sequences.add(c);
+            }
+        }
+
+        synchronized void remove(Cached c)
+        {
+            for (String path : c.rootPaths) {
+                PathNode node = root;
+                if (path != null) {
+                    for (String step : path.split("/")) {
+                        if (step.length() == 0)
+                            continue;
+                        node = node.children == null? null : node.children.get(step);
+                        if (node == null)
+                            break;
+                    }
+                }
+                if (node != null) {
+                    node.sequences.remove(c);
+                    node.prune();
+                }
+            }
+        }
+
+        synchronized void collect(String[] updatedPaths, ArrayList<Cached> found)
+        {
+            for (String path : updatedPaths) {
+                PathNode node = root;
+                found.addAll(node.sequences);
+                for (String step : path.split("/")) {
+                    if (step.length() == 0)
+                        continue;
+                    node = node.children == null? null : node.children.get(step);
+                    if (node == null)
+                        break;
+                    found.addAll(node.sequences);
+                }
+            }
+        }
+    }
+
+    static class PathNode
     {
+        PathNode parent;
+        String step;
+        HashMap<String, PathNode> children;
+        ArrayList<Cached> sequences = new ArrayList<Cached>(1);
+
+        PathNode(PathNode parent, String step)
+        {
+            this.parent = parent;
+            this.step = step;
+        }
+
+        PathNode addChild(String step)
+        {
+            if (children == null)
+                children = new HashMap<String, PathNode>();
+            PathNode child = new PathNode(this, step);
+            children.put(step, child);
+            return child;
+        }
+
+        // removes empty nodes up to the root
+        void prune()
+        {
+            PathNode node = this;
+            while (node.parent != null && node.sequences.isEmpty()
+                   && (node.children == null || node.children.isEmpty())) {
+                node.parent.children.remove(node.step);
+                node = node.parent;
+            }
+        }
     }
 }
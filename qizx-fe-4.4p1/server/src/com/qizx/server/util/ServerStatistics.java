@@ -0,0 +1,347 @@
+/*
+ *    Qizx Free_Engine-4.4p1
+ *
+ *    This code is part of the Qizx application components
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.server.util;
+
+import com.qizx.api.util.logging.Statistic;
+import com.qizx.api.util.logging.Statistics;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Statistics of the server, updated concurrently by requests.
+ * <p>
+ * The statistics created by this table are updated without lock and without
+ * losing counts: counters are striped (see {@link StripedCounter}). In
+ * addition to count and total time, activities keep a histogram of durations
+ * and report percentiles p50, p95, p99 and the maximum, in microseconds.
+ * <p>
+ * The table itself can be used by several threads.
+ */
+public class ServerStatistics extends Statistics
+{
+    public static final String P50 = "p50_us";
+    public static final String P95 = "p95_us";
+    public static final String P99 = "p99_us";
+    public static final String MAX = "max_us";
+    public static final String VALUE = "value";
+
+    private final ConcurrentHashMap<String, Statistics.Base> sets =
+        new ConcurrentHashMap<String, Statistics.Base>();
+
+    public Statistics.Counter forCounting(String id, String family,
+                                          String description)
+    {
+        Statistics.Base set = sets.get(id);
+        if (set == null)
+            set = register(new Counter(id, family, description));
+        return (Statistics.Counter) set;
+    }
+
+    public Statistics.Activity forActivity(String id, String family,
+                                           String description)
+    {
+        Statistics.Base set = sets.get(id);
+        if (set == null)
+            set = register(new Activity(id, family, description));
+        return (Statistics.Activity) set;
+    }
+
+    public Statistics.DataFlow forData(String id, String family,
+                                       String description)
+    {
+        Statistics.Base set = sets.get(id);
+        if (set == null)
+            set = register(new DataFlow(id, family, description));
+        return (Statistics.DataFlow) set;
+    }
+
+    public Statistics.Cache forCache(String id, String family,
+                                     String description)
+    {
+        Statistics.Base set = sets.get(id);
+        if (set == null)
+            set = register(new Cache(id, family, description));
+        return (Statistics.Cache) set;
+    }
+
+    /**
+     * Returns a gauge, a value that can go up and down (eg a queue length).
+     */
+    public Gauge forGauge(String id, String family, String description)
+    {
+        Statistics.Base set = sets.get(id);
+        if (set == null)
+            set = register(new Gauge(id, family, description));
+        return (Gauge) set;
+    }
+
+    /**
+     * Removes a statistic from the table, if it is still registered.
+     */
+    public void remove(Statistics.Base set)
+    {
+        sets.remove(set.id, set);
+    }
+
+    public void collect(Statistic.Map target)
+    {
+        for (Statistics.Base set : sets.values()) {
+            set.expandTo(target);
+        }
+    }
+
+    /**
+     * Per-library statistics are identified by a prefix "library:".
+     */
+    public boolean perLibBreakdown()
+    {
+        return true;
+    }
+
+    private Statistics.Base register(Statistics.Base set)
+    {
+        Statistics.Base old = sets.putIfAbsent(set.id, set);
+        return (old != null)? old : set;
+    }
+
+    static long nanoToMillis(long nanos)
+    {
+        return nanos / 1000000;
+    }
+
+    /**
+     * Lock-free counter.
+     */
+    public static class Counter extends Statistics.Counter
+    {
+        private final StripedCounter counter = new StripedCounter();
+
+        public Counter(String id, String family, String description)
+        {
+            super(id, family, description);
+        }
+
+        public void count()
+        {
+            counter.increment();
+        }
+
+        public void expandTo(Statistic.Map stats)
+        {
+            stats.cumulate(this, "count", counter.sum());
+        }
+    }
+
+    /**
+     * Current value of a quantity, set by its owner.
+     */
+    public static class Gauge extends Statistics.Base
+    {
+        private volatile long value;
+
+        public Gauge(String id, String family, String description)
+        {
+            super(id, family, description);
+        }
+
+        public void set(long value)
+        {
+            this.value = value;
+        }
+
+        public long get()
+        {
+            return value;
+        }
+
+        public void expandTo(Statistic.Map stats)
+        {
+            stats.cumulate(this, VALUE, value);
+        }
+    }
+
+    /**
+     * Lock-free activity: count, total time and distribution of durations.
+     */
+    public static class Activity extends Statistics.Activity
+    {
+        private final StripedCounter counter = new StripedCounter();
+        private final StripedCounter totalTime = new StripedCounter();
+        private final LatencyHistogram histogram = new LatencyHistogram();
+
+        public Activity(String id, String family, String description)
+        {
+            super(id, family, description);
+        }
+
+        public void count()
+        {
+            counter.increment();
+        }
+
+        public void addTime(long nanos)
+        {
+            counter.increment();
+            totalTime.add(nanos);
+            histogram.record(nanos);
+        }
+
+        public LatencyHistogram getHistogram()
+        {
+            return histogram;
+        }
+
+        public long getCount()
+        {
+            return counter.sum();
+        }
+
+        /**
+         * Returns the total time in nanoseconds.
+         */
+        public long getTotalTime()
+        {
+            return totalTime.sum();
+        }
+
+        public void expandTo(Statistic.Map stats)
+        {
+            long count = counter.sum();
+            stats.cumulate(this, "count", count);
+            stats.cumulate(this, "time", nanoToMillis(totalTime.sum()));
+            if (count > 0) {
+                stats.cumulate(this, P50, histogram.getPercentile(50));
+                stats.cumulate(this, P95, histogram.getPercentile(95));
+                stats.cumulate(this, P99, histogram.getPercentile(99));
+                stats.cumulate(this, MAX, histogram.getMax());
+            }
+        }
+    }
+
+    /**
+     * Lock-free data flow: count, size and time.
+     */
+    public static class DataFlow extends Statistics.DataFlow
+    {
+        private final StripedCounter counter = new StripedCounter();
+        private final StripedCounter bytes = new StripedCounter();
+        private final StripedCounter totalTime = new StripedCounter();
+
+        public DataFlow(String id, String family, String description)
+        {
+            super(id, family, description);
+        }
+
+        public void count()
+        {
+            counter.increment();
+        }
+
+        public void addTime(long nanos)
+        {
+            counter.increment();
+            totalTime.add(nanos);
+        }
+
+        public void add(long size, long nanos)
+        {
+            counter.increment();
+            bytes.add(size);
+            totalTime.add(nanos);
+        }
+
+        public void expandTo(Statistic.Map stats)
+        {
+            long count = counter.sum();
+            stats.cumulate(this, "count", count);
+            if (count > 0)
+                stats.cumulate(this, "size", bytes.sum());
+            stats.cumulate(this, "time", nanoToMillis(totalTime.sum()));
+        }
+    }
+
+    /**
+     * Lock-free cache statistics: accesses, misses, time spent on misses.
+     * <p>
+     * The public field 'size' is still used by caches as a gauge of their
+     * current size; sizes passed to addMiss are added to it when reported.
+     */
+    public static class Cache extends Statistics.Cache
+    {
+        private final StripedCounter accesses = new StripedCounter();
+        private final StripedCounter missCount = new StripedCounter();
+        private final StripedCounter missBytes = new StripedCounter();
+        private final StripedCounter missTime = new StripedCounter();
+
+        public Cache(String id, String family, String description)
+        {
+            super(id, family, description);
+        }
+
+        public void count()
+        {
+            accesses.increment();
+        }
+
+        public void addAccess(boolean hit)
+        {
+            accesses.increment();
+            if (!hit)
+                missCount.increment();
+        }
+
+        public void addMiss(long bytes, long nanos)
+        {
+            missCount.increment();
+            if (bytes > 0)
+                missBytes.add(bytes);
+            if (nanos > 0)
+                missTime.add(nanos);
+        }
+
+        /**
+         * Adds time spent on a miss already counted by addAccess.
+         */
+        public void addMissTime(long nanos)
+        {
+            missTime.add(nanos);
+        }
+
+        public void add(long bytes, long nanos)
+        {
+            accesses.increment();
+            if (bytes > 0)
+                missBytes.add(bytes);
+            if (nanos > 0)
+                missTime.add(nanos);
+        }
+
+        public void addTime(long nanos)
+        {
+            accesses.increment();
+            missTime.add(nanos);
+        }
+
+        public void expandTo(Statistic.Map stats)
+        {
+            long count = accesses.sum();
+            long misses = missCount.sum();
+            stats.cumulate(this, "hit+miss", count);
+            long sizeGauge = size;
+            long added = missBytes.sum();
+            if (sizeGauge >= 0 || added > 0)
+                stats.cumulate(this, "size", Math.max(sizeGauge, 0) + added);
+            long nanos = missTime.sum();
+            if (nanos > 0)
+                stats.cumulate(this, "time", nanoToMillis(nanos));
+            long ratio = (count == 0)? 0 : ((count - misses) * 100) / count;
+            stats.cumulate(this, "hit_ratio", ratio);
+        }
+    }
+}
@@ -28,12 +28,17 @@ public class ServletBase extends HttpServlet
     private static final String ANON_PREFIX = "anonymous_";
     
     protected String operationParameter = "op";
-    protected HashMap<String, Request> handlerMap = new HashMap<String, Request>();
+    protected HashMap<String, RequestFactory> handlerMap =
+        new HashMap<String, RequestFactory>();
+    // max number of idle handlers kept for reuse, per kind of request
+    protected int handlerPoolSize = 16;
 
     protected int multipartMaxSize = -1; //21 * 1024*1024;
     protected String multipartTmpDir = "/tmp";
 
     private MultipartConfig multipartConfig;
+    // parse multipart requests lazily, as the handler reads parameters and parts
+    protected boolean multipartStreaming;
     private boolean trace = false;
 
     public void setMultipartConfig(MultipartConfig config)
@@ -63,8 +68,7 @@ public class ServletBase extends HttpServlet
                 handler.sendError(he);
             }
             finally {
-                handler.cleanup();
-                handler.multipartCleanup();
+                endRequest(handler);
             }
         }
     }
@@ -83,8 +87,7 @@ public class ServletBase extends HttpServlet
             }
             // other exception handled by server
             finally {
-                h.cleanup();
-                h.multipartCleanup();
+                endRequest(h);
             }
         }
     }
@@ -102,8 +105,7 @@ public class ServletBase extends HttpServlet
                 h.sendError(he);
             }
             finally {
-                h.cleanup();
-                h.multipartCleanup();
+                endRequest(h);
             }
         }
     }
@@ -121,8 +123,7 @@ public class ServletBase extends HttpServlet
                 h.sendError(he);
             }
             finally {
-                h.cleanup();
-                h.multipartCleanup();
+                endRequest(h);
             }
         }
     }
@@ -131,12 +132,40 @@ public class ServletBase extends HttpServlet
     
     protected void addHandler(Request handler)
     {
-        handlerMap.put(handler.getName(), handler);
+        addHandler(new RequestPool(handler, handlerPoolSize));
+    }
+    
+    protected void addHandler(RequestFactory factory)
+    {
+        handlerMap.put(factory.getName(), factory);
     }
     
     protected void defaultHandler(String method, Request h)
     {
-        handlerMap.put(ANON_PREFIX + method, h);
+        handlerMap.put(ANON_PREFIX + method,
+                       new RequestPool(ANON_PREFIX + method, h, handlerPoolSize));
+    }
+
+    private void endRequest(Request h)
+        throws IOException, ServletException
+    {
+        try {
+            h.cleanup();
+            h.multipartCleanup();
+        }
+        finally {
+            RequestFactory factory = h.factory;
+            if (factory != null)
+                factory.releaseRequest(h);
+        }
+    }
+
+    public void destroy()
+    {
+        for (RequestFactory factory : handlerMap.values())
+            if (factory instanceof RequestPool)
+                ((RequestPool) factory).clear();
+        super.destroy();
     }
     
     private Request findHandler(HttpServletRequest req, HttpServletResponse resp)
@@ -162,37 +191,39 @@ public class ServletBase extends HttpServlet
         MultipartRequest multipart = null;
         if (MultipartRequest.isMultipartRequest(req)) {
             ServletContext context = getServletContext();
-            multipart = new MultipartRequest(req, getMultipartConfig(), context);
+            multipart = new MultipartRequest(req, getMultipartConfig(), context,
+                                             multipartStreaming);
          
             try {
-                multipart.getParts();
+                // in streaming mode, parts are read on demand
+                if (!multipartStreaming)
+                    multipart.getParts();
+                op = multipart.getParameter(operationParameter);
             }
             catch (IllegalStateException e) {
                 sendError(resp, HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,
                                e.getMessage());
                 return null;
             }
-            op = multipart.getParameter(operationParameter);
         }
         
         if(op == null)
             op = ANON_PREFIX + req.getMethod();
-        Request h = handlerMap.get(op);
-        if(h == null) {
+        RequestFactory factory = handlerMap.get(op);
+        if(factory == null) {
             sendError(resp, HttpServletResponse.SC_BAD_REQUEST,
                       "unknown request '" + op + "'");
             return null;
         }
+        Request h = factory.newRequest();
+        h.factory = factory;
         try {
-            h = h.getClass().newInstance();
-        }
-        catch (InstantiationException e) {
-            throw new ServletException(e);
+            h.prepare(req, resp, this, multipart);
         }
-        catch (IllegalAccessException e) {
-            throw new ServletException(e);
+        catch (IOException e) {
+            factory.releaseRequest(h);
+            throw e;
         }
-        h.prepare(req, resp, this, multipart);
         return h;
     }
     
@@ -11,61 +11,216 @@ package com.qizx.server.util;
 import com.qizx.api.DataModelException;
 import com.qizx.api.Library;
 import com.qizx.api.User;
-import com.qizx.api.util.logging.Statistics.Cache;
+import com.qizx.api.util.logging.Statistics;
 
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * A pool of idle Library sessions, keyed by (library, user).
+ * <p>
+ * Each key has its own lock-free deque of idle sessions, so that acquirers
+ * on different keys never contend. A global queue in release order is used
+ * for LRU and idle-time eviction: entries are claimed atomically, so an
+ * evictor and an acquirer can never obtain the same session, and eviction
+ * never blocks acquirers.
+ */
 public class SessionPool
 {
-    private ArrayList<Entry> pool;
+    /**
+     * Prefix of the ids of statistics per user, after the library prefix.
+     */
+    public static final String USER_STATS_PREFIX = "server|session_cache|";
+
+    private ConcurrentHashMap<Key, ConcurrentLinkedDeque<Entry>> pool;
+    // all released entries, oldest first; may contain claimed entries
+    private ConcurrentLinkedQueue<Entry> lru;
+    // number of unclaimed entries in the pool
+    private AtomicInteger entryCount = new AtomicInteger();
+    // number of entries in lru, including claimed ones
+    private AtomicInteger lruCount = new AtomicInteger();
     private int maxEntryCount;
-    private Cache stats;
+    private long maxIdleTime;   // in ms, <= 0 if no limit
+
+    // statistics of a key without idle session, unused for this time, are
+    // dropped (checked at most once per period)
+    private static final long STATS_EXPIRY = 10 * 60000L;
+    private static final long STATS_SWEEP_PERIOD = 60000L;
+
+    private ServerStatistics statsTable;
+    private Statistics.Cache stats;
+    private ConcurrentHashMap<Key, KeyStats> keyStats;
+    private AtomicLong nextStatsSweep = new AtomicLong();
 
     public SessionPool(int maxEntryCount)
     {
-        pool = new ArrayList<Entry>();
+        pool = new ConcurrentHashMap<Key, ConcurrentLinkedDeque<Entry>>();
+        lru = new ConcurrentLinkedQueue<Entry>();
+        keyStats = new ConcurrentHashMap<Key, KeyStats>();
         this.maxEntryCount = maxEntryCount;
     }
 
-    public synchronized Library acquireSession(String libraryName,
-                                               String userName)
+    /**
+     * Defines the time after which an idle session is closed.
+     * @param maxIdleTime in milliseconds, no limit if <= 0
+     */
+    public void setMaxIdleTime(long maxIdleTime)
+    {
+        this.maxIdleTime = maxIdleTime;
+    }
+
+    public Library acquireSession(String libraryName, String userName)
     {
-        int h = hashKey(libraryName, userName);
-        for(int i = 0, size = pool.size(); i < size; i++) {
-            Entry e = pool.get(i);
-            if (e.hash == h && e.matches(libraryName, userName)) {
-                pool.remove(i);
-                if (stats != null)
-                    stats.addAccess(true);
-                return e.session;
+        Key key = new Key(libraryName, userName);
+        ConcurrentLinkedDeque<Entry> idle = pool.get(key);
+        if (idle != null) {
+            // most recently released first: it is the warmest session
+            for (Entry e; (e = idle.pollFirst()) != null; ) {
+                if (e.claim()) {
+                    entryCount.decrementAndGet();
+                    addAccess(key, true);
+                    return e.session;
+                }
             }
         }
-        if (stats != null)
-            stats.addAccess(false);
+        addAccess(key, false);
         return null;
     }
 
-    public synchronized void releaseSession(Library session)
+    public void releaseSession(Library session)
     {
-        pool.add(new Entry(session));
-        if( pool.size() > maxEntryCount) {
-            Entry e = pool.remove(0);
-            close(e.session);
-        }
+        Entry e = new Entry(session);
+        ConcurrentLinkedDeque<Entry> idle;
+        do {
+            idle = pool.get(e.key);
+            if (idle == null) {
+                idle = new ConcurrentLinkedDeque<Entry>();
+                ConcurrentLinkedDeque<Entry> old = pool.putIfAbsent(e.key, idle);
+                if (old != null)
+                    idle = old;
+            }
+            idle.offerFirst(e);
+            // retry if the deque was dropped as empty meanwhile (expireStats),
+            // unless an acquirer got the entry from it
+        } while (pool.get(e.key) != idle && idle.remove(e));
+        lru.offer(e);
+        lruCount.incrementAndGet();
+        entryCount.incrementAndGet();
+
+        evict();
     }
-    
-    public synchronized Library eraseLibrary(String libraryName)
+
+    /**
+     * Forgets all idle sessions of a Library (for example when it is deleted).
+     */
+    public Library eraseLibrary(String libraryName)
     {
-        for(int i = pool.size(); --i >= 0; ) {
-            Entry e = pool.get(i);
-            if (e.session.getName().equals(libraryName)) {
-                pool.remove(i);
+        for (Iterator<Map.Entry<Key, ConcurrentLinkedDeque<Entry>>> it =
+                 pool.entrySet().iterator(); it.hasNext(); )
+        {
+            Map.Entry<Key, ConcurrentLinkedDeque<Entry>> me = it.next();
+            if (!me.getKey().libraryName.equals(libraryName))
+                continue;
+            it.remove();
+            for (Entry e; (e = me.getValue().pollFirst()) != null; ) {
+                if (e.claim())
+                    entryCount.decrementAndGet();
+            }
+        }
+        for (Iterator<Map.Entry<Key, KeyStats>> it =
+                 keyStats.entrySet().iterator(); it.hasNext(); )
+        {
+            Map.Entry<Key, KeyStats> me = it.next();
+            if (me.getKey().libraryName.equals(libraryName)) {
+                it.remove();
+                statsTable.remove(me.getValue().cache);
             }
         }
         return null;
     }
 
+    /**
+     * Closes all idle sessions that exceed the maximum idle time.
+     * Can be invoked periodically; it is also invoked on each release.
+     */
+    public void evictIdle()
+    {
+        if (maxIdleTime <= 0)
+            return;
+        long limit = System.currentTimeMillis() - maxIdleTime;
+        for (Entry e; (e = lru.peek()) != null && e.releaseTime < limit; ) {
+            removeOldest(e);
+        }
+    }
+
+    /**
+     * Records the time spent opening a session after a pool miss. Acquirers
+     * never wait for the pool itself, which does not block: this is the time
+     * an acquirer waits for its session.
+     */
+    public void addOpenTime(String libraryName, String userName, long nanos)
+    {
+        Statistics.Cache st = stats;
+        if (st != null)
+            addMissTime(st, nanos);
+        st = getKeyStats(new Key(libraryName, userName));
+        if (st != null)
+            addMissTime(st, nanos);
+    }
+
+    private static void addMissTime(Statistics.Cache st, long nanos)
+    {
+        if (st instanceof ServerStatistics.Cache)
+            ((ServerStatistics.Cache) st).addMissTime(nanos);
+        else
+            synchronized (st) {
+                st.time = (st.time <= 0) ? nanos : st.time + nanos;
+            }
+    }
+
+    private void evict()
+    {
+        // LRU: drop the oldest sessions in excess
+        while (entryCount.get() > maxEntryCount) {
+            Entry e = lru.peek();
+            if (e == null)
+                break;
+            removeOldest(e);
+        }
+        evictIdle();
+        expireStats();
+
+        // purge entries acquired since they were released:
+        if (lruCount.get() > 2 * maxEntryCount + 16) {
+            for (Iterator<Entry> it = lru.iterator(); it.hasNext(); ) {
+                if (it.next().claimed.get()) {
+                    it.remove();
+                    lruCount.decrementAndGet();
+                }
+            }
+        }
+    }
+
+    // e was the head of lru
+    private void removeOldest(Entry e)
+    {
+        if (!lru.remove(e))
+            return; // concurrently removed by another evictor
+        lruCount.decrementAndGet();
+        if (!e.claim())
+            return; // already acquired: just forget it
+        entryCount.decrementAndGet();
+        ConcurrentLinkedDeque<Entry> idle = pool.get(e.key);
+        if (idle != null)
+            idle.removeLastOccurrence(e);
+        close(e.session);
+    }
 
     private void close(Library library)
     {
@@ -84,37 +239,148 @@ public class SessionPool
         }
     }
 
+    private void addAccess(Key key, boolean hit)
+    {
+        Statistics.Cache st = stats;
+        if (st != null)
+            st.addAccess(hit);
+        st = getKeyStats(key);
+        if (st != null)
+            st.addAccess(hit);
+    }
+
+    // statistics of a (library, user) key: "library:server|session_cache|user"
+    private Statistics.Cache getKeyStats(Key key)
+    {
+        if (statsTable == null)
+            return null;
+        KeyStats ks = keyStats.get(key);
+        if (ks == null) {
+            String user = (key.userName == null)? "" : key.userName;
+            ks = new KeyStats(statsTable.forCache(
+                         statsTable.getLibPrefix(key.libraryName)
+                         + USER_STATS_PREFIX + user, "Cache",
+                         "Session pool of " + key.libraryName
+                         + " for user " + user));
+            KeyStats old = keyStats.putIfAbsent(key, ks);
+            if (old != null)
+                ks = old;
+        }
+        ks.lastUse = System.currentTimeMillis();
+        return ks.cache;
+    }
+
+    // forgets the statistics, and the empty deque, of keys that have no idle
+    // session and have not been used for STATS_EXPIRY, so that their number
+    // is bounded by the users active recently
+    private void expireStats()
+    {
+        long now = System.currentTimeMillis();
+        long next = nextStatsSweep.get();
+        if (statsTable == null || now < next
+            || !nextStatsSweep.compareAndSet(next, now + STATS_SWEEP_PERIOD))
+            return;
+        for (Iterator<Map.Entry<Key, KeyStats>> it =
+                 keyStats.entrySet().iterator(); it.hasNext(); )
+        {
+            Map.Entry<Key, KeyStats> me = it.next();
+            KeyStats ks = me.getValue();
+            if (ks.lastUse > now - STATS_EXPIRY)
+                continue;
+            ConcurrentLinkedDeque<Entry> idle = pool.get(me.getKey());
+            if (idle != null) {
+                if (!idle.isEmpty())
+                    continue;
+                pool.remove(me.getKey(), idle);
+            }
+            it.remove();
+            statsTable.remove(ks.cache);
+        }
+    }
+
     private static int hashKey(String libraryName, String userName)
     {
         return libraryName.hashCode() * 31 + (userName == null? 0 : userName.hashCode());
     }
-    
+
+    static final class Key
+    {
+        final String libraryName;
+        final String userName;
+        final int hash;
+
+        Key(String libraryName, String userName)
+        {
+            this.libraryName = libraryName;
+            this.userName = userName;
+            hash = hashKey(libraryName, userName);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof Key))
+                return false;
+            Key k = (Key) obj;
+            if (k.hash != hash || !libraryName.equals(k.libraryName))
+                return false;
+            if (userName == k.userName)
+                return true;
+            return (userName != null && userName.equals(k.userName));
+        }
+    }
+
     static class Entry
     {
         Library session;
-        int     hash; // speedup
-        String userName;
-        
+        Key     key;
+        long    releaseTime;
+        AtomicBoolean claimed = new AtomicBoolean();
+
         public Entry(Library session)
         {
             this.session = session;
             User user = session.getUser();
-            userName = user == null? null : user.getName();
-            hash = hashKey(session.getName(), userName);
+            key = new Key(session.getName(), user == null? null : user.getName());
+            releaseTime = System.currentTimeMillis();
         }
-        
-        public boolean matches(String libraryName, String userName)
+
+        // only one of acquirer / evictor can succeed
+        boolean claim()
         {
-            if ( !session.getName().equals(libraryName))
-                return false;
-            if (this.userName == userName)
-                return true;
-            return (userName != null && userName.equals(this.userName));                
+            return claimed.compareAndSet(false, true);
         }
     }
 
-    public void setStats(Cache cache)
+    // statistics of a key, and time of their last use
+    static final class KeyStats
+    {
+        final Statistics.Cache cache;
+        volatile long lastUse;
+
+        KeyStats(Statistics.Cache cache)
+        {
+            this.cache = cache;
+        }
+    }
+
+    public void setStats(Statistics.Cache cache)
     {
         stats = cache;
     }
+
+    /**
+     * Enables statistics per library and user, registered in this table.
+     * Those of keys unused for a while are removed from the table.
+     */
+    public void setStatsTable(ServerStatistics table)
+    {
+        statsTable = table;
+    }
 }
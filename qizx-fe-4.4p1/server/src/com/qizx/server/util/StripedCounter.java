@@ -0,0 +1,70 @@
+/*
+ *    Qizx Free_Engine-4.4p1
+ *
+ *    This code is part of the Qizx application components
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.server.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter updated concurrently without lock nor contention: each thread adds
+ * to one of several cells (stripes), which are summed when reading.
+ * <p>
+ * Cells are a cache line apart, so that threads updating different cells do
+ * not invalidate each other's cache.
+ */
+public final class StripedCounter
+{
+    private static final int STRIPES = stripeCount();
+    private static final int PADDING = 8;   // longs per cache line
+
+    private final AtomicLongArray cells =
+        new AtomicLongArray(STRIPES * PADDING);
+
+    public void add(long value)
+    {
+        cells.addAndGet(cell(), value);
+    }
+
+    public void increment()
+    {
+        cells.incrementAndGet(cell());
+    }
+
+    /**
+     * Returns the current total. Not an atomic snapshot if updates are
+     * concurrent.
+     */
+    public long sum()
+    {
+        long sum = 0;
+        for (int c = 0; c < STRIPES; c++)
+            sum += cells.get(c * PADDING);
+        return sum;
+    }
+
+    public void reset()
+    {
+        for (int c = 0; c < STRIPES; c++)
+            cells.set(c * PADDING, 0);
+    }
+
+    private static int cell()
+    {
+        // thread ids are sequential: consecutive threads use distinct cells
+        return ((int) Thread.currentThread().getId() & (STRIPES - 1)) * PADDING;
+    }
+
+    private static int stripeCount()
+    {
+        int cpus = Runtime.getRuntime().availableProcessors();
+        int stripes = 2;
+        while (stripes < 2 * cpus && stripes < 64)
+            stripes *= 2;
+        return stripes;
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ *    Qizx Free_Engine-4.4p1
+ *
+ *    This code is part of the Qizx application components
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.server.util;
+
+import com.qizx.server.util.QizxDriver.LongAction;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs long actions (optimize, reindex, backup...) on a bounded number of
+ * threads, in the order of submission unless prevented by constraints:
+ * <ul>
+ * <li>the number of actions of a kind running at the same time can be
+ * limited (see {@link #setKindLimit}),
+ * <li>exclusive actions (eg optimize and reindex) are not run at the same
+ * time on the same Library. An exclusive action without a Library (eg
+ * optimization of all Libraries) excludes all other exclusive actions.
+ * </ul>
+ * An action is running from the time it is started until it calls
+ * finishedAction or abortedAction, which can happen after its thread is
+ * released (backups are performed by the {@link BackupExecutor}).
+ * <p>
+ * Queued actions can be cancelled; running actions are asked to stop and
+ * do so when they can (see {@link LongAction#checkCancelled()}).
+ * <p>
+ * Finished actions are kept in a history of bounded size. Queued, running
+ * and kept actions can be found by their identifier.
+ */
+public class TaskScheduler
+{
+    public static final int QUEUED = 0;
+    public static final int RUNNING = 1;
+    public static final int FINISHED = 2;
+    public static final int FAILED = 3;
+    public static final int CANCELLED = 4;
+
+    static final String[] STATE_NAMES = {
+        "queued", "running", "finished", "failed", "cancelled"
+    };
+
+    private static final String ALL_LIBRARIES = "*";
+
+    private final ExecutorService threads;
+    private final int maxThreads;
+    private int busyThreads;
+    private final LinkedList<LongAction> queue = new LinkedList<LongAction>();
+    private final ArrayList<LongAction> running = new ArrayList<LongAction>();
+    // ring buffer of finished actions:
+    private final LongAction[] history;
+    private int historyNext;
+    private final HashMap<String, LongAction> index =
+        new HashMap<String, LongAction>();
+    private final HashMap<String, Integer> kindLimits =
+        new HashMap<String, Integer>();
+    private final HashMap<String, Integer> kindCounts =
+        new HashMap<String, Integer>();
+    // Libraries locked by running exclusive actions:
+    private final HashSet<String> lockedLibraries = new HashSet<String>();
+
+    /**
+     * @param threads maximum number of actions executing at the same time
+     * @param historySize number of finished actions kept
+     */
+    public TaskScheduler(int threads, int historySize)
+    {
+        maxThreads = Math.max(threads, 1);
+        history = new LongAction[Math.max(historySize, 1)];
+        this.threads = Executors.newFixedThreadPool(maxThreads,
+                                                    new ThreadFactory() {
+            private int count;
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, "Qizx long action " + ++count);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Limits the number of actions of a kind running at the same time.
+     * @param kind a kind of action, as returned by LongAction.getKind()
+     * @param max if <= 0, no limit
+     */
+    public synchronized void setKindLimit(String kind, int max)
+    {
+        if (max <= 0)
+            kindLimits.remove(kind);
+        else
+            kindLimits.put(kind, max);
+    }
+
+    /**
+     * Queues an action, which is started as soon as possible.
+     */
+    public synchronized void submit(LongAction action)
+    {
+        action.state = QUEUED;
+        action.scheduler = this;
+        index.put(action.getId(), action);
+        queue.add(action);
+        dispatch();
+    }
+
+    /**
+     * Finds a queued, running or finished action.
+     * @return null if not found or no longer in the history
+     */
+    public synchronized LongAction find(String id)
+    {
+        return index.get(id);
+    }
+
+    /**
+     * Cancels a queued action, or asks a running action to stop.
+     * @return the state of the action after the call, or -1 if not found
+     */
+    public int cancel(String id)
+    {
+        LongAction action;
+        synchronized (this) {
+            action = index.get(id);
+            if (action == null)
+                return -1;
+            action.cancel();
+            if (action.state != QUEUED)
+                return action.state;
+            queue.remove(action);
+        }
+        action.cancelledAction();
+        return action.state;
+    }
+
+    /**
+     * Returns queued actions, then running actions, then finished actions
+     * from the most recent.
+     */
+    public synchronized List<LongAction> list(boolean withHistory)
+    {
+        ArrayList<LongAction> list = new ArrayList<LongAction>(queue);
+        list.addAll(running);
+        for (int h = 1; withHistory && h <= history.length; h++) {
+            LongAction old = history[(historyNext - h + history.length)
+                                     % history.length];
+            if (old == null)
+                break;
+            list.add(old);
+        }
+        return list;
+    }
+
+    public synchronized int getQueuedCount()
+    {
+        return queue.size();
+    }
+
+    public void shutdownNow()
+    {
+        threads.shutdownNow();
+    }
+
+    /**
+     * Called once when an action ends, whatever the outcome.
+     */
+    synchronized void ended(LongAction action)
+    {
+        if (running.remove(action)) {
+            Integer count = kindCounts.get(action.getKind());
+            kindCounts.put(action.getKind(), count - 1);
+            if (action.isExclusive())
+                lockedLibraries.remove(lockName(action));
+        }
+        else {
+            queue.remove(action);
+        }
+        LongAction old = history[historyNext];
+        if (old != null && index.get(old.getId()) == old)
+            index.remove(old.getId());
+        history[historyNext] = action;
+        historyNext = (historyNext + 1) % history.length;
+        dispatch();
+    }
+
+    // starts queued actions that can run
+    private void dispatch()
+    {
+        Iterator<LongAction> iter = queue.iterator();
+        while (busyThreads < maxThreads && iter.hasNext()) {
+            LongAction action = iter.next();
+            if (!canStart(action))
+                continue;
+            iter.remove();
+            Integer count = kindCounts.get(action.getKind());
+            kindCounts.put(action.getKind(), (count == null)? 1 : count + 1);
+            if (action.isExclusive())
+                lockedLibraries.add(lockName(action));
+            running.add(action);
+            action.state = RUNNING;
+            action.startTime = System.currentTimeMillis();
+            ++busyThreads;
+            threads.execute(new Worker(action));
+        }
+    }
+
+    private boolean canStart(LongAction action)
+    {
+        Integer limit = kindLimits.get(action.getKind());
+        Integer count = kindCounts.get(action.getKind());
+        if (limit != null && count != null && count >= limit)
+            return false;
+        if (!action.isExclusive())
+            return true;
+        String lock = lockName(action);
+        if (ALL_LIBRARIES.equals(lock))
+            return lockedLibraries.isEmpty();
+        return !lockedLibraries.contains(lock)
+               && !lockedLibraries.contains(ALL_LIBRARIES);
+    }
+
+    private static String lockName(LongAction action)
+    {
+        String name = action.getLibraryName();
+        return (name == null)? ALL_LIBRARIES : name;
+    }
+
+    private class Worker
+        implements Runnable
+    {
+        private final LongAction action;
+
+        Worker(LongAction action)
+        {
+            this.action = action;
+        }
+
+        public void run()
+        {
+            try {
+                action.run();
+            }
+            finally {
+                synchronized (TaskScheduler.this) {
+                    --busyThreads;
+                    dispatch();
+                }
+            }
+        }
+    }
+}
@@ -23,6 +23,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * AccessControl based on ACL (Access Control Lists).
@@ -36,8 +37,12 @@ import java.util.HashMap;
  * granted to users on a Collection, these permissions are also granted on all
  * the contained Library members. But some descendants can deny the permissions
  * through an ACE set on them.
+ * <p>
+ * ACLs are compiled into an {@link ACLIndex}, replaced as a whole on each
+ * modification, so that permission checks need no lock.
  */
 public class ACLAccessControl extends AccessControlBase
+    implements PermissionComputer
 {
     public static final ACLAll ALL = new ACLAll();
     public static final String MIME_TYPE = "text/xml";
@@ -57,6 +62,8 @@ public class ACLAccessControl extends AccessControlBase
     private static final QName QN_ROLE = IQName.get("role");
     private static final QName QN_PERMS = IQName.get("permissions");
     
+    private static final int MAX_COMPILED_USERS = 1000;
+
     private static final HashMap<String,Permission> permissionTable =
         new HashMap<String, Permission>();
     
@@ -67,15 +74,19 @@ public class ACLAccessControl extends AccessControlBase
     }
 
     
-    // maps path to ACL:
-    private HashMap<String, ACL> acls;
+    // maps path to ACL: copied on write, as well as ACLs
+    private volatile HashMap<String, ACL> acls;
+    private volatile ACLIndex index;
+    // permissions of each user on ACL nodes, for the current index:
+    private final ConcurrentHashMap<String, UserPermissions> userPermissions =
+        new ConcurrentHashMap<String, UserPermissions>();
     private LibraryManagerImpl libraryManager;
     private String libraryName;
 
     // must provide a default constructor
     public ACLAccessControl()
     {
-        super(97);
+        super(4096);
         acls = new HashMap<String, ACL>();
             
         // initialize:
@@ -98,7 +109,9 @@ public class ACLAccessControl extends AccessControlBase
                 Library library = this.libraryManager.openLibrary(libraryName);
                 Document aclStore = library.getDocument(ACL_DOC);
                 if (aclStore != null) {
-                    acls = load(aclStore.getDocumentNode());
+                    HashMap<String, ACL> table = load(aclStore.getDocumentNode());
+                    if (table != null)
+                        publish(table);
                     exists = true;
                 }
                 library.close();
@@ -146,12 +159,14 @@ public class ACLAccessControl extends AccessControlBase
     public synchronized void addEntry(ACEType type, String path,
                                       UserSet users, Permission perm)
     {
-        ACL acl = findACEsForPath(path);
-        if(acl == null) {
-            acls.put(path, acl = new ACL(path));
-        }
+        HashMap<String, ACL> table = new HashMap<String, ACL>(acls);
+        ACL acl = new ACL(path);
+        ACL old = table.get(path);
+        if(old != null)
+            acl.aces.addAll(old.aces);
         acl.aces.add(new ACE(type, users, perm.mask));
-        clearCache();
+        table.put(path, acl);
+        publish(table);
     }
     
     /**
@@ -159,7 +174,18 @@ public class ACLAccessControl extends AccessControlBase
      */
     public synchronized void clearEntries(ACEType type, String path)
     {
-        acls.remove(path);
+        HashMap<String, ACL> table = new HashMap<String, ACL>(acls);
+        table.remove(path);
+        publish(table);
+    }
+
+    // replaces the ACLs (which must not be modified afterwards)
+    private synchronized void publish(HashMap<String, ACL> table)
+    {
+        index = new ACLIndex(table.values());
+        acls = table;
+        userPermissions.clear();
+        clearCache();
     }
     
     /**
@@ -218,17 +244,20 @@ public class ACLAccessControl extends AccessControlBase
             // An empty ACL is removed
             Node root = DocumentParser.parse(new InputSource(new StringReader(rights)));
             HashMap<String, ACL> table = load(root);
-            for(ACL acl : table.values()) {
-                if(acl.aces.size() == 0)
-                    acls.remove(acl.path);
-                else
-                    acls.put(acl.path, acl); // replace
+            synchronized (this) {
+                HashMap<String, ACL> merged = new HashMap<String, ACL>(acls);
+                for(ACL acl : table.values()) {
+                    if(acl.aces.size() == 0)
+                        merged.remove(acl.path);
+                    else
+                        merged.put(acl.path, acl); // replace
+                }
+                publish(merged);
             }
         }
         catch (Exception e) {
             throw new DataModelException("ACL parse error: " + e.getMessage(), e);
         }
-        clearCache();
         
         saveToLibrary();
     }
@@ -347,6 +376,7 @@ public class ACLAccessControl extends AccessControlBase
     private void save(XMLPushStream store) throws DataModelException
     {
         printHeader(store);
+        HashMap<String, ACL> acls = this.acls;
         ACL[] values = acls.values().toArray(new ACL[acls.size()]);
         Arrays.sort(values, new Comparator<ACL>() {
             public int compare(ACL a1, ACL a2) {
@@ -411,33 +441,46 @@ public class ACLAccessControl extends AccessControlBase
         out.putText("\n");
     }
 
+    public int computePermissions(LibraryMember member,
+                                  com.qizx.api.User user)
+    {
+        UserPermissions perms = getUserPermissions(user);
+        return perms.index.getPermissions(member.getPath(), perms.masks);
+    }
+
+    /**
+     * Returns a filter accepting the Library members a user can read,
+     * compiled once for the user and the current ACLs.
+     * <p>
+     * Meant for checking large sets of members: a check involves no lock and
+     * no cache, and a whole collection can be tested at once.
+     * @param user a user, assumed to have always the same roles
+     */
+    public ReadFilter getReadFilter(com.qizx.api.User user)
+    {
+        return new ReadFilter(getUserPermissions(user));
+    }
+
+    private UserPermissions getUserPermissions(com.qizx.api.User user)
+    {
+        ACLIndex current = index;
+        String userName = user.getName();
+        UserPermissions perms = userPermissions.get(userName);
+        if (perms == null || perms.index != current) {
+            perms = new UserPermissions(current, current.compileUser(user));
+            if (userPermissions.size() >= MAX_COMPILED_USERS)
+                userPermissions.clear();
+            userPermissions.put(userName, perms);
+        }
+        return perms;
+    }
+
     @Override
     protected void fetchPermission(LibraryMember member, com.qizx.api.User user,
                                    Permission perm, int slot)
     {
-        String path = member.getPath();
-        
-        int length = path.length();
-        ACE found = null;
-        for(; length > 0; ) {
-            ACL acl = findACEsForPath(path.substring(0, length));
-            if(acl != null)
-                for (ACE ace : acl.aces) {
-                    if(ace.users.matches(user)
-                       && (perm.mask & ace.permissions) != 0)
-                        found = ace;
-                }
-            if(found != null)
-                break;
-            length = parentLength(path, length);
-        }
-
-        if(found != null) {
-            if(found.type == ACEType.GRANT)
-                cachePermissions(slot, member, user.getName(), found.permissions, perm.mask);
-            else
-                cachePermissions(slot, member, user.getName(), 0, perm.mask);
-        }
+        cachePermissions(slot, member, user.getName(),
+                         computePermissions(member, user), Permission.ALL.mask);
     }
 
     private int parentLength(String path, int length)
@@ -453,6 +496,67 @@ public class ACLAccessControl extends AccessControlBase
         return acls.get(path);
     }
 
+    private static final class UserPermissions
+    {
+        final ACLIndex index;
+        final int[] masks;
+
+        UserPermissions(ACLIndex index, int[] masks)
+        {
+            this.index = index;
+            this.masks = masks;
+        }
+    }
+
+    /**
+     * Read permission of a user on Library members, for a version of ACLs.
+     */
+    public static class ReadFilter
+        implements LibraryMemberFilter
+    {
+        private final UserPermissions perms;
+
+        ReadFilter(UserPermissions perms)
+        {
+            this.perms = perms;
+        }
+
+        public boolean accept(LibraryMember member)
+        {
+            return isReadable(member.getPath());
+        }
+
+        /**
+         * Returns true if the member of this path can be read.
+         */
+        public boolean isReadable(String path)
+        {
+            return (perms.index.getPermissions(path, perms.masks)
+                    & Permission.GET_CONTENT.mask) != 0;
+        }
+
+        /**
+         * Returns true if all the members of a subtree can be read (the
+         * collection of this path and all its descendants).
+         */
+        public boolean isAllReadable(String collectionPath)
+        {
+            return (perms.index.getSubtreePermissions(collectionPath,
+                                                      perms.masks, false)
+                    & Permission.GET_CONTENT.mask) != 0;
+        }
+
+        /**
+         * Returns true if no member of a subtree can be read.
+         */
+        public boolean isNoneReadable(String collectionPath)
+        {
+            return (perms.index.getSubtreePermissions(collectionPath,
+                                                      perms.masks, true)
+                    & Permission.GET_CONTENT.mask) == 0;
+        }
+    }
+
     protected static class ACL
     {
         String path;
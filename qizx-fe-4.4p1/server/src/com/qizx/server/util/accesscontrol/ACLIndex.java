@@ -0,0 +1,274 @@
+/*
+ *    Qizx Free_Engine-4.4p1
+ *
+ *    This code is part of the Qizx application components
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.server.util.accesscontrol;
+
+import com.qizx.api.User;
+import com.qizx.server.util.accesscontrol.ACLAccessControl.ACE;
+import com.qizx.server.util.accesscontrol.ACLAccessControl.ACEType;
+import com.qizx.server.util.accesscontrol.ACLAccessControl.ACL;
+import com.qizx.server.util.accesscontrol.ACLAccessControl.ACLAll;
+import com.qizx.server.util.accesscontrol.ACLAccessControl.UserSet;
+import com.qizx.util.basic.PathUtil;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+/**
+ * Compiled form of a set of ACLs: a trie of paths, where each node holds the
+ * effective rules for its path, inherited ACEs included.
+ * <p>
+ * The rules of a node are ordered by priority (ACEs of the deepest ACL first,
+ * and the last ACE of an ACL first), and reduced to the permissions they
+ * actually decide: the permissions of a user are determined by the first rule
+ * matching the user for each permission. An ACE is not searched again on
+ * ancestors of the path, and a lookup does not allocate.
+ * <p>
+ * The rules can also be evaluated once for a given user on all nodes
+ * ({@link #compileUser}): the permissions of the user on any path, or on a
+ * whole subtree, are then found by a lookup in the trie.
+ * <p>
+ * Immutable once built, hence usable without lock.
+ */
+final class ACLIndex
+{
+    private final Node root = new Node("/", 0);
+    // nodes in document order: the subtree of a node is a range
+    private Node[] nodes;
+    private int nodeCount;
+
+    ACLIndex(Collection<ACL> acls)
+    {
+        for (ACL acl : acls)
+            insert(acl);
+        nodes = new Node[8];
+        compile(root, new Rule[0]);
+    }
+
+    /**
+     * Evaluates the permissions of a user on each node.
+     * @return a mask of permissions per node, used by
+     * {@link #getPermissions(String, int[])}
+     */
+    int[] compileUser(User user)
+    {
+        int[] masks = new int[nodeCount];
+        for (int n = 0; n < nodeCount; n++)
+            masks[n] = evaluate(nodes[n].rules, user);
+        return masks;
+    }
+
+    /**
+     * Returns the OR of the permissions granted on a path, to the user for
+     * which the masks were compiled.
+     */
+    int getPermissions(String path, int[] userMasks)
+    {
+        return userMasks[find(path).ordinal];
+    }
+
+    /**
+     * Returns the permissions granted on all the members of a subtree
+     * (collection and descendants), or on at least one of them if 'any' is
+     * true, to the user for which the masks were compiled.
+     */
+    int getSubtreePermissions(String path, int[] userMasks, boolean any)
+    {
+        // compared with the path of the node: "/a/" or "//a" are "/a"
+        path = PathUtil.normalizePath(path, true);
+        Node node = find(path);
+        int mask = userMasks[node.ordinal];
+        if (!node.path.equals(path))
+            return mask; // no ACL below: same permissions on the whole subtree
+        for (int n = node.ordinal + 1; n < node.subtreeEnd; n++)
+            mask = any? (mask | userMasks[n]) : (mask & userMasks[n]);
+        return mask;
+    }
+
+    /**
+     * Returns the OR of the permissions granted to a user on a path.
+     */
+    int getPermissions(String path, User user)
+    {
+        return evaluate(find(path).rules, user);
+    }
+
+    private static int evaluate(Rule[] rules, User user)
+    {
+        int decided = 0, granted = 0;
+        for (int r = 0; r < rules.length; r++) {
+            Rule rule = rules[r];
+            int newly = rule.decided & ~decided;
+            if (newly != 0 && rule.users.matches(user)) {
+                granted |= rule.granted & newly;
+                decided |= newly;
+            }
+        }
+        return granted;
+    }
+
+    // deepest node on the path
+    private Node find(String path)
+    {
+        Node node = root;
+        int length = path.length();
+        for (int start = 1; start < length; ) {
+            int end = path.indexOf('/', start);
+            if (end < 0)
+                end = length;
+            if (end > start) {
+                Node child = node.getChild(path, start, end);
+                if (child == null)
+                    break;
+                node = child;
+            }
+            start = end + 1;
+        }
+        return node;
+    }
+
+    private void insert(ACL acl)
+    {
+        Node node = root;
+        String path = acl.path;
+        int length = path.length();
+        for (int start = 1; start < length; ) {
+            int end = path.indexOf('/', start);
+            if (end < 0)
+                end = length;
+            if (end > start) {
+                Node child = node.getChild(path, start, end);
+                if (child == null)
+                    child = node.addChild(path.substring(start, end),
+                                          path.substring(0, end));
+                node = child;
+            }
+            start = end + 1;
+        }
+        node.acl = acl;
+    }
+
+    private void compile(Node node, Rule[] inherited)
+    {
+        node.rules = (node.acl == null)? inherited : merge(node.acl, inherited);
+        if (nodeCount == nodes.length) {
+            Node[] old = nodes;
+            nodes = new Node[2 * old.length];
+            System.arraycopy(old, 0, nodes, 0, old.length);
+        }
+        node.ordinal = nodeCount;
+        nodes[nodeCount++] = node;
+        for (int c = 0; c < node.childCount; c++)
+            compile(node.children[c], node.rules);
+        node.subtreeEnd = nodeCount;
+    }
+
+    private static Rule[] merge(ACL acl, Rule[] inherited)
+    {
+        ArrayList<Rule> rules = new ArrayList<Rule>();
+        // permissions decided for all users by a preceding rule:
+        int allDecided = 0;
+        for (int a = acl.aces.size(); --a >= 0; ) {
+            ACE ace = acl.aces.get(a);
+            int granted = (ace.type == ACEType.GRANT)? ace.permissions : 0;
+            allDecided = addRule(rules, ace.users, ace.permissions, granted,
+                                 allDecided);
+        }
+        for (Rule rule : inherited)
+            allDecided = addRule(rules, rule.users, rule.decided, rule.granted,
+                                 allDecided);
+        return rules.toArray(new Rule[rules.size()]);
+    }
+
+    private static int addRule(ArrayList<Rule> rules, UserSet users,
+                               int decided, int granted, int allDecided)
+    {
+        decided &= ~allDecided;
+        if (decided != 0) {
+            rules.add(new Rule(users, decided, granted & decided));
+            if (users instanceof ACLAll)
+                allDecided |= decided;
+        }
+        return allDecided;
+    }
+
+    private static final class Rule
+    {
+        final UserSet users;
+        final int decided;  // permissions granted or denied by the rule
+        final int granted;
+
+        Rule(UserSet users, int decided, int granted)
+        {
+            this.users = users;
+            this.decided = decided;
+            this.granted = granted;
+        }
+    }
+
+    private static final class Node
+    {
+        final String name;
+        final String path;
+        final int hash;
+        Node[] children;
+        int childCount;
+        ACL acl;
+        Rule[] rules;
+        int ordinal;
+        int subtreeEnd;
+
+        Node(String path, int hash)
+        {
+            this(path, path, hash);
+        }
+
+        Node(String name, String path, int hash)
+        {
+            this.name = name;
+            this.path = path;
+            this.hash = hash;
+        }
+
+        Node getChild(String path, int start, int end)
+        {
+            if (childCount == 0)
+                return null;
+            int h = hash(path, start, end), length = end - start;
+            for (int c = 0; c < childCount; c++) {
+                Node child = children[c];
+                if (child.hash == h && child.name.length() == length
+                    && path.regionMatches(start, child.name, 0, length))
+                    return child;
+            }
+            return null;
+        }
+
+        Node addChild(String name, String path)
+        {
+            if (children == null)
+                children = new Node[2];
+            else if (childCount == children.length) {
+                Node[] old = children;
+                children = new Node[2 * old.length];
+                System.arraycopy(old, 0, children, 0, old.length);
+            }
+            Node child = new Node(name, path, hash(name, 0, name.length()));
+            children[childCount++] = child;
+            return child;
+        }
+
+        private static int hash(String s, int start, int end)
+        {
+            int h = 0;
+            for (int i = start; i < end; i++)
+                h = 31 * h + s.charAt(i);
+            return h;
+        }
+    }
+}
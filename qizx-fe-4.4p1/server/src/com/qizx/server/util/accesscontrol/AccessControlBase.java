@@ -24,8 +24,9 @@ import com.qizx.xdm.IQName;
  * PROPERTY_READ, PROPERTY_CHANGE corresponding to the methods of
  * AccessControl. More permissions can be added within a total limit of 32.
  * <p>
- * A concrete subclass needs to implement the method computePermissions() which 
- * return the permission mask each time a member is not found in the cache.
+ * A concrete subclass needs to implement the method fetchPermission() which
+ * fetches permissions each time a member is not found in the cache. If it
+ * implements {@link PermissionComputer}, computePermissions() is used instead.
  */
 public abstract class AccessControlBase
     implements AccessControl
@@ -59,24 +60,31 @@ public abstract class AccessControlBase
     }
     
 
-    // permission cache, associated with each instance
+    // Permission cache, associated with each instance: set-associative,
+    // read without lock. Entries are immutable; clearing the cache is done by
+    // changing the generation, which invalidates all entries at once.
+    private static final int WAYS = 4;
+
     private int cacheSize;
-    private LibraryMember[] cachedMember;
-    private String[] cachedUser;
-    private int[] cachedPerm;
-    private int[] cachedPermMask;   // mask of known permissions (0 if unknown)
+    private final int setMask;
+    private final CacheEntry[] cache;
+    private volatile int generation;
+    private int victim;     // round-robin replacement, races are harmless
     private boolean trace = !true;
 
     /**
      * Default constructor.
+     * @param cacheSize number of (member, user) pairs in the permission cache;
+     * rounded up to a power of 2.
      */
     protected AccessControlBase(int cacheSize)
     {
-        this.cacheSize = cacheSize;
-        cachedMember = new LibraryMember[cacheSize];
-        cachedUser = new String[cacheSize];
-        cachedPerm = new int[cacheSize];
-        cachedPermMask = new int[cacheSize];
+        int size = WAYS;
+        while (size < cacheSize)
+            size *= 2;
+        this.cacheSize = size;
+        setMask = size / WAYS - 1;
+        cache = new CacheEntry[size];
     }
 
     /**
@@ -113,7 +121,11 @@ public abstract class AccessControlBase
 
     /**
      * Cached method to check a permission for a given user. First looks up
-     * in the cache and if not found calls the fetchPermission() method.
+     * in the cache and if not found calls computePermissions() if this is a
+     * PermissionComputer, otherwise the fetchPermission() method.
+     * <p>
+     * Cache hits and computePermissions() take no lock; fetchPermission()
+     * is called within a lock on this object.
      * @param user the user associated with the XML Library session that owns
      *        this access control. It should never change.
      * @param member concerned object of the Library
@@ -121,27 +133,39 @@ public abstract class AccessControlBase
      *        can choose to fetch permissions all at once or selectively.
      * @return true if user has permission
      */
-    synchronized 
-     protected boolean hasPermission(User user, LibraryMember member,
-                                     Permission permission)
+    protected boolean hasPermission(User user, LibraryMember member,
+                                    Permission permission)
     {
         String userName = user.getName();
-        int slot = hashMember(member, userName);
-        if(trace)
-            System.err.println("has perm "+permission.mask+" on "+member+" user "+user+" -> slot "+slot + " mask "+cachedPermMask[slot]+" perms "+cachedPerm[slot]);
-        if( !slotMatch(slot, member, userName) ||
-            (cachedPermMask[slot] & permission.mask) == 0)
-        {
-            fetchPermission(member, user, permission, slot);
+        int set = setIndex(member, userName);
+        int slot = findSlot(set, member, userName, generation);
+        if (slot >= 0) {
+            CacheEntry e = cache[slot];
+            if (e != null && (e.known & permission.mask) != 0) {
+                if(trace)
+                    System.err.println("has perm "+permission.mask+" on "+member+" user "+user+" -> slot "+slot+" perms "+e.perms);
+                return (e.perms & permission.mask) != 0;
+            }
         }
-        return userName.equals(cachedUser[slot]) &&
-               (cachedPerm[slot] & permission.mask) != 0;
-    }
 
-    private boolean slotMatch(int slot, LibraryMember member, String userId)
-    {
-        return member.equals(cachedMember[slot]) &&
-               userId.equals(cachedUser[slot]);
+        if (this instanceof PermissionComputer) {
+            int gen = generation;
+            int perms =
+                ((PermissionComputer) this).computePermissions(member, user);
+            if (slot < 0)
+                slot = victimSlot(set);
+            cache[slot] = new CacheEntry(member, userName, perms, ~0, gen);
+            return (perms & permission.mask) != 0;
+        }
+
+        synchronized (this) {
+            if (slot < 0)
+                slot = victimSlot(set);
+            fetchPermission(member, user, permission, slot);
+            CacheEntry e = cache[slot];
+            return e != null && e.matches(member, userName, generation)
+                   && (e.perms & permission.mask) != 0;
+        }
     }
 
     /**
@@ -169,10 +193,13 @@ public abstract class AccessControlBase
     protected void cachePermissions(int slot, LibraryMember member, String userId,
                                     int perms, int mask)
     {
-        cachedMember[slot] = member;
-        cachedUser[slot] = userId;
-        cachedPermMask[slot] |= mask;
-        cachedPerm[slot] = (cachedPerm[slot] &~ mask) | (perms & mask);
+        int gen = generation;
+        CacheEntry old = cache[slot];
+        if (old != null && old.matches(member, userId, gen)) {
+            perms = (old.perms &~ mask) | (perms & mask);
+            mask |= old.known;
+        }
+        cache[slot] = new CacheEntry(member, userId, perms & mask, mask, gen);
         if(trace)
             System.err.println("cache perm "+perms+" "+ mask+" on "+member+" for "+userId+" -> slot "+slot);
     }
@@ -184,28 +211,75 @@ public abstract class AccessControlBase
     protected void clearPermissions(LibraryMember member, User user)
     {
         String name = user.getName();
-        int slot = hashMember(member, name);
-        if(slotMatch(slot, member, name))
-            cachedMember[slot] = null;
+        int set = setIndex(member, name);
+        int slot = findSlot(set, member, name, generation);
+        if (slot >= 0)
+            cache[slot] = null;
         if(trace)
             System.err.println("clear perm on "+member+" for "+user+" -> slot "+slot);
     }
     
+    /**
+     * Invalidates all cached permissions.
+     */
     protected void clearCache()
     {
-        for (int i = 0; i < cachedMember.length; i++) {
-            cachedMember[i] = null;
-            cachedPermMask[i] = 0;
-            cachedPerm[i] = 0;
+        synchronized (cache) {
+            ++generation;
         }
     }
-    
-    private int hashMember(LibraryMember member, String user)
+
+    // index of the first slot of the set of a member
+    private int setIndex(LibraryMember member, String user)
     {
-        int h = (member.hashCode() ^ user.hashCode()) % cacheSize;
-        if (h < 0)
-            h += cacheSize;
-        
-        return h;
+        int h = member.hashCode() * 31 + user.hashCode();
+        h ^= (h >>> 16);
+        return (h & setMask) * WAYS;
+    }
+
+    private int findSlot(int set, LibraryMember member, String user, int gen)
+    {
+        for (int w = 0; w < WAYS; w++) {
+            CacheEntry e = cache[set + w];
+            if (e != null && e.matches(member, user, gen))
+                return set + w;
+        }
+        return -1;
+    }
+
+    private int victimSlot(int set)
+    {
+        int gen = generation;
+        for (int w = 0; w < WAYS; w++) {
+            CacheEntry e = cache[set + w];
+            if (e == null || e.generation != gen)
+                return set + w;
+        }
+        return set + (victim++ & (WAYS - 1));
+    }
+
+    private static final class CacheEntry
+    {
+        final LibraryMember member;
+        final String user;
+        final int perms;
+        final int known;    // mask of known permissions
+        final int generation;
+
+        CacheEntry(LibraryMember member, String user, int perms, int known,
+                   int generation)
+        {
+            this.member = member;
+            this.user = user;
+            this.perms = perms;
+            this.known = known;
+            this.generation = generation;
+        }
+
+        boolean matches(LibraryMember member, String user, int generation)
+        {
+            return this.generation == generation && member.equals(this.member)
+                   && user.equals(this.user);
+        }
     }
 }
@@ -0,0 +1,31 @@
+/*
+ *    Qizx Free_Engine-4.4p1
+ *
+ *    This code is part of the Qizx application components
+ *    Copyright (c) 2004-2010 Axyana Software -- All rights reserved.
+ *
+ *    For conditions of use, see the accompanying license files.
+ */
+package com.qizx.server.util.accesscontrol;
+
+import com.qizx.api.LibraryMember;
+import com.qizx.api.User;
+
+/**
+ * Implemented by an {@link AccessControlBase} that can compute all the
+ * permissions of a user on a member at once, without lock. Such an
+ * implementation is called instead of fetchPermission() on cache misses.
+ */
+public interface PermissionComputer
+{
+    /**
+     * Computes all permissions of a user on a member at once, as an OR of
+     * permission masks.
+     * <p>
+     * Must be thread-safe: called concurrently without lock.
+     * @param member concerned object of the Library
+     * @param user user concerned by the access control
+     * @return an OR of the permissions granted
+     */
+    int computePermissions(LibraryMember member, User user);
+}
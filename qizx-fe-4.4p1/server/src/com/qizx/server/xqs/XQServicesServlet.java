@@ -14,6 +14,7 @@ import com.qizx.server.util.QizxDriver;
 import com.qizx.server.util.QizxDriver.SessionMaker;
 import com.qizx.server.util.QizxRequestBase;
 import com.qizx.server.util.RequestException;
+import com.qizx.server.util.RequestTrace;
 import com.qizx.server.util.ServletBase;
 import com.qizx.util.NamespaceContext;
 import com.qizx.util.basic.FileUtil;
@@ -85,6 +86,11 @@ public class XQServicesServlet extends ServletBase
             return "xqs"; // whatever
         }
 
+        protected boolean isAdmissionControlled()
+        {
+            return true;
+        }
+
         public void handleGet()
             throws ServletException, IOException
         {
@@ -98,10 +104,11 @@ public class XQServicesServlet extends ServletBase
             String queryPath =
                 PathUtil.normalizePath(request.getPathInfo(), true);
             
+            Expression expr = null;
             try {
                 // Finds a compiled expression representing the stored query
                 // Based on session pooling and caching of expr. for each session
-                Expression expr = getScript(queryPath);
+                expr = getScript(queryPath);
                 if(expr == null)
                 {
                     Map<String, Expression> services =
@@ -127,7 +134,7 @@ public class XQServicesServlet extends ServletBase
                 
                 // look for options in script: 
                 String mimeType = null, format = "XML";
-                XMLSerializer resout = new XMLSerializer(output, "UTF-8");
+                XMLSerializer resout = getSerializer(output, "UTF-8");
                 for(QName name : xctx.getOptionNames()) {
                     //println("option "+name+" "+xctx.getOptionValue(name));
                     if(name.getNamespaceURI() == NamespaceContext.OUTPUT_NS) {
@@ -154,7 +161,13 @@ public class XQServicesServlet extends ServletBase
                 }
                 response.setContentType(mimeType);
                 
+                RequestTrace trace = getTrace();
+                long t0 = System.nanoTime();
                 ItemSequence seq = expr.evaluate();
+                if (trace != null) {
+                    trace.addTimeSince(RequestTrace.EVALUATE, t0);
+                    t0 = System.nanoTime();
+                }
                 for( ; seq.moveToNextItem(); )
                 {
                     Item it = seq.getCurrentItem();
@@ -165,6 +178,8 @@ public class XQServicesServlet extends ServletBase
                 }
                 
                 resout.flush();
+                if (trace != null)
+                    trace.addTimeSince(RequestTrace.SERIALIZE, t0);
             }
             catch (RequestException e) {
                 throw (e);
@@ -172,6 +187,11 @@ public class XQServicesServlet extends ServletBase
             catch (Exception e) {
                 throw new RequestException(e);
             }
+            finally {
+                // unlocks the cached expression, or releases its session
+                if (expr != null)
+                    driver.releaseStoredQuery(expr);
+            }
         }
 
         private void bindParameter(Expression expr,
@@ -247,7 +267,7 @@ public class XQServicesServlet extends ServletBase
         {
             response.setContentType(MIME_XML);
 
-            XMLSerializer out = new XMLSerializer(output, "UTF-8");
+            XMLSerializer out = getSerializer(output, "UTF-8");
             out.putElementStart(QN_SERVICES);
             out.putAttribute(QN_PACKAGE, queryPath, null);
 
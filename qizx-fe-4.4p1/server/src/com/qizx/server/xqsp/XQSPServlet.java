@@ -14,6 +14,7 @@ import com.qizx.server.util.QizxDriver;
 import com.qizx.server.util.QizxDriver.SessionMaker;
 import com.qizx.server.util.QizxRequestBase;
 import com.qizx.server.util.RequestException;
+import com.qizx.server.util.RequestTrace;
 import com.qizx.server.util.ServletBase;
 import com.qizx.util.NamespaceContext;
 import com.qizx.util.RetryException;
@@ -92,6 +93,11 @@ public class XQSPServlet extends ServletBase
             return "xqsp"; // whatever
         }
 
+        protected boolean isAdmissionControlled()
+        {
+            return true;
+        }
+
         protected void startErrorContent() throws IOException
         {
             // for best compatibility with broken clients (eg Flex), no HTTP error
@@ -177,7 +183,7 @@ public class XQSPServlet extends ServletBase
 
             // look for options in script: 
             String mimeType = null, format = "XML";
-            XMLSerializer resout = new XMLSerializer(output, "UTF-8");
+            XMLSerializer resout = getSerializer(output, "UTF-8");
             for(QName name : xctx.getOptionNames()) {
                 //println("option "+name+" "+xctx.getOptionValue(name));
                 if(name.getNamespaceURI() == NamespaceContext.OUTPUT_NS) {
@@ -205,7 +211,13 @@ public class XQSPServlet extends ServletBase
             response.setContentType(mimeType);
 
             // evaluate page: TODO streamed eval
+            RequestTrace trace = getTrace();
+            long t0 = System.nanoTime();
             ItemSequence seq = expr.evaluate();
+            if (trace != null) {
+                trace.addTimeSince(RequestTrace.EVALUATE, t0);
+                t0 = System.nanoTime();
+            }
             
             for (; seq.moveToNextItem();) {
                 Item it = seq.getCurrentItem();
@@ -216,6 +228,8 @@ public class XQSPServlet extends ServletBase
             }
 
             resout.flush();
+            if (trace != null)
+                trace.addTimeSince(RequestTrace.SERIALIZE, t0);
             return expr;
         }
 
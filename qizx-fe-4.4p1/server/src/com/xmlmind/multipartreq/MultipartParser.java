@@ -7,7 +7,7 @@
  *    For conditions of use, see the accompanying license files.
  */
 /*
- * Copyright (c) 2009-2010 Pixware SARL. 
+ * Copyright (c) 2009-2010 Pixware SARL.
  *
  * Author: Hussein Shafie
  *
@@ -18,7 +18,7 @@ package com.xmlmind.multipartreq;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.PushbackInputStream;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -27,6 +27,13 @@ import javax.servlet.http.HttpServletRequest;
 
 /**
  * Parses a <tt>multipart/form-data</tt> requests.
+ * <p>
+ * Parts can be read all at once ({@link #parse}), or one after the other in
+ * arrival order ({@link #nextPart}), in which case the data of a part is
+ * read directly from the request by the consumer of the part.
+ * <p>
+ * The request is read by blocks into a buffer, and the delimiter of parts
+ * is searched with the Boyer-Moore-Horspool algorithm.
  */
 /*package*/ final class MultipartParser {
     private final HttpServletRequest req;
@@ -34,21 +41,41 @@ import javax.servlet.http.HttpServletRequest;
     private final Map<String, String[]> params;
     private final List<PartImpl> parts;
 
-    private final File uploadDir;        
+    private final File uploadDir;
     private final ArrayList<String> headers;
     private final String defaultCharset;
     private final String delimiter;
     private final byte[] endOfPart;
-    private final byte[] byteBuffer;
-    private final PushbackInputStream in;
+    private final int[] skipTable;
+    private final InputStream in;
+
+    // Read buffer: bytes from pos to limit are not consumed yet.
+    private byte[] buffer;
+    private int pos;
+    private int limit;
+    private boolean eof;
+
+    // Within the data of a part: bytes up to dataEnd are part data.
+    // If atEndOfPart, endOfPart follows immediately.
+    private int dataEnd;
+    private boolean atEndOfPart;
+    private boolean inData;
+    private PartImpl current;
+    private boolean started;
+    private boolean finished;
 
     // The spec says 70 chars. We use 256 bytes.
     private static final int LINE_MAX_BYTES = 256;
 
+    private static final int BUFFER_SIZE = 65536;
+
+    // Buffers are recycled across requests of a same thread.
+    private static final ThreadLocal<byte[]> BUFFERS = new ThreadLocal<byte[]>();
+
     // -----------------------------------------------------------------------
 
     public MultipartParser(HttpServletRequest req, MultipartConfig conf,
-                           Map<String, String[]> params, List<PartImpl> parts) 
+                           Map<String, String[]> params, List<PartImpl> parts)
         throws IOException {
         String contentType = req.getContentType();
         if (contentType == null ||
@@ -64,40 +91,190 @@ import javax.servlet.http.HttpServletRequest;
         this.params = params;
         this.parts = parts;
 
-        String uploadDirName = 
-            ((conf.location == null || conf.location.length() == 0)? 
+        String uploadDirName =
+            ((conf.location == null || conf.location.length() == 0)?
              "." : conf.location);
         uploadDir = (new File(uploadDirName)).getCanonicalFile();
 
         headers = new ArrayList<String>();
 
-        String boundary = 
+        String boundary =
             HeaderUtil.getParameter(contentType, "boundary", null);
         if (boundary == null) {
-            throw new IOException("Content-Type \"" + contentType + 
+            throw new IOException("Content-Type \"" + contentType +
                                   "\" should have a \"boundary\" parameter");
         }
         delimiter = "--" + boundary;
-        
+
         String enc = req.getCharacterEncoding();
         defaultCharset = (enc == null)? "ISO-8859-1" : enc;
 
         endOfPart = ("\r\n" + delimiter).getBytes("US-ASCII");
+        skipTable = makeSkipTable(endOfPart);
 
-        // byteBuffer must be larger than endOfPart.length. 
+        // buffer must be much larger than endOfPart.
         // With 65536 bytes, this should always be the case.
-        byteBuffer = new byte[Math.max(65536, endOfPart.length)];
+        int size = Math.max(BUFFER_SIZE, 4 * endOfPart.length);
+        buffer = BUFFERS.get();
+        if (buffer == null || buffer.length < size) {
+            buffer = new byte[size];
+        } else {
+            BUFFERS.set(null); // in use
+        }
+
+        in = req.getInputStream();
+    }
+
+    /**
+     * Reads all parts.
+     */
+    public void parse()
+        throws IllegalStateException, IOException {
+        try {
+            for (;;) {
+                PartImpl part = nextPart();
+                if (part == null) {
+                    break;
+                }
+                bufferCurrentPart(false);
+            }
+        } catch (IllegalStateException e) {
+            abortParts();
+
+            throw e;
+        } catch (IOException e) {
+            abortParts();
+
+            throw e;
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Returns the next part, or null if there are no more parts.
+     * <p>
+     * The data of the part can be read from its input stream, until the next
+     * call to this method which skips unread data. Text fields (which are
+     * not files) are always stored, and their value added to the parameters.
+     */
+    public PartImpl nextPart()
+        throws IllegalStateException, IOException {
+        if (finished) {
+            return null;
+        }
+        if (!started) {
+            start();
+        } else {
+            if (current != null) {
+                skipData();
+            }
+
+            String line = readLine();
+            if (line == null) {
+                throw new IOException("Unexpected end of stream");
+            }
+
+            if ("--".equals(line)) {
+                // Found close-delimiter (=delimiter+"--"): done.
+                // This skips epilogue if any.
+                finished = true;
+                release();
+                return null;
+            }
+
+            if (line.length() > 0) {
+                throw new IOException("\"" + (delimiter + line)
+                                      + "\", malformed delimiter");
+            }
+            // Otherwise, normal delimiter: proceed.
+        }
+
+        PartImpl part = readHeaders();
+        parts.add(part);
+        current = part;
+        startData();
+
+        if (!part.isFileField()) {
+            // Simple field: store it to make its value available.
+            bufferPart(part);
+        } else {
+            part.setLiveStream(new PartInputStream(part));
+            addPart(params, part);
+        }
+        return part;
+    }
+
+    /**
+     * Stores the rest of the current part, if it is being streamed.
+     * <p>
+     * If the part has been handed out to a consumer, or partly read, its live
+     * stream then reads the stored data, so that the consumer still gets all
+     * of it. The data is stored within the limits of the part like any other:
+     * an {@link IllegalStateException} is thrown if it is too large.
+     */
+    public void bufferCurrentPart(boolean handedOut)
+        throws IllegalStateException, IOException {
+        PartImpl part = current;
+        if (part != null && part.isLive()) {
+            if (handedOut || part.getSize() > 0) {
+                part.setRemainderStored();
+            } else {
+                part.setLiveStream(null);
+            }
+            try {
+                appendData(part);
+            } catch (IllegalStateException e) {
+                part.abort();
+                throw e;
+            } catch (IOException e) {
+                part.abort();
+                throw e;
+            }
+        }
+    }
 
-        in = new PushbackInputStream(req.getInputStream(), byteBuffer.length);
+    /**
+     * Skips all remaining parts without storing them.
+     */
+    public void skipRemainingParts()
+        throws IOException {
+        try {
+            boolean atPartStart = false;
+            if (!started) {
+                start();
+                atPartStart = true;
+            }
+            while (!finished) {
+                if (!atPartStart) {
+                    if (current != null) {
+                        skipData();
+                        current = null;
+                    }
+                    String line = readLine();
+                    if (line == null || "--".equals(line)) {
+                        break;
+                    }
+                }
+                atPartStart = false;
+                readHeaders();
+                startData();
+                skipData();
+            }
+        } finally {
+            finished = true;
+            release();
+        }
     }
 
-    public void parse() 
+    private void start()
         throws IllegalStateException, IOException {
+        started = true;
         if (conf.maxRequestSize > 0) {
             int contentLength = req.getContentLength();
             if (contentLength > conf.maxRequestSize) {
                 throw new IllegalStateException(
-                    "request size " + contentLength + " exceeds limit of " + 
+                    "request size " + contentLength + " exceeds limit of " +
                     conf.maxRequestSize + " bytes");
             }
             // Note that contentLength may be negative or null.
@@ -109,81 +286,177 @@ import javax.servlet.http.HttpServletRequest;
             String line = readLine();
             if (line == null) {
                 throw new IOException("Unexpected end of stream");
-            } 
+            }
 
             if (line.equals(delimiter)) {
                 // Reached first part.
                 break;
             }
         }
+    }
 
-        // Read parts ---
+    private void bufferPart(PartImpl part)
+        throws IllegalStateException, IOException {
+        appendData(part);
+        addPart(params, part);
+    }
 
-        try {
-            readParts();
-        } catch (IllegalStateException e) {
-            abortParts();
+    private void appendData(PartImpl part)
+        throws IllegalStateException, IOException {
+        for (;;) {
+            int byteCount = dataAvailable();
+            if (byteCount < 0) {
+                break;
+            }
+            part.append(buffer, pos, byteCount);
+            pos += byteCount;
+        }
+        part.finish();
+    }
 
-            throw e;
-        } catch (IOException e) {
-            abortParts();
+    private void startData() {
+        dataEnd = pos;
+        atEndOfPart = false;
+        inData = true;
+    }
 
-            throw e;
+    private void skipData()
+        throws IOException {
+        while (dataAvailable() >= 0) {
+            pos = dataEnd;
+        }
+        if (current != null && !current.isRemainderStored()) {
+            // A stored remainder is still to be read by the live stream.
+            current.endLive();
         }
     }
 
-    private String readLine() 
-        throws IOException {
-        int prevB = -1;
+    private void release() {
+        if (buffer != null) {
+            BUFFERS.set(buffer);
+            buffer = null;
+        }
+    }
 
-        for (int i = 0; i < LINE_MAX_BYTES; ++i) {
-            int b = in.read();
-            if (b < 0) {
-                // Reached end of stream.
-                return null;
+    private String readLine()
+        throws IOException {
+        for (int i = 0; ; ) {
+            if (pos + i + 1 >= limit) {
+                if (eof) {
+                    // Reached end of stream.
+                    return null;
+                }
+                fill(pos);
+                continue;
             }
 
-            if (b == '\n' && prevB == '\r') {
-                if (i <= 1) {
+            if (buffer[pos + i] == '\r' && buffer[pos + i + 1] == '\n') {
+                int start = pos;
+                pos += i + 2;
+                if (i == 0) {
                     return "";
                 } else {
-                    String line = new String(byteBuffer, 0, i-1, "US-ASCII");
+                    String line = new String(buffer, start, i, "US-ASCII");
                     return HeaderUtil.decodeWords(line);
                 }
             }
 
-            byteBuffer[i] = (byte) b;
-            prevB = b;
+            if (++i >= LINE_MAX_BYTES) {
+                // No end of line within reach
+                return null;
+            }
         }
+    }
 
-        // No end of line within reach 
-        return null;
+    // Moves unconsumed bytes from 'from' to the start of the buffer, then
+    // reads more bytes if possible. Returns the number of unconsumed bytes.
+    private int fill(int from)
+        throws IOException {
+        int kept = limit - from;
+        if (from > 0) {
+            System.arraycopy(buffer, from, buffer, 0, kept);
+            dataEnd -= from;
+            pos -= from;
+            limit = kept;
+        }
+        if (!eof && limit < buffer.length) {
+            int count = in.read(buffer, limit, buffer.length - limit);
+            if (count < 0) {
+                eof = true;
+            } else {
+                limit += count;
+            }
+        }
+        return limit;
     }
 
-    private void readParts() 
-        throws IllegalStateException, IOException
-    {
-        for (;;)
-        {
-            readPart();
+    /**
+     * Returns the number of bytes of part data available in buffer from pos,
+     * or -1 at the end of the current part (the delimiter is then consumed).
+     */
+    private int dataAvailable()
+        throws IOException {
+        for (;;) {
+            if (!inData) {
+                return -1;
+            }
+            if (pos < dataEnd) {
+                return dataEnd - pos;
+            }
+            if (atEndOfPart) {
+                pos += endOfPart.length;
+                dataEnd = pos;
+                atEndOfPart = false;
+                inData = false;
+                return -1;
+            }
 
-            String line = readLine();
-            if (line == null) {
+            int found = indexOf(buffer, pos, limit);
+            if (found >= 0) {
+                dataEnd = found;
+                atEndOfPart = true;
+                continue;
+            }
+            // The last bytes may be the start of a delimiter.
+            int safeEnd = limit - endOfPart.length + 1;
+            if (safeEnd > pos) {
+                dataEnd = safeEnd;
+                continue;
+            }
+            if (eof) {
                 throw new IOException("Unexpected end of stream");
-            } 
-
-            if ("--".equals(line)) {
-                // Found close-delimiter (=delimiter+"--"): done.
-                // This skips epilogue if any.
-                break;
-            } 
+            }
+            fill(pos);
+        }
+    }
 
-            if (line.length() > 0) {
-                throw new IOException("\"" + (delimiter + line)
-                                      + "\", malformed delimiter");
+    // Boyer-Moore-Horspool search of endOfPart in bytes[from, to[
+    private int indexOf(byte[] bytes, int from, int to) {
+        final byte[] pattern = endOfPart;
+        final int last = pattern.length - 1;
+        for (int i = from; i + last < to; ) {
+            int j = last;
+            while (bytes[i + j] == pattern[j]) {
+                if (j == 0) {
+                    return i;
+                }
+                --j;
             }
-            // Otherwise, normal delimiter: proceed.
+            i += skipTable[bytes[i + last] & 0xff];
         }
+        return -1;
+    }
+
+    private static int[] makeSkipTable(byte[] pattern) {
+        int[] skip = new int[256];
+        int last = pattern.length - 1;
+        for (int i = 0; i < 256; ++i) {
+            skip[i] = pattern.length;
+        }
+        for (int i = 0; i < last; ++i) {
+            skip[pattern[i] & 0xff] = last - i;
+        }
+        return skip;
     }
 
     private void abortParts() {
@@ -195,7 +468,7 @@ import javax.servlet.http.HttpServletRequest;
         }
     }
 
-    private final void readPart()
+    private final PartImpl readHeaders()
         throws IllegalStateException, IOException {
         // Collect headers ---
 
@@ -206,7 +479,7 @@ import javax.servlet.http.HttpServletRequest;
             String line = readLine();
             if (line == null) {
                 throw new IOException("Unexpected end of stream");
-            } 
+            }
 
             if (line.length() == 0) {
                 // End of headers.
@@ -234,82 +507,74 @@ import javax.servlet.http.HttpServletRequest;
 
         // Create part ---
 
-        PartImpl part = new PartImpl(headers, defaultCharset, conf.maxFileSize, 
-                                     conf.fileSizeThreshold, uploadDir);
-        parts.add(part);
-
-        // Collect bytes ---
-
-        int byteBufferSize = byteBuffer.length;
-        int endOfPartLength = endOfPart.length;
-
-        for (;;) {
-            int byteCount = in.read(byteBuffer, 0, byteBufferSize);
-            if (byteCount < 0) {
-                throw new IOException("Unexpected end of stream");
-            }
-
-            if (byteCount > 0) {
-                int endOfPartIndex = findEndOfPart(endOfPart, 
-                                                   byteBuffer, byteCount);
-                if (endOfPartIndex < 0) {
-                    part.append(byteBuffer, byteCount);
-                } else {
-                    if (endOfPartIndex + endOfPartLength <= byteCount) {
-                        part.append(byteBuffer, endOfPartIndex);
-
-                        int unreadFirst = endOfPartIndex + endOfPartLength;
-                        int unreadCount = byteCount - unreadFirst;
-                        in.unread(byteBuffer, unreadFirst, unreadCount);
-
-                        // Done with this part.
-                        break;
-                    } 
+        return new PartImpl(headers, defaultCharset, conf.maxFileSize,
+                            conf.fileSizeThreshold, uploadDir);
+    }
 
-                    // Found a partial end of part. (May be not an end of part
-                    // at all!) Refill buffer and retry from this partial end
-                    // of part.
+    /**
+     * Data of a part read directly from the request.
+     */
+    private final class PartInputStream extends InputStream {
+        private final PartImpl part;
+        // The rest of the part, stored by bufferCurrentPart().
+        private InputStream remainder;
 
-                    part.append(byteBuffer, endOfPartIndex);
+        PartInputStream(PartImpl part) {
+            this.part = part;
+        }
 
-                    int unreadFirst = endOfPartIndex;
-                    int unreadCount = byteCount - unreadFirst;
-                    in.unread(byteBuffer, unreadFirst, unreadCount);
+        public int read()
+            throws IOException {
+            byte[] b = new byte[1];
+            return (read(b, 0, 1) < 0)? -1 : (b[0] & 0xff);
+        }
 
-                    // Proceed.
+        public int read(byte[] b, int off, int len)
+            throws IOException {
+            if (!part.isLive()) {
+                return -1;
+            }
+            if (part.isRemainderStored()) {
+                if (remainder == null) {
+                    remainder = part.openStoredData();
+                }
+                int count = remainder.read(b, off, len);
+                if (count < 0) {
+                    remainder.close();
+                    part.endLive();
                 }
+                return count;
+            }
+            if (current != part) {
+                return -1;
+            }
+            int byteCount = dataAvailable();
+            if (byteCount < 0) {
+                part.endLive();
+                return -1;
             }
+            byteCount = Math.min(byteCount, len);
+            part.addLiveBytes(byteCount);
+            System.arraycopy(buffer, pos, b, off, byteCount);
+            pos += byteCount;
+            return byteCount;
         }
 
-        // Add part to the results ---
-
-        part.finish();
-        addPart(params, part);
-    }
-
-    private static int findEndOfPart(final byte[] endOfPart, 
-                                     final byte[] bytes, final int byteCount) {
-        final int endOfPartSize = endOfPart.length;
-        int endOfPartIndex = 0;
-        int i = 0;
-
-        for (; i < byteCount; ++i) {
-            if (bytes[i] == endOfPart[endOfPartIndex]) {
-                ++endOfPartIndex;
-                if (endOfPartIndex == endOfPartSize) {
-                    // Found end of part.
-                    ++i;
-                    break;
-                }
-            } else {
-                endOfPartIndex = (bytes[i] == endOfPart[0])? 1 : 0;
+        public int available()
+            throws IOException {
+            if (remainder != null) {
+                return remainder.available();
             }
+            return (current == part && !part.isRemainderStored() &&
+                    pos < dataEnd)? dataEnd - pos : 0;
         }
 
-        return (endOfPartIndex == 0)? -1 : (i - endOfPartIndex);
+        public void close() {
+            // The rest of the part is skipped by the next nextPart().
+        }
     }
 
-    private static void addPart(Map<String, String[]> params, PartImpl part) 
+    private static void addPart(Map<String, String[]> params, PartImpl part)
         throws IOException {
         String name = part.getName();
         String value = part.asParameterValue();
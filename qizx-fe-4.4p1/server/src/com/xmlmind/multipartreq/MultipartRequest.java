@@ -31,6 +31,16 @@ import javax.servlet.http.HttpServletRequestWrapper;
  * Wraps around an actual <tt>HttpServletRequest</tt> and allows to use
  * {@link #getPart} and {@link #getParts}, as specified by the Servlet 3.0 
  * standard, to access the parts of a <tt>multipart/form-data</tt> request.
+ * <p>
+ * In streaming mode, the request is parsed lazily, in arrival order: looking
+ * for a parameter or a part reads the request up to this parameter or part
+ * only. A file part obtained by {@link #getPart} is then read directly from
+ * the request, without being stored in memory or in a temporary file, 
+ * provided it is read before looking for a parameter or part that comes 
+ * after it. Otherwise what remains of it is stored, within the limits of
+ * the {@link MultipartConfig}, and its stream reads the stored data. File
+ * parts that are skipped while looking for something else are stored as
+ * usual.
  */
 public final class MultipartRequest extends HttpServletRequestWrapper {
     /**
@@ -63,13 +73,22 @@ public final class MultipartRequest extends HttpServletRequestWrapper {
     /**
      * Maps a parameter name to its values, an array of strings.
      */
-    private Hashtable parameterMap;
+    private Hashtable<String,String[]> parameterMap;
 
     /**
      * The list of parts.
      */
     private PartImpl[] parts;
 
+    /**
+     * Streaming mode: lazy parser, parts received so far, part being read.
+     */
+    private final boolean streaming;
+    private MultipartParser parser;
+    private ArrayList<PartImpl> partList;
+    private PartImpl currentPart;
+    private boolean currentHandedOut;
+
     // ------------------------------------------------------------------------
 
     /**
@@ -78,7 +97,19 @@ public final class MultipartRequest extends HttpServletRequestWrapper {
     public MultipartRequest(HttpServletRequest request, 
                             MultipartConfig multipartConfig,
                             ServletContext servletContext) {
+        this(request, multipartConfig, servletContext, false);
+    }
+
+    /**
+     * Constructs a MultipartRequest wrapping itself around specified request,
+     * in streaming mode if <code>streaming</code> is true.
+     */
+    public MultipartRequest(HttpServletRequest request, 
+                            MultipartConfig multipartConfig,
+                            ServletContext servletContext,
+                            boolean streaming) {
         super(request);
+        this.streaming = streaming;
 
         if (multipartConfig == null) {
             multipartConfig = DEFAULT_MULTIPART_CONFIG;
@@ -115,7 +146,7 @@ public final class MultipartRequest extends HttpServletRequestWrapper {
             return super.getParameterNames();
         }
 
-        if (parameterMap == null) {
+        if (parts == null) {
             parseParts();
         }
         return parameterMap.keys();
@@ -144,10 +175,14 @@ public final class MultipartRequest extends HttpServletRequestWrapper {
             return super.getParameter(name);
         }
 
-        if (parameterMap == null) {
+        if (streaming && parts == null) {
+            return streamToParameter(name);
+        }
+
+        if (parts == null) {
             parseParts();
         }
-        String[] values = (String[]) parameterMap.get(name);
+        String[] values = parameterMap.get(name);
         return (values == null)? null : values[0];
     }
 
@@ -166,10 +201,10 @@ public final class MultipartRequest extends HttpServletRequestWrapper {
             return super.getParameterValues(name);
         }
 
-        if (parameterMap == null) {
+        if (parts == null) {
             parseParts();
         }
-        return (String[]) parameterMap.get(name);
+        return parameterMap.get(name);
     }
 
     /**
@@ -187,7 +222,7 @@ public final class MultipartRequest extends HttpServletRequestWrapper {
             return super.getParameterMap();
         }
 
-        if (parameterMap == null) {
+        if (parts == null) {
             parseParts();
         }
         return parameterMap;
@@ -212,7 +247,7 @@ public final class MultipartRequest extends HttpServletRequestWrapper {
                 System.err.println(msg.toString());
             }
 
-            parameterMap = new Hashtable();
+            parameterMap = new Hashtable<String,String[]>();
             parts = new PartImpl[0];
         }
     }
@@ -235,6 +270,14 @@ public final class MultipartRequest extends HttpServletRequestWrapper {
      */
     public Part getPart(String name)
         throws IOException, ServletException {
+        if (streaming && parts == null) {
+            if (!isMultipartRequest) {
+                throw new ServletException(
+                    "Not a \"multipart/form-data\" request");
+            }
+            return streamToPart(name);
+        }
+
         if (parts == null) {
             doParseParts();
         }
@@ -281,15 +324,118 @@ public final class MultipartRequest extends HttpServletRequestWrapper {
             throw new ServletException("Not a \"multipart/form-data\" request");
         }
 
-        Hashtable paramMap = new Hashtable();
-        ArrayList partList = new ArrayList();
+        if (streaming) {
+            // Store all remaining parts.
+            startStreaming();
+            while (nextPart() != null) {
+                // Nothing to do.
+            }
+            parts = partList.toArray(new PartImpl[partList.size()]);
+            return;
+        }
+
+        Hashtable<String,String[]> paramMap = new Hashtable<String,String[]>();
+        ArrayList<PartImpl> partList = new ArrayList<PartImpl>();
         MultipartParser parser =
             new MultipartParser((HttpServletRequest) getRequest(),
                                 multipartConfig, paramMap, partList);
         parser.parse();
 
         parameterMap = paramMap;
-        parts = new PartImpl[partList.size()];
-        partList.toArray(parts);
+        parts = partList.toArray(new PartImpl[partList.size()]);
+    }
+
+    /**
+     * Returns the parts received so far, and skips the rest of the request
+     * in streaming mode. Used for cleaning up after the request has been
+     * processed.
+     */
+    public Part[] getReceivedParts()
+        throws IOException, ServletException
+    {
+        if (!streaming || parts != null) {
+            return getParts();
+        }
+        startStreaming();
+        try {
+            parser.skipRemainingParts();
+        } finally {
+            currentPart = null;
+            parts = partList.toArray(new PartImpl[partList.size()]);
+        }
+        return parts;
+    }
+
+    // -----------------------------------------------------------------------
+    // Streaming mode
+    // -----------------------------------------------------------------------
+
+    private void startStreaming()
+        throws IOException {
+        if (parser == null) {
+            parameterMap = new Hashtable<String,String[]>();
+            partList = new ArrayList<PartImpl>();
+            parser = new MultipartParser((HttpServletRequest) getRequest(),
+                                         multipartConfig, parameterMap, 
+                                         partList);
+        }
+    }
+
+    // Reads the next part, after storing what remains of the current one.
+    private PartImpl nextPart()
+        throws IOException {
+        if (currentPart != null && currentPart.isLive()) {
+            parser.bufferCurrentPart(currentHandedOut);
+        }
+        currentPart = parser.nextPart();
+        currentHandedOut = false;
+        return currentPart;
+    }
+
+    private Part streamToPart(String name)
+        throws IOException {
+        startStreaming();
+        for (int i = 0; i < partList.size(); ++i) {
+            PartImpl part = partList.get(i);
+            if (part.getName().equals(name)) {
+                if (part == currentPart) {
+                    currentHandedOut = true;
+                }
+                return part;
+            }
+        }
+        for (PartImpl part; (part = nextPart()) != null; ) {
+            if (part.getName().equals(name)) {
+                currentHandedOut = true;
+                return part;
+            }
+        }
+        return null;
+    }
+
+    private String streamToParameter(String name) {
+        try {
+            startStreaming();
+            String[] values = parameterMap.get(name);
+            while (values == null && nextPart() != null) {
+                values = parameterMap.get(name);
+            }
+            return (values == null)? null : values[0];
+        } catch (IOException e) {
+            String msg = "cannot parse parts: " + e;
+            if (servletContext != null) {
+                servletContext.log(msg, e);
+            } else {
+                System.err.println(msg);
+            }
+            // Stop parsing: keep what has been received.
+            currentPart = null;
+            if (parameterMap == null) {
+                parameterMap = new Hashtable<String,String[]>();
+            }
+            parts = (partList == null)? new PartImpl[0]
+                : partList.toArray(new PartImpl[partList.size()]);
+            return null;
+        }
     }
 }
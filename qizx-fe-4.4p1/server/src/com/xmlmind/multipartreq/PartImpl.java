@@ -44,6 +44,17 @@ import java.util.Map;
     private OutputStream stream;
     private byte[] bytes;
     private File file;
+    /**
+     * In streaming mode, the data of the part read directly from the request.
+     */
+    private InputStream liveStream;
+    private boolean consumed;
+    /**
+     * In streaming mode, the part has been handed out or partly read when
+     * the parser moved on: the rest of its data is stored, and the live
+     * stream reads it.
+     */
+    private boolean remainderStored;
 
     private static final byte[] NO_BYTES = new byte[0];
     private static final String[] NO_STRINGS = new String[0];
@@ -214,6 +225,11 @@ import java.util.Map;
     }
 
     public void append(byte[] inBytes, int inByteCount) 
+        throws IllegalStateException, IOException {
+        append(inBytes, 0, inByteCount);
+    }
+
+    public void append(byte[] inBytes, int offset, int inByteCount) 
         throws IllegalStateException, IOException {
         if (inByteCount <= 0) {
             return;
@@ -255,7 +271,7 @@ import java.util.Map;
             }
         }
 
-        stream.write(inBytes, 0, inByteCount);
+        stream.write(inBytes, offset, inByteCount);
         size += inByteCount;
     }
 
@@ -276,6 +292,64 @@ import java.util.Map;
         return buffer.toString();
     }
 
+    /**
+     * Streaming mode: the data of this part is not stored but read from 
+     * specified stream, only once.
+     */
+    /*package*/ void setLiveStream(InputStream in) {
+        liveStream = in;
+    }
+
+    /*package*/ boolean isLive() {
+        return liveStream != null;
+    }
+
+    /*package*/ void setRemainderStored() {
+        remainderStored = true;
+    }
+
+    /*package*/ boolean isRemainderStored() {
+        return remainderStored;
+    }
+
+    /**
+     * Returns the stored data: for a live part, the data that had not been 
+     * read when it was stored.
+     */
+    /*package*/ InputStream openStoredData()
+        throws IOException {
+        if (file != null) {
+            return new FileInputStream(file);
+        }
+        return new ByteArrayInputStream((bytes == null)? NO_BYTES : bytes);
+    }
+
+    /*package*/ boolean isFileField() {
+        return filename != null;
+    }
+
+    /**
+     * Counts bytes read from the live stream.
+     */
+    /*package*/ void addLiveBytes(int byteCount) 
+        throws IOException {
+        if (maxFileSize > 0 && size + byteCount > maxFileSize) {
+            throw new IOException("the size of part \"" + name + 
+                                  "\" exceeds limit " + maxFileSize);
+        }
+        size += byteCount;
+    }
+
+    /**
+     * Streaming mode: the live data has been read or skipped.
+     */
+    /*package*/ void endLive() {
+        if (liveStream != null) {
+            liveStream = null;
+            consumed = true;
+        }
+    }
+
     public void finish() 
         throws IOException {
         if (stream != null) {
@@ -346,7 +420,12 @@ import java.util.Map;
 
     public InputStream getInputStream()
         throws IOException {
-        if (bytes != null) {
+        if (liveStream != null) {
+            return liveStream;
+        } else if (consumed) {
+            throw new IOException("part \"" + name + "\" has been streamed" +
+                                  " and is no longer available");
+        } else if (bytes != null) {
             return new ByteArrayInputStream(bytes);
         } else {
             if (file.isFile()) {